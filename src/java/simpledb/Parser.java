@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -13,13 +15,17 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.SecondaryIndex;
 import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
 import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class Parser {
@@ -463,6 +469,42 @@ public class Parser {
         }
     }
 
+    /** CREATE INDEX name ON table (field), which Zql does not parse */
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+            "\\s*create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Build a secondary index of a table online, see SecondaryIndex.create.
+     * The index is stored next to the table's file.
+     */
+    public void handleCreateIndexStatement(String indexName, String tableName, String fieldName)
+            throws simpledb.ParsingException, DbException, IOException,
+            TransactionAbortedException {
+        if (inUserTrans)
+            throw new ParsingException(
+                    "CREATE INDEX runs in transactions of its own; commit or roll back first");
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(tableName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown table " + tableName);
+        }
+        DbFile table = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(table instanceof HeapFile))
+            throw new ParsingException("Table " + tableName + " is not a heap file");
+        try {
+            table.getTupleDesc().fieldNameToIndex(fieldName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + fieldName + " in table " + tableName);
+        }
+        File dir = ((HeapFile) table).getFile().getAbsoluteFile().getParentFile();
+        SecondaryIndex.create(indexName, tableId, fieldName,
+                new File(dir, tableName + "." + indexName + ".idx"));
+        System.out.println("Created index " + indexName + " on " + tableName
+                + "(" + fieldName + ")");
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
         ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
@@ -490,6 +532,17 @@ public class Parser {
     }
 
     public void processNextStatement(String s) {
+        Matcher m = CREATE_INDEX.matcher(s);
+        if (m.matches()) {
+            try {
+                handleCreateIndexStatement(m.group(1), m.group(2), m.group(3));
+            } catch (simpledb.ParsingException e) {
+                System.out.println("Invalid SQL expression: \n \t" + e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
         processNextStatement(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
     }
 
@@ -567,7 +620,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "create index", "on" };
 
     public static void main(String[] argv) throws IOException {
 
@@ -660,7 +713,6 @@ public class Parser {
                     buffer.append(line, 0, split + 1);
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes(StandardCharsets.UTF_8);
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -669,8 +721,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
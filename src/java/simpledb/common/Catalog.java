@@ -1,6 +1,7 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -11,6 +12,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -27,6 +29,8 @@ public class Catalog {
     private final Map<Integer, DbFile> dbfiles;//这种方式在文件很大的时候太占用内存，实际不是这样吧? 不是这里DbFile可能存储的只是一个指针罢了
     private final Map<Integer, String> tableNames;
     private final Map<Integer, String> pkeyFieldNames;
+    // 表id -> 该表的二级索引；插入删除的事务会并发读取，所以用并发容器
+    private final Map<Integer, List<SecondaryIndex>> indexes = new ConcurrentHashMap<>();
 
     /**
      * Constructor.
@@ -58,6 +62,7 @@ public class Catalog {
                     dbfiles.remove(tableId);
                     tableNames.remove(tableId);
                     pkeyFieldNames.remove(tableId);
+                    indexes.remove(tableId);
                     break;
                 }
             }
@@ -131,6 +136,44 @@ public class Catalog {
         return this.dbfiles.keySet().iterator();
     }
 
+    /**
+     * Register a secondary index of a table. From then on the index is told
+     * about every tuple inserted into or deleted from the table, but queries
+     * only see it through {@link #getIndexes} once it is ready.
+     */
+    public void addIndex(SecondaryIndex index) {
+        indexes.computeIfAbsent(index.getTableId(), id -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /** Unregister an index added with {@link #addIndex} */
+    public void removeIndex(SecondaryIndex index) {
+        List<SecondaryIndex> list = indexes.get(index.getTableId());
+        if (list != null)
+            list.remove(index);
+    }
+
+    /**
+     * @return the secondary indexes of a table that can be used to answer
+     *     queries; an index shows up here once its build has completed
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> ready = new ArrayList<>();
+        for (SecondaryIndex index : getMaintainedIndexes(tableid)) {
+            if (index.isReady())
+                ready.add(index);
+        }
+        return ready;
+    }
+
+    /**
+     * @return all secondary indexes registered for a table, including those
+     *     still being built, which have to hear about every change as well
+     */
+    public List<SecondaryIndex> getMaintainedIndexes(int tableid) {
+        List<SecondaryIndex> list = indexes.get(tableid);
+        return list == null ? Collections.emptyList() : list;
+    }
+
     public String getTableName(int id) {
         if(tableNames.containsKey(id))
             return tableNames.get(id);
@@ -143,6 +186,7 @@ public class Catalog {
         this.dbfiles.clear();
         this.tableNames.clear();
         this.pkeyFieldNames.clear();
+        this.indexes.clear();
     }
     
     /**
@@ -19,6 +19,11 @@ public enum Type implements Serializable {
             return 4;
         }
 
+        @Override
+        public int getHeapSize() {
+            return 16; // IntField
+        }
+
         @Override
         public Field parse(DataInputStream dis) throws ParseException {
             try {
@@ -34,6 +39,11 @@ public enum Type implements Serializable {
             return STRING_LEN+4;
         }
 
+        @Override
+        public int getHeapSize() {
+            return 24 + 24 + 16 + STRING_LEN; // StringField, String, byte[] of at most STRING_LEN chars
+        }
+
         @Override
         public Field parse(DataInputStream dis) throws ParseException {
             try {
@@ -55,6 +65,12 @@ public enum Type implements Serializable {
    */
     public abstract int getLen();
 
+  /**
+   * @return an estimate of the number of bytes a Field object of this type
+   *   occupies on the Java heap, which is several times getLen().
+   */
+    public abstract int getHeapSize();
+
   /**
    * @return a Field object of the same type as this object that has contents
    *   read from the specified DataInputStream.
@@ -2,13 +2,23 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join: it builds a hash table on child1 and
+ * probes it with the tuples of child2. When child1 does not fit into the
+ * memory budget, both inputs are partitioned on the join key into spill
+ * files (see {@link SpillFile}); one partition stays in memory and is joined
+ * while child2 is read, and the others are joined pairwise afterwards. Each
+ * input is read only once.
  */
 public class HashEquiJoin extends Operator {
 
@@ -31,9 +41,26 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Like {@link #HashEquiJoin(JoinPredicate, OpIterator, OpIterator)}, but with
+     * the given memory budget for the hash table on child1.
+     *
+     * @param memoryBudget
+     *            the number of bytes of heap the tuples of child1 may take in
+     *            the hash table, as estimated by {@link TupleDesc#getHeapSize};
+     *            when child1 is larger, both inputs are partitioned and
+     *            spilled to disk
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, long memoryBudget) {
+        if (memoryBudget <= 0)
+            throw new IllegalArgumentException("memory budget must be positive: " + memoryBudget);
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryBudget = memoryBudget;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -55,28 +82,207 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
+    /** Bytes of heap the build-side tuples may take by default. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L * 1024 * 1024;
+    /** Number of partitions the inputs are split into once the build side does not fit. */
+    public static final int PARTITIONS = 32;
+
+    private final long memoryBudget;
     final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
+    private int mapSize = 0;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
+    // 分区之后的状态：build/probe各一组溢出文件，resident表示0号分区是否还留在map里
+    transient private SpillFile[] buildFiles = null;
+    transient private SpillFile[] probeFiles = null;
+    transient private boolean resident;
+    transient private int partition;
+    transient private SpillFile.Reader buildReader = null;
+    transient private SpillFile.Reader probeReader = null;
+
+    /**
+     * The partition of a join key. The hash is mixed and its high bits are used, so
+     * that the keys of one partition do not all share the low bits the HashMap uses.
+     */
+    private static int partitionOf(Field f) {
+        long h = (f.hashCode() * 0x9E3779B9) & 0xffffffffL;
+        return (int) ((h * PARTITIONS) >>> 32);
+    }
+
+    /** The number of build-side tuples that fit into the memory budget. */
+    private int maxMapSize() {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / child1.getTupleDesc().getHeapSize()));
+    }
+
+    private void addToMap(Tuple t) {
+        map.computeIfAbsent(t.getField(pred.getField1()), k -> new ArrayList<>()).add(t);
+        mapSize++;
+    }
+
+    private static void spill(SpillFile[] files, int p, TupleDesc td, Tuple t) throws IOException {
+        if (files[p] == null)
+            files[p] = new SpillFile(td);
+        files[p].add(t);
+    }
+
+    /**
+     * Read the build side. As long as it fits into the memory budget it is all kept in
+     * the hash table. Once it does not, both inputs are partitioned on the join key:
+     * partition 0 stays in memory as long as it fits, and the other partitions are
+     * spilled to disk and joined pairwise after the probe side has been read.
+     */
+    private void build() throws DbException, TransactionAbortedException, IOException {
+        int max = maxMapSize();
+        TupleDesc td1 = child1.getTupleDesc();
         while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
+            Tuple t = child1.next();
+            if (buildFiles == null) {
+                addToMap(t);
+                if (mapSize > max)
+                    partition(td1);
+                continue;
+            }
+            int p = partitionOf(t.getField(pred.getField1()));
+            if (p != 0 || !resident) {
+                spill(buildFiles, p, td1, t);
+                continue;
+            }
+            addToMap(t);
+            if (mapSize > max)
+                spillResident(td1);
+        }
+    }
+
+    /** Switch to partitioning: spill what is in the hash table but not in partition 0. */
+    private void partition(TupleDesc td1) throws IOException {
+        buildFiles = new SpillFile[PARTITIONS];
+        probeFiles = new SpillFile[PARTITIONS];
+        resident = true;
+        Iterator<Map.Entry<Object, List<Tuple>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, List<Tuple>> e = it.next();
+            int p = partitionOf((Field) e.getKey());
+            if (p == 0)
+                continue;
+            for (Tuple t : e.getValue())
+                spill(buildFiles, p, td1, t);
+            mapSize -= e.getValue().size();
+            it.remove();
+        }
+        if (mapSize > maxMapSize())
+            spillResident(td1);
+    }
+
+    /** Partition 0 does not fit either: spill it like the others. */
+    private void spillResident(TupleDesc td1) throws IOException {
+        for (List<Tuple> l : map.values()) {
+            for (Tuple t : l)
+                spill(buildFiles, 0, td1, t);
+        }
+        map.clear();
+        mapSize = 0;
+        resident = false;
+    }
+
+    /**
+     * Load the next tuples of the build partition being joined into the hash table, at
+     * most as many as fit into the memory budget. A partition that is larger than that,
+     * because many tuples share a key, is joined in several passes over its probe
+     * partition.
+     *
+     * @return false if the build partition has been read completely
+     */
+    private boolean loadChunk() throws IOException {
+        map.clear();
+        mapSize = 0;
+        int max = maxMapSize();
+        while (mapSize < max && buildReader.hasNext())
+            addToMap(buildReader.next());
+        if (mapSize == 0)
+            return false;
+        if (probeReader != null)
+            probeReader.close();
+        probeReader = probeFiles[partition].reader();
+        return true;
+    }
+
+    /**
+     * Move on to the next pair of spilled partitions that can produce matches.
+     *
+     * @return false if all partitions have been joined
+     */
+    private boolean nextPartition() throws IOException {
+        closeReaders();
+        if (partition >= 0) {
+            deletePartition(partition);
+        }
+        while (++partition < PARTITIONS) {
+            if (buildFiles[partition] == null || probeFiles[partition] == null) {
+                deletePartition(partition);
+                continue;
+            }
+            buildReader = buildFiles[partition].reader();
+            if (loadChunk())
                 return true;
         }
-        return cnt > 0;
+        map.clear();
+        mapSize = 0;
+        return false;
+    }
 
+    private void deletePartition(int p) {
+        if (buildFiles[p] != null)
+            buildFiles[p].delete();
+        if (probeFiles[p] != null)
+            probeFiles[p].delete();
+        buildFiles[p] = null;
+        probeFiles[p] = null;
+    }
+
+    private void closeReaders() throws IOException {
+        if (buildReader != null)
+            buildReader.close();
+        if (probeReader != null)
+            probeReader.close();
+        buildReader = null;
+        probeReader = null;
+    }
+
+    /** Drop the hash table and all spill files. */
+    private void clear() {
+        try {
+            closeReaders();
+        } catch (IOException e) {
+            // 文件马上就删了
+        }
+        if (buildFiles != null) {
+            for (int p = 0; p < PARTITIONS; p++)
+                deletePartition(p);
+        }
+        buildFiles = null;
+        probeFiles = null;
+        map.clear();
+        mapSize = 0;
+        listIt = null;
+        t1 = null;
+        t2 = null;
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        try {
+            build();
+        } catch (IOException e) {
+            clear();
+            throw new DbException("cannot spill join input: " + e.getMessage());
+        }
+        // 0号分区不在内存里时，它也要等到第二阶段再连接
+        partition = -1;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        start();
         super.open();
     }
 
@@ -84,15 +290,14 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        clear();
         child1.rewind();
         child2.rewind();
+        start();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -135,29 +340,46 @@ public class HashEquiJoin extends Operator {
         if (listIt != null && listIt.hasNext()) {
             return processList();
         }
+        try {
+            // 第一阶段：读probe一侧，能在内存里连接的直接连接，其余的按分区写盘
+            while (child2.hasNext()) {
+                t2 = child2.next();
+                Field f = t2.getField(pred.getField2());
+                if (buildFiles != null) {
+                    int p = partitionOf(f);
+                    if (p != 0 || !resident) {
+                        if (buildFiles[p] != null)
+                            spill(probeFiles, p, child2.getTupleDesc(), t2);
+                        continue;
+                    }
+                }
+                List<Tuple> l = map.get(f);
+                if (l == null)
+                    continue;
+                listIt = l.iterator();
+                return processList();
+            }
+            if (buildFiles == null || partition >= PARTITIONS)
+                return null;
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
+            // 第二阶段：溢出的分区两两连接
+            if (partition < 0 && !nextPartition())
+                return null;
+            while (true) {
+                while (probeReader.hasNext()) {
+                    t2 = probeReader.next();
+                    List<Tuple> l = map.get(t2.getField(pred.getField2()));
+                    if (l == null)
+                        continue;
+                    listIt = l.iterator();
+                    return processList();
+                }
+                if (!loadChunk() && !nextPartition())
+                    return null;
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot spill join input: " + e.getMessage());
         }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
-        }
-
-        return null;
     }
 
     @Override
@@ -0,0 +1,151 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator implements the relational join operation
+ * by looking up every tuple of the outer relation in an index of the inner
+ * relation, instead of scanning or hashing the whole inner relation. The
+ * inner relation is read through an {@link IndexOpIterator} that is rewound
+ * with a new {@link IndexPredicate} for each outer tuple.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private final Predicate.Op probeOp;
+    private OpIterator child1;
+    private IndexOpIterator child2;
+    private final TupleDesc comboTD;
+    transient private Tuple t1 = null;
+    transient private boolean probing = false;
+
+    /**
+     * Constructor. Accepts the outer child, the index of the inner relation
+     * and the predicate to join them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; its second field
+     *            must be the field child2 is indexed on, and its operator one
+     *            an index can look up (not NOT_EQUALS or LIKE)
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Index of the right(inner) relation to join
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, IndexOpIterator child2) {
+        this.pred = p;
+        this.probeOp = probeOp(p.getOperator());
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * The predicate t1.f1 op t2.f2 looked up from the inner side: t2.f2
+     * probeOp(op) t1.f1.
+     *
+     * @throws IllegalArgumentException if an index cannot look up op
+     */
+    public static Predicate.Op probeOp(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+            return Predicate.Op.EQUALS;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            throw new IllegalArgumentException("an index cannot look up " + op);
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (probing)
+            child2.close();
+        child1.close();
+        this.t1 = null;
+        this.probing = false;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        this.t1 = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of an outer tuple and one of the inner
+     * tuples the index finds for it.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null && child2.hasNext()) {
+                Tuple t2 = child2.next();
+                int td1n = t1.getTupleDesc().numFields();
+                int td2n = t2.getTupleDesc().numFields();
+                Tuple t = new Tuple(comboTD);
+                for (int i = 0; i < td1n; i++)
+                    t.setField(i, t1.getField(i));
+                for (int i = 0; i < td2n; i++)
+                    t.setField(td1n + i, t2.getField(i));
+                return t;
+            }
+            if (!child1.hasNext())
+                return null;
+            t1 = child1.next();
+            IndexPredicate ipred = new IndexPredicate(probeOp, t1.getField(pred.getField1()));
+            // 第一次查找时才打开内表
+            if (probing) {
+                child2.rewind(ipred);
+            } else {
+                child2.open(ipred);
+                probing = true;
+            }
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = (IndexOpIterator) children[1];
+    }
+
+}
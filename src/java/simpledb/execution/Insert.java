@@ -11,6 +11,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -28,6 +30,9 @@ public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Number of tuples handed to {@link BufferPool#insertTuples} at once. */
+    public static final int BATCH_SIZE = 1000;
+
     /**
      * Constructor.
      *
@@ -81,7 +86,8 @@ public class Insert extends Operator {
      * inserted records. Inserts should be passed through BufferPool. An
      * instances of BufferPool is available via Database.getBufferPool(). Note
      * that insert DOES NOT need check to see if a particular tuple is a
-     * duplicate before inserting it.
+     * duplicate before inserting it. Tuples are inserted in batches of
+     * BATCH_SIZE, so that files like BTreeFile can insert them together.
      *
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
@@ -94,10 +100,17 @@ public class Insert extends Operator {
         callTimes++;
         int count=0;
         try {
+            List<Tuple> batch = new ArrayList<>();
             while (child.hasNext()){
-                Database.getBufferPool().insertTuple(transactionId,tableId,child.next());
+                batch.add(child.next());
                 count++;
+                if (batch.size() == BATCH_SIZE) {
+                    Database.getBufferPool().insertTuples(transactionId, tableId, batch);
+                    batch.clear();
+                }
             }
+            if (!batch.isEmpty())
+                Database.getBufferPool().insertTuples(transactionId, tableId, batch);
         }catch (IOException e){
             e.printStackTrace();
         }
@@ -24,9 +24,9 @@ public class SeqScan implements OpIterator {
 
     private String tableAlias;
 
-    private HeapFile heapFile;
+    private DbFile dbFile;
 
-    private HeapFileIterator heapFileIterator;
+    private DbFileIterator dbFileIterator;
 
 
     /**
@@ -49,8 +49,9 @@ public class SeqScan implements OpIterator {
         this.transactionId=tid;
         this.tableId=tableid;
         this.tableAlias=tableAlias;
-        heapFile=(HeapFile) Database.getCatalog().getDatabaseFile(tableid);
-        this.heapFileIterator=(HeapFileIterator) (heapFile).iterator(tid);
+        // 不限于HeapFile，B+树文件的iterator按键的顺序返回全部元组
+        dbFile=Database.getCatalog().getDatabaseFile(tableid);
+        this.dbFileIterator=dbFile.iterator(tid);
     }
 
     /**
@@ -62,6 +63,13 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(this.tableId);
     }
 
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return this.transactionId;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -85,8 +93,8 @@ public class SeqScan implements OpIterator {
     public void reset(int tableid, String tableAlias) {
         this.tableId=tableid;
         this.tableAlias=tableAlias;
-        heapFile=(HeapFile) Database.getCatalog().getDatabaseFile(tableid);
-        this.heapFileIterator=(HeapFileIterator) (heapFile).iterator(this.transactionId);
+        dbFile=Database.getCatalog().getDatabaseFile(tableid);
+        this.dbFileIterator=dbFile.iterator(this.transactionId);
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -94,22 +102,22 @@ public class SeqScan implements OpIterator {
     }
 
     public void open() throws DbException, TransactionAbortedException {
-        this.heapFileIterator.open();
+        this.dbFileIterator.open();
     }
 
     /**
-     * Returns the TupleDesc with field names from the underlying HeapFile,
+     * Returns the TupleDesc with field names from the underlying DbFile,
      * prefixed with the tableAlias string from the constructor. This prefix
      * becomes useful when joining tables containing a field(s) with the same
      * name.  The alias and name should be separated with a "." character
      * (e.g., "alias.fieldName").
      *
-     * @return the TupleDesc with field names from the underlying HeapFile,
+     * @return the TupleDesc with field names from the underlying DbFile,
      *         prefixed with the tableAlias string from the constructor.
      *         todo 这里返回含有别名的TupleDesc，我没有在这里将this.tableid对应的表的TupleDesc设置为含有别名的TupleDesc，从别名是依赖于某个查询语句而不是依赖表的角度考虑，这样是合理的。
      */
     public TupleDesc getTupleDesc() {
-        TupleDesc tupleDesc=this.heapFile.getTupleDesc();
+        TupleDesc tupleDesc=this.dbFile.getTupleDesc();
         Type[] typeAr=new Type[tupleDesc.numFields()];
         String[] fieldAr=new String[tupleDesc.numFields()];
         for (int i = 0; i < tupleDesc.numFields(); i++) {
@@ -120,20 +128,20 @@ public class SeqScan implements OpIterator {
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
-        return this.heapFileIterator.hasNext();
+        return this.dbFileIterator.hasNext();
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        return this.heapFileIterator.next();
+        return this.dbFileIterator.next();
     }
 
     public void close() {
-        this.heapFileIterator.close();
+        this.dbFileIterator.close();
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        this.heapFileIterator.rewind();
+        this.dbFileIterator.rewind();
     }
 }
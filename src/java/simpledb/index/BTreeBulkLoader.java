@@ -0,0 +1,479 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * BTreeBulkLoader builds a B+ tree file from unsorted tuples while keeping
+ * memory use bounded, so that tables larger than the heap can be indexed.
+ * <p>
+ * The input is sorted on the key field with an external merge sort: sorted
+ * runs of at most memoryBudget bytes are spilled to temporary files
+ * (see {@link SpillFile}), and the runs are merged, in several passes if
+ * there are too many of them to merge at once. The sorted stream is then
+ * packed into leaf pages at the configured fill factor and the internal
+ * pages are built bottom-up on the fly. Since the number of tuples is known
+ * after sorting, the number of leaves is computed in advance and the tuples
+ * are spread evenly over them. Internal pages are filled by the space their
+ * keys actually take, which for string keys is much less than a key of the
+ * maximum length. Every page is written exactly once with its parent and
+ * sibling pointers already set. With a fill factor of 1 every page except
+ * the root ends up about half full or more; lower fill factors leave room
+ * for later inserts.
+ * <p>
+ * Leaf pages get the page numbers 1..n, followed by the internal pages in
+ * the order they are completed; the root comes last.
+ */
+public class BTreeBulkLoader {
+
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+	public static final long DEFAULT_MEMORY_BUDGET = 16L * 1024 * 1024;
+
+	private final TupleDesc td;
+	private final int keyField;
+	private final double fillFactor;
+	private final long memoryBudget;
+	private final Comparator<Tuple> comparator;
+
+	/**
+	 * Create a bulk loader.
+	 *
+	 * @param td - the TupleDesc of the tuples to load
+	 * @param keyField - the index of the field the B+ tree is keyed on
+	 * @param fillFactor - the fraction of each page to fill, in (0, 1]
+	 * @param memoryBudget - the number of bytes of heap the tuples sorted in
+	 *            memory at once may take, as estimated by
+	 *            {@link TupleDesc#getHeapSize}; also bounds the number of runs
+	 *            merged at once
+	 */
+	public BTreeBulkLoader(TupleDesc td, int keyField, double fillFactor, long memoryBudget) {
+		if (fillFactor <= 0 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1]");
+		}
+		if (memoryBudget <= 0) {
+			throw new IllegalArgumentException("memory budget must be positive");
+		}
+		this.td = td;
+		this.keyField = keyField;
+		this.fillFactor = fillFactor;
+		this.memoryBudget = memoryBudget;
+		this.comparator = new BTreeFileEncoder.TupleComparator(keyField);
+	}
+
+	/**
+	 * A stream of input tuples; next() returns null at the end. E is any
+	 * further checked exception the source may throw.
+	 */
+	private interface TupleSource<E extends Exception> {
+		Tuple next() throws IOException, DbException, E;
+	}
+
+	/**
+	 * Build a B+ tree from the tuples of a heap file. The heap file is read
+	 * page by page straight from disk, bypassing the buffer pool.
+	 *
+	 * @param source - the heap file, with the same TupleDesc as this loader
+	 * @param bFile - the file to write the B+ tree to; it is overwritten
+	 * @return the new BTreeFile, added to the catalog
+	 */
+	public BTreeFile load(final HeapFile source, File bFile) throws IOException, DbException {
+		final int numPages = source.numPages();
+		return load(new TupleSource<RuntimeException>() {
+			int pgNo = 0;
+			Iterator<Tuple> it = Collections.emptyIterator();
+
+			public Tuple next() {
+				while (!it.hasNext()) {
+					if (pgNo >= numPages) {
+						return null;
+					}
+					it = ((HeapPage) source.readPage(new HeapPageId(source.getId(), pgNo++))).iterator();
+				}
+				return it.next();
+			}
+		}, bFile);
+	}
+
+	/**
+	 * Build a B+ tree from a text file with one tuple per line, in the format
+	 * accepted by HeapFileEncoder.
+	 *
+	 * @param textFile - the input file
+	 * @param fieldSeparator - the character separating the fields of a line
+	 * @param bFile - the file to write the B+ tree to; it is overwritten
+	 * @return the new BTreeFile, added to the catalog
+	 */
+	public BTreeFile load(File textFile, final char fieldSeparator, File bFile) throws IOException, DbException {
+		try (final BufferedReader br = new BufferedReader(new FileReader(textFile))) {
+			return load(new TupleSource<RuntimeException>() {
+				public Tuple next() throws IOException {
+					String line;
+					do {
+						line = br.readLine();
+						if (line == null) {
+							return null;
+						}
+					} while (line.trim().isEmpty());
+					return parseLine(line, fieldSeparator);
+				}
+			}, bFile);
+		}
+	}
+
+	/**
+	 * Build a B+ tree from the tuples returned by an iterator, for example a
+	 * scan through the buffer pool that also sees changes not yet written to
+	 * disk.
+	 *
+	 * @param source - an open iterator; it is read to the end but not closed
+	 * @param bFile - the file to write the B+ tree to; it is overwritten
+	 * @return the new BTreeFile, added to the catalog
+	 */
+	public BTreeFile load(final DbFileIterator source, File bFile)
+			throws IOException, DbException, TransactionAbortedException {
+		return load(new TupleSource<TransactionAbortedException>() {
+			public Tuple next() throws DbException, TransactionAbortedException {
+				return source.hasNext() ? source.next() : null;
+			}
+		}, bFile);
+	}
+
+	private Tuple parseLine(String line, char fieldSeparator) throws IOException {
+		String[] values = line.split(java.util.regex.Pattern.quote(String.valueOf(fieldSeparator)), -1);
+		if (values.length != td.numFields()) {
+			throw new IOException("expected " + td.numFields() + " fields: " + line);
+		}
+		Tuple t = new Tuple(td);
+		for (int i = 0; i < values.length; i++) {
+			String s = values[i].trim();
+			if (td.getFieldType(i) == Type.INT_TYPE) {
+				try {
+					t.setField(i, new IntField(Integer.parseInt(s)));
+				} catch (NumberFormatException e) {
+					throw new IOException("bad integer field: " + line);
+				}
+			} else {
+				if (s.length() > Type.STRING_LEN) {
+					s = s.substring(0, Type.STRING_LEN);
+				}
+				t.setField(i, new StringField(s, Type.STRING_LEN));
+			}
+		}
+		return t;
+	}
+
+	private <E extends Exception> BTreeFile load(TupleSource<E> source, File bFile)
+			throws IOException, DbException, E {
+		List<SpillFile> runs = sortRuns(source);
+		try {
+			runs = mergeRuns(runs);
+			long numTuples = 0;
+			for (SpillFile run : runs) {
+				numTuples += run.size();
+			}
+
+			if (bFile.exists() && !bFile.delete()) {
+				throw new IOException("cannot overwrite " + bFile);
+			}
+			BTreeFile bf = new BTreeFile(bFile, keyField, td);
+			Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+
+			TreeBuilder builder = new TreeBuilder(bf, numTuples);
+			merge(runs, builder::add);
+			builder.finish();
+			return bf;
+		} finally {
+			for (SpillFile run : runs) {
+				run.delete();
+			}
+		}
+	}
+
+	// ---- external sort ----
+
+	/** Receives the merged tuples. */
+	private interface TupleSink {
+		void add(Tuple t) throws IOException, DbException;
+	}
+
+	/** Split the input into sorted runs of at most memoryBudget bytes. */
+	private <E extends Exception> List<SpillFile> sortRuns(TupleSource<E> source)
+			throws IOException, DbException, E {
+		int runSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / td.getHeapSize()));
+		List<SpillFile> runs = new ArrayList<>();
+		List<Tuple> run = new ArrayList<>();
+		try {
+			Tuple t;
+			while ((t = source.next()) != null) {
+				run.add(t);
+				if (run.size() >= runSize) {
+					runs.add(writeRun(run));
+					run.clear();
+				}
+			}
+			if (!run.isEmpty() || runs.isEmpty()) {
+				runs.add(writeRun(run));
+			}
+		} catch (Exception e) {
+			for (SpillFile f : runs) {
+				f.delete();
+			}
+			throw e;
+		}
+		return runs;
+	}
+
+	private SpillFile writeRun(List<Tuple> run) throws IOException {
+		run.sort(comparator);
+		SpillFile f = new SpillFile(td);
+		for (Tuple t : run) {
+			f.add(t);
+		}
+		return f;
+	}
+
+	/**
+	 * Merge runs until few enough are left to be merged at once, each with
+	 * a read buffer of SpillFile.BUFFER_SIZE bytes within the budget.
+	 */
+	private List<SpillFile> mergeRuns(List<SpillFile> runs) throws IOException, DbException {
+		int fanIn = (int) Math.max(2, Math.min(Integer.MAX_VALUE, memoryBudget / SpillFile.BUFFER_SIZE));
+		while (runs.size() > fanIn) {
+			List<SpillFile> merged = new ArrayList<>();
+			for (int i = 0; i < runs.size(); i += fanIn) {
+				List<SpillFile> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+				if (group.size() == 1) {
+					merged.add(group.get(0));
+					continue;
+				}
+				SpillFile out = new SpillFile(td);
+				merge(group, out::add);
+				for (SpillFile f : group) {
+					f.delete();
+				}
+				merged.add(out);
+			}
+			runs = merged;
+		}
+		return runs;
+	}
+
+	/** Merge sorted runs into sink; equal keys keep the order of the runs. */
+	private void merge(List<SpillFile> runs, TupleSink sink) throws IOException, DbException {
+		final List<SpillFile.Reader> readers = new ArrayList<>();
+		final Tuple[] heads = new Tuple[runs.size()];
+		PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> {
+			int cmp = comparator.compare(heads[a], heads[b]);
+			return cmp != 0 ? cmp : Integer.compare(a, b);
+		});
+		try {
+			for (int i = 0; i < runs.size(); i++) {
+				SpillFile.Reader r = runs.get(i).reader();
+				readers.add(r);
+				if (r.hasNext()) {
+					heads[i] = r.next();
+					queue.add(i);
+				}
+			}
+			while (!queue.isEmpty()) {
+				int i = queue.poll();
+				sink.add(heads[i]);
+				if (readers.get(i).hasNext()) {
+					heads[i] = readers.get(i).next();
+					queue.add(i);
+				}
+			}
+		} finally {
+			for (SpillFile.Reader r : readers) {
+				r.close();
+			}
+		}
+	}
+
+	// ---- packing ----
+
+	/**
+	 * Packs a sorted stream of a known number of tuples into pages. Level 0
+	 * holds the leaves; level L + 1 holds the parents of the pages of level
+	 * L, and the top level holds only the root. The tuples are spread evenly
+	 * over a number of leaves computed in advance. The pages of a level are
+	 * filled with the keys of their children, by the space the keys actually
+	 * take, as the children come in. A page is only written once its parent
+	 * has a page number, so each level keeps the children of its last pages,
+	 * about two pages' worth, in memory.
+	 */
+	private class TreeBuilder {
+		private final BTreeFile bf;
+		private final int tableid;
+		private final int npagebytes = BufferPool.getPageSize();
+		private final Type[] typeAr;
+		private final Type[] keyTypes;
+		private final long numTuples;
+		private final int numLeaves;
+		private final int capacity;     // space for entries on an internal page
+		private final int target;       // space to fill on an internal page
+
+		private int currentLeaf = 0;    // index of the leaf under construction
+		private int nextPageNo;         // page number of the next internal page
+		private final List<Tuple> leafTuples = new ArrayList<>();
+		private long tuplesSeen = 0;
+		// per level: the children of the pages not written yet, the keys between
+		// them, and the smallest key below the first child
+		private final List<List<BTreePage>> children = new ArrayList<>();
+		private final List<List<Field>> keys = new ArrayList<>();
+		private final List<Field> lowKeys = new ArrayList<>();
+		private final List<Integer> pagesWritten = new ArrayList<>();
+		private Field lastLeafKey = null; // largest key of the previous leaf
+
+		TreeBuilder(BTreeFile bf, long numTuples) {
+			this.bf = bf;
+			this.tableid = bf.getId();
+			this.numTuples = numTuples;
+			this.typeAr = new Type[td.numFields()];
+			for (int i = 0; i < typeAr.length; i++) {
+				typeAr[i] = td.getFieldType(i);
+			}
+			this.keyTypes = new Type[] { td.getFieldType(keyField) };
+
+			int nrecords = (npagebytes * 8 - 3 * BTreeLeafPage.INDEX_SIZE * 8) / (td.getSize() * 8 + 1);
+			int perLeaf = Math.max(1, (int) (nrecords * fillFactor));
+			this.numLeaves = (int) Math.max(1, (numTuples + perLeaf - 1) / perLeaf);
+			this.nextPageNo = numLeaves + 1;
+			this.capacity = BTreeInternalPage.getCapacity(keyTypes, npagebytes);
+			// at least two keys per page, so that splitting the last keys of a
+			// level never leaves an internal page with a single child
+			this.target = Math.min(capacity, Math.max((int) (capacity * fillFactor),
+					2 * BTreeInternalPage.getMaxEntrySize(keyTypes, npagebytes)));
+		}
+
+		private BTreePageId leafId(int index) {
+			return new BTreePageId(tableid, index + 1, BTreePageId.LEAF);
+		}
+
+		/** number of tuples that go into leaf index */
+		private int leafSize(int index) {
+			return (int) ((index + 1) * numTuples / numLeaves - index * numTuples / numLeaves);
+		}
+
+		void add(Tuple t) throws IOException, DbException {
+			leafTuples.add(t);
+			tuplesSeen++;
+			if (leafTuples.size() == leafSize(currentLeaf)) {
+				buildLeaf();
+			}
+		}
+
+		private void buildLeaf() throws IOException, DbException {
+			int index = currentLeaf;
+			BTreePageId pid = leafId(index);
+			Field lowKey = null;
+			if (!leafTuples.isEmpty()) {
+				// 复制到父节点的键只需要能和前一个叶子区分开
+				lowKey = BTreeFile.separator(lastLeafKey, leafTuples.get(0).getField(keyField));
+				lastLeafKey = leafTuples.get(leafTuples.size() - 1).getField(keyField);
+			}
+			BTreeLeafPage page = new BTreeLeafPage(pid,
+					BTreeFileEncoder.convertToLeafPage(leafTuples, npagebytes, typeAr.length, typeAr, keyField), keyField);
+			page.setLeftSiblingId(index > 0 ? leafId(index - 1) : null);
+			page.setRightSiblingId(index < numLeaves - 1 ? leafId(index + 1) : null);
+			leafTuples.clear();
+			currentLeaf++;
+			addChild(1, page, lowKey);
+		}
+
+		private int[] sizes(List<Field> levelKeys) {
+			int[] sizes = new int[levelKeys.size()];
+			for (int i = 0; i < sizes.length; i++) {
+				sizes[i] = BTreeInternalPage.getEntrySize(keyTypes, npagebytes, levelKeys.get(i));
+			}
+			return sizes;
+		}
+
+		private void addChild(int level, BTreePage child, Field lowKey) throws IOException, DbException {
+			while (children.size() <= level) {
+				children.add(new ArrayList<>());
+				keys.add(new ArrayList<>());
+				lowKeys.add(null);
+				pagesWritten.add(0);
+			}
+			List<BTreePage> c = children.get(level);
+			if (c.isEmpty()) {
+				lowKeys.set(level, lowKey);
+			} else {
+				keys.get(level).add(lowKey);
+			}
+			c.add(child);
+
+			// 攒够两页多的键再写出第一页，这样最后剩下的键总能分到一两页里
+			int[] sizes = sizes(keys.get(level));
+			if (BTreeFileEncoder.sum(sizes, 0, sizes.length) > 2 * target) {
+				writePage(level, BTreeFileEncoder.fill(sizes, 0, target));
+			}
+		}
+
+		/**
+		 * Write the first children of a level under a new page that gets the
+		 * first n keys of the level. The key after them is pushed up and
+		 * becomes the smallest key below the next page.
+		 */
+		private void writePage(int level, int n) throws IOException, DbException {
+			List<BTreePage> c = children.get(level);
+			List<Field> k = keys.get(level);
+			int childCategory = level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+			BTreePageId pid = new BTreePageId(tableid, nextPageNo++, BTreePageId.INTERNAL);
+			List<BTreeEntry> entries = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				entries.add(new BTreeEntry(k.get(i), c.get(i).getId(), c.get(i + 1).getId()));
+			}
+			BTreeInternalPage page = new BTreeInternalPage(pid, BTreeFileEncoder.convertToInternalPage(entries,
+					npagebytes, keyTypes, childCategory), keyField);
+			for (BTreePage child : c.subList(0, n + 1)) {
+				child.setParentId(pid);
+				bf.writePage(child);
+			}
+
+			Field pageLowKey = lowKeys.get(level);
+			lowKeys.set(level, n < k.size() ? k.get(n) : null);
+			c.subList(0, n + 1).clear();
+			k.subList(0, Math.min(n + 1, k.size())).clear();
+			pagesWritten.set(level, pagesWritten.get(level) + 1);
+			addChild(level + 1, page, pageLowKey);
+		}
+
+		void finish() throws IOException, DbException {
+			if (tuplesSeen != numTuples) {
+				throw new DbException("expected " + numTuples + " tuples but got " + tuplesSeen);
+			}
+			if (numTuples == 0) {
+				buildLeaf(); // an empty tree is a single empty leaf
+			}
+
+			// 自底向上把每层剩下的键分到尽量少的页里，直到某一层只剩一页，它就是根
+			BTreePageId root;
+			for (int level = 1; ; level++) {
+				List<BTreePage> c = children.get(level);
+				if (c.size() == 1 && pagesWritten.get(level) == 0) {
+					BTreePage page = c.get(0);
+					page.setParentId(BTreeRootPtrPage.getId(tableid));
+					bf.writePage(page);
+					root = page.getId();
+					break;
+				}
+				int written = 0;
+				for (int pushUp : BTreeFileEncoder.spread(sizes(keys.get(level)), target)) {
+					writePage(level, pushUp - written);
+					written = pushUp + 1;
+				}
+				writePage(level, keys.get(level).size());
+			}
+			bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid),
+					BTreeFileEncoder.convertToRootPtrPage(root.getPageNumber(), root.pgcateg(), 0)));
+		}
+	}
+}
@@ -0,0 +1,663 @@
+package simpledb.index;
+
+import java.io.IOException;
+import java.util.*;
+
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BTreeCompactor defragments a BTreeFile online, while other transactions keep using it.
+ * After many deletions the leaves of a B+ tree are barely half full, and after many
+ * splits and merges their order in the file no longer matches their key order. The
+ * compactor works in four phases, each made of short transactions that only lock the
+ * few pages they change:
+ * <ol>
+ * <li>FILL: the tuples of each run of a few leaves under the same parent are spread
+ * over as few of them as the fill factor allows, and the leaves emptied are merged away.
+ * <li>ORDER: the leaves move, in key order, to the lowest page numbers of the file, so a
+ * scan reads the file front to back. Pages in the way are moved to empty pages.
+ * <li>PACK: internal and header pages move to the lowest empty pages.
+ * <li>TRUNCATE: the empty pages now at the end of the file are cut off.
+ * </ol>
+ * A transaction that conflicts with another one is aborted and retried, and a phase
+ * that finds the tree changed under it starts over. {@link #report(BTreeFile)} shows
+ * how far the file has come.
+ *
+ * @see BTreeFile#movePage(TransactionId, Map, BTreePageId, int)
+ * @see BTreeFile#truncateEmptyPages(TransactionId, Map)
+ */
+public class BTreeCompactor implements Runnable {
+
+	public enum Phase { IDLE, FILL, ORDER, PACK, TRUNCATE, DONE }
+
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+	private static final int MAX_RETRIES = 10;
+	private static final int MAX_RESTARTS = 3;
+	private static final int FILL_WINDOW = 8;
+
+	private final BTreeFile file;
+	private final double fillFactor;
+	private volatile boolean cancelled;
+	private volatile Phase phase = Phase.IDLE;
+	private volatile Exception error;
+	private volatile int pagesFreed;
+	private volatile int pagesMoved;
+	private volatile int pagesTruncated;
+
+	// 页号 -> 页面id，包括从根能走到的所有页面和header页；可能过时，用之前都要检查
+	private Map<Integer, BTreePageId> pages;
+
+	/**
+	 * The tree changed in a way the current phase cannot follow, e.g. a page it
+	 * remembered was merged away by another transaction.
+	 */
+	private static class TreeChangedException extends DbException {
+		private static final long serialVersionUID = 1L;
+
+		TreeChangedException(BTreePageId pid) {
+			super("B+ tree changed under the compactor at " + pid);
+		}
+	}
+
+	/**
+	 * A page of the tree is in the way of the leaf to place next. It is moved away in a
+	 * transaction of its own, so that the leaf is only ever moved to a page that was
+	 * empty when its transaction began.
+	 */
+	private static class PageInTheWayException extends DbException {
+		private static final long serialVersionUID = 1L;
+
+		private final BTreePageId pid;
+
+		PageInTheWayException(BTreePageId pid) {
+			super("page " + pid + " is in the way of the compactor");
+			this.pid = pid;
+		}
+	}
+
+	/** One short transaction of the compaction. */
+	private interface Step<T> {
+		T run(TransactionId tid, Map<PageId, Page> dirtypages)
+				throws DbException, IOException, TransactionAbortedException;
+	}
+
+	/**
+	 * How full and how ordered the pages of a BTreeFile are.
+	 */
+	public static class Report {
+		private int filePages;
+		private int leafPages;
+		private int internalPages;
+		private int headerPages;
+		private int emptyPages;
+		private int tuples;
+		private int leafCapacity;
+		private int scatteredLeaves;
+
+		/** @return the number of pages in the file, not counting the root pointer page */
+		public int getFilePages() {
+			return filePages;
+		}
+
+		public int getLeafPages() {
+			return leafPages;
+		}
+
+		public int getInternalPages() {
+			return internalPages;
+		}
+
+		public int getHeaderPages() {
+			return headerPages;
+		}
+
+		/** @return the number of pages inside the file that are marked empty */
+		public int getEmptyPages() {
+			return emptyPages;
+		}
+
+		public int getTuples() {
+			return tuples;
+		}
+
+		/** @return the fraction of the tuple slots of all leaves that is used */
+		public double getLeafFill() {
+			return leafCapacity == 0 ? 0 : (double) tuples / leafCapacity;
+		}
+
+		/**
+		 * @return the number of leaves that do not directly follow their left sibling in
+		 *         the file, not counting header pages in between
+		 */
+		public int getScatteredLeaves() {
+			return scatteredLeaves;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d pages: %d leaf (%.1f%% full, %d scattered), %d internal, %d header, %d empty",
+					filePages, leafPages, 100 * getLeafFill(), scatteredLeaves, internalPages, headerPages, emptyPages);
+		}
+	}
+
+	/**
+	 * Create a compactor filling leaves to DEFAULT_FILL_FACTOR.
+	 *
+	 * @param file the B+ tree to compact
+	 */
+	public BTreeCompactor(BTreeFile file) {
+		this(file, DEFAULT_FILL_FACTOR);
+	}
+
+	/**
+	 * @param file the B+ tree to compact
+	 * @param fillFactor the fraction of the tuple slots of a leaf to fill, between 0.5 and 1
+	 */
+	public BTreeCompactor(BTreeFile file, double fillFactor) {
+		if (fillFactor < 0.5 || fillFactor > 1)
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1: " + fillFactor);
+		this.file = file;
+		this.fillFactor = fillFactor;
+	}
+
+	/**
+	 * Run the compaction in a daemon thread.
+	 *
+	 * @return the thread, already started
+	 */
+	public Thread start() {
+		Thread thread = new Thread(this, "simpledb-compactor");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/** Stop the compaction after the transaction currently running. */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public Phase getPhase() {
+		return phase;
+	}
+
+	/** @return the exception that ended a compaction run by {@link #run()}, or null */
+	public Exception getError() {
+		return error;
+	}
+
+	/** @return the number of leaves merged away so far */
+	public int getPagesFreed() {
+		return pagesFreed;
+	}
+
+	/** @return the number of pages moved to another page number so far */
+	public int getPagesMoved() {
+		return pagesMoved;
+	}
+
+	/** @return the number of pages cut off the end of the file so far */
+	public int getPagesTruncated() {
+		return pagesTruncated;
+	}
+
+	public void run() {
+		try {
+			compact();
+		} catch (DbException | IOException | TransactionAbortedException e) {
+			error = e;
+		}
+	}
+
+	/**
+	 * Run all phases of the compaction in the calling thread.
+	 *
+	 * @throws TransactionAbortedException if a step kept conflicting with other transactions
+	 */
+	public void compact() throws DbException, IOException, TransactionAbortedException {
+		phase = Phase.FILL;
+		fill();
+		phase = Phase.ORDER;
+		order();
+		phase = Phase.PACK;
+		pack();
+		phase = Phase.TRUNCATE;
+		if (!cancelled)
+			pagesTruncated += execute(file::truncateEmptyPages);
+		phase = Phase.DONE;
+	}
+
+	/**
+	 * Run a step in a transaction of its own and commit it. A step aborted because of a
+	 * conflict with another transaction is rolled back and run again.
+	 */
+	private static <T> T execute(Step<T> step) throws DbException, IOException, TransactionAbortedException {
+		for (int attempt = 0; ; attempt++) {
+			Transaction t = new Transaction();
+			t.start();
+			Map<PageId, Page> dirtypages = new HashMap<>();
+			try {
+				T result = step.run(t.getId(), dirtypages);
+				for (Page p : dirtypages.values())
+					p.markDirty(true, t.getId());
+				t.commit();
+				return result;
+			} catch (TransactionAbortedException e) {
+				t.abort();
+				if (attempt == MAX_RETRIES)
+					throw e;
+			} catch (DbException | IOException | RuntimeException e) {
+				t.abort();
+				throw e;
+			}
+		}
+	}
+
+	/** Lock the left-most leaf, descending from the root. */
+	private BTreeLeafPage firstLeaf(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId pid = file.getRootPtrPage(tid, dirtypages).getRootId();
+		while (pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) file.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			pid = page.iterator().next().getLeftChild();
+		}
+		return (BTreeLeafPage) file.getPage(tid, dirtypages, pid, perm);
+	}
+
+	/**
+	 * Lock the parent of a page with read-write permission and check that it still points
+	 * to the page.
+	 *
+	 * @return the parent, or null if the page is the root
+	 * @throws TreeChangedException if the page is no longer part of the tree
+	 */
+	private BTreeInternalPage parentOf(TransactionId tid, Map<PageId, Page> dirtypages, BTreePage page)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId parentId = page.getParentId();
+		if (parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+			if (!page.getId().equals(file.getRootPtrPage(tid, dirtypages).getRootId()))
+				throw new TreeChangedException(page.getId());
+			return null;
+		}
+		BTreeInternalPage parent = (BTreeInternalPage) file.getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+		Iterator<BTreeEntry> it = parent.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (e.getLeftChild().equals(page.getId()) || e.getRightChild().equals(page.getId()))
+				return parent;
+		}
+		throw new TreeChangedException(page.getId());
+	}
+
+	/**
+	 * Lock a header page with read-write permission and check that it is still linked
+	 * from the root pointer.
+	 *
+	 * @throws TreeChangedException if the page is no longer a header page
+	 */
+	private void checkHeader(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId headerId = file.getRootPtrPage(tid, dirtypages).getHeaderId();
+		while (headerId != null && !headerId.equals(pid))
+			headerId = ((BTreeHeaderPage) file.getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+		if (headerId == null)
+			throw new TreeChangedException(pid);
+		file.getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+	}
+
+	/** Lock a page with read-write permission and check that it is still in use. */
+	private void check(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, IOException, TransactionAbortedException {
+		if (pid.pgcateg() == BTreePageId.HEADER)
+			checkHeader(tid, dirtypages, pid);
+		else
+			parentOf(tid, dirtypages, (BTreePage) file.getPage(tid, dirtypages, pid, Permissions.READ_WRITE));
+	}
+
+	/** The entry of parent between the two children, or null if they have different parents. */
+	private static BTreeEntry entryBetween(BTreeInternalPage parent, BTreePageId left, BTreePageId right) {
+		Iterator<BTreeEntry> it = parent.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (e.getLeftChild().equals(left) && e.getRightChild().equals(right))
+				return e;
+		}
+		return null;
+	}
+
+	private void fill() throws DbException, IOException, TransactionAbortedException {
+		BTreePageId leafId = null;
+		int restarts = 0;
+		while (!cancelled) {
+			BTreePageId current = leafId;
+			try {
+				leafId = execute((tid, dirtypages) -> fillStep(tid, dirtypages, current));
+			} catch (TreeChangedException e) {
+				if (++restarts > MAX_RESTARTS)
+					return;
+				leafId = null;
+				continue;
+			}
+			if (leafId == null)
+				return;
+		}
+	}
+
+	/**
+	 * Refill a run of up to FILL_WINDOW leaves under the same parent, starting at the
+	 * given one. If their tuples fit into fewer leaves filled to about the fill factor, they
+	 * are put back into the first leaves of the run and the rest are merged away.
+	 * The last leaf gets what is left over, or shares it with the one before so that
+	 * every leaf stays at least half full.
+	 *
+	 * @param leafId the first leaf of the run, or null for the left-most leaf
+	 * @return the leaf to start the next run at, or null at the end of the tree
+	 */
+	private BTreePageId fillStep(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId leafId)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeLeafPage first = leafId == null ? firstLeaf(tid, dirtypages, Permissions.READ_WRITE)
+				: (BTreeLeafPage) file.getPage(tid, dirtypages, leafId, Permissions.READ_WRITE);
+		BTreeInternalPage parent = parentOf(tid, dirtypages, first);
+		if (parent == null)
+			return null;
+		List<BTreeLeafPage> run = new ArrayList<>();
+		run.add(first);
+		int total = first.getNumTuples();
+		BTreePageId next = first.getRightSiblingId();
+		while (run.size() < FILL_WINDOW && next != null) {
+			if (entryBetween(parent, run.get(run.size() - 1).getId(), next) == null)
+				break;
+			BTreeLeafPage leaf = (BTreeLeafPage) file.getPage(tid, dirtypages, next, Permissions.READ_WRITE);
+			run.add(leaf);
+			total += leaf.getNumTuples();
+			next = leaf.getRightSiblingId();
+		}
+
+		int max = first.getMaxTuples();
+		int target = Math.min(max, (int) Math.ceil(max * fillFactor));
+		// 前面的叶子各放target个，剩下的放最后一个；剩下的太少就并到前一个叶子里，放不下就和前一个叶子平分
+		int keep = (total + target - 1) / target;
+		if (keep >= run.size()) {
+			// 这一段没有能省下的叶子；到了父节点的末尾就跳到下一个父节点
+			return run.size() < FILL_WINDOW || next == null ? next : run.get(1).getId();
+		}
+		int[] counts = new int[Math.max(1, keep)];
+		Arrays.fill(counts, target);
+		counts[counts.length - 1] = total - (counts.length - 1) * target;
+		int rest = counts[counts.length - 1];
+		if (counts.length > 1 && rest < (max + 1) / 2) {
+			if (target + rest <= max) {
+				counts = Arrays.copyOf(counts, counts.length - 1);
+				counts[counts.length - 1] = target + rest;
+			} else {
+				counts[counts.length - 2] = (target + rest + 1) / 2;
+				counts[counts.length - 1] = (target + rest) / 2;
+			}
+		}
+		keep = counts.length;
+
+		// 先把所有tuple取出来，再按顺序放回前keep个叶子
+		List<Tuple> tuples = new ArrayList<>();
+		for (BTreeLeafPage leaf : run) {
+			List<Tuple> onLeaf = new ArrayList<>();
+			Iterator<Tuple> it = leaf.iterator();
+			while (it.hasNext())
+				onLeaf.add(it.next());
+			for (Tuple t : onLeaf)
+				leaf.deleteTuple(t);
+			tuples.addAll(onLeaf);
+		}
+		int from = 0;
+		for (int i = 0; i < keep; i++) {
+			for (Tuple t : tuples.subList(from, from + counts[i]))
+				run.get(i).insertTuple(t);
+			from += counts[i];
+		}
+
+		// 空出来的叶子依次并到最后一个保留的叶子上；父节点可能因此和兄弟合并，所以每次重新取
+		BTreeLeafPage last = run.get(keep - 1);
+		for (BTreeLeafPage empty : run.subList(keep, run.size())) {
+			parent = (BTreeInternalPage) file.getPage(tid, dirtypages, last.getParentId(), Permissions.READ_WRITE);
+			BTreeEntry entry = entryBetween(parent, last.getId(), empty.getId());
+			if (entry == null)
+				throw new DbException("leaf " + empty.getId() + " does not follow " + last.getId() + " in its parent");
+			file.mergeLeafPages(tid, dirtypages, last, empty, parent, entry);
+			pagesFreed++;
+		}
+
+		// 更新分隔键：变大的从右往左改，变小的从左往右改，这样每一步父节点里的键都是有序的
+		if (keep == 1)
+			return last.getId();
+		parent = (BTreeInternalPage) file.getPage(tid, dirtypages, last.getParentId(), Permissions.READ_WRITE);
+		BTreeEntry[] entries = new BTreeEntry[keep - 1];
+		Field[] keys = new Field[keep - 1];
+		for (int i = 0; i + 1 < keep; i++) {
+			entries[i] = entryBetween(parent, run.get(i).getId(), run.get(i + 1).getId());
+			keys[i] = BTreeFile.separator(file.keyOf(run.get(i).reverseIterator().next()),
+					file.keyOf(run.get(i + 1).iterator().next()));
+		}
+		for (int i = keep - 2; i >= 0; i--) {
+			if (keys[i].compare(Op.GREATER_THAN_OR_EQ, entries[i].getKey())) {
+				entries[i].setKey(keys[i]);
+				parent.updateEntry(entries[i]);
+			}
+		}
+		for (int i = 0; i + 1 < keep; i++) {
+			if (keys[i].compare(Op.LESS_THAN, entries[i].getKey())) {
+				entries[i].setKey(keys[i]);
+				parent.updateEntry(entries[i]);
+			}
+		}
+		return last.getId();
+	}
+
+	/**
+	 * Find the page number of every page reachable from the root pointer, in breadth-first
+	 * order, and of the header pages.
+	 */
+	private Map<Integer, BTreePageId> pageMap() throws DbException, IOException, TransactionAbortedException {
+		return execute((tid, dirtypages) -> {
+			Map<Integer, BTreePageId> result = new LinkedHashMap<>();
+			BTreeRootPtrPage rootPtr = file.getRootPtrPage(tid, dirtypages);
+			BTreePageId headerId = rootPtr.getHeaderId();
+			while (headerId != null) {
+				result.put(headerId.getPageNumber(), headerId);
+				headerId = ((BTreeHeaderPage) file.getPage(tid, dirtypages, headerId, Permissions.READ_ONLY))
+						.getNextPageId();
+			}
+			Deque<BTreePageId> queue = new ArrayDeque<>();
+			queue.add(rootPtr.getRootId());
+			while (!queue.isEmpty()) {
+				BTreePageId pid = queue.poll();
+				result.put(pid.getPageNumber(), pid);
+				if (pid.pgcateg() != BTreePageId.INTERNAL)
+					continue;
+				BTreeInternalPage page = (BTreeInternalPage) file.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+				Iterator<BTreeEntry> it = page.iterator();
+				BTreeEntry e = it.next();
+				queue.add(e.getLeftChild());
+				queue.add(e.getRightChild());
+				while (it.hasNext())
+					queue.add(it.next().getRightChild());
+			}
+			return result;
+		});
+	}
+
+	private void order() throws DbException, IOException, TransactionAbortedException {
+		pages = pageMap();
+		BTreePageId leafId = null;
+		int restarts = 0;
+		while (!cancelled) {
+			BTreePageId previous = leafId;
+			try {
+				try {
+					leafId = execute((tid, dirtypages) -> orderStep(tid, dirtypages, previous));
+				} catch (PageInTheWayException e) {
+					// 挡路的页单独提交，下一轮再放同一个叶子
+					execute((tid, dirtypages) -> moveAway(tid, dirtypages, e.pid));
+					continue;
+				}
+			} catch (TreeChangedException e) {
+				if (++restarts > MAX_RESTARTS)
+					return;
+				pages = pageMap();
+				leafId = null;
+				continue;
+			}
+			if (leafId == null)
+				return;
+		}
+	}
+
+	/**
+	 * Move the leaf after the given one to the first page number after it that is empty.
+	 *
+	 * @param previousId the leaf placed last, or null to place the left-most leaf
+	 * @return the leaf placed, or null at the end of the tree
+	 * @throws PageInTheWayException if a page of the tree comes first, to be moved out of the way
+	 */
+	private BTreePageId orderStep(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId previousId)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeLeafPage leaf;
+		if (previousId == null) {
+			leaf = firstLeaf(tid, dirtypages, Permissions.READ_WRITE);
+		} else {
+			BTreeLeafPage previous = (BTreeLeafPage) file.getPage(tid, dirtypages, previousId, Permissions.READ_ONLY);
+			if (previous.getRightSiblingId() == null)
+				return null;
+			leaf = (BTreeLeafPage) file.getPage(tid, dirtypages, previous.getRightSiblingId(), Permissions.READ_WRITE);
+			if (!previousId.equals(leaf.getLeftSiblingId()))
+				throw new TreeChangedException(leaf.getId());
+		}
+		parentOf(tid, dirtypages, leaf);
+
+		int pgNo = previousId == null ? 1 : previousId.getPageNumber() + 1;
+		for (; pgNo < leaf.getId().getPageNumber(); pgNo++) {
+			if (file.claimEmptyPage(tid, dirtypages, pgNo))
+				break;
+			BTreePageId occupant = pages.get(pgNo);
+			if (occupant != null)
+				throw new PageInTheWayException(occupant);
+			// 不在树里的页留在原处
+		}
+		// 已经在合适的位置上，或者并发的分裂把它放到了前面
+		if (pgNo >= leaf.getId().getPageNumber())
+			return leaf.getId();
+		return move(tid, dirtypages, leaf.getId(), pgNo);
+	}
+
+	/** Move a page of the tree to the lowest empty page, or to a new page at the end. */
+	private BTreePageId moveAway(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, IOException, TransactionAbortedException {
+		check(tid, dirtypages, pid);
+		int pgNo = file.getLowestEmptyPageNo(tid, dirtypages);
+		if (pgNo == -1 || !file.claimEmptyPage(tid, dirtypages, pgNo))
+			pgNo = file.getEmptyPageNo(tid, dirtypages);
+		return move(tid, dirtypages, pid, pgNo);
+	}
+
+	private BTreePageId move(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, int pgNo)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId moved = (BTreePageId) file.movePage(tid, dirtypages, pid, pgNo).getId();
+		pages.remove(pid.getPageNumber());
+		pages.put(pgNo, moved);
+		pagesMoved++;
+		return moved;
+	}
+
+	private void pack() throws DbException, IOException, TransactionAbortedException {
+		pages = pageMap();
+		for (BTreePageId pid : new ArrayList<>(pages.values())) {
+			if (cancelled)
+				return;
+			if (pid.pgcateg() == BTreePageId.LEAF)
+				continue;
+			try {
+				execute((tid, dirtypages) -> {
+					int pgNo = file.getLowestEmptyPageNo(tid, dirtypages);
+					if (pgNo == -1 || pgNo > pid.getPageNumber())
+						return null;
+					check(tid, dirtypages, pid);
+					if (!file.claimEmptyPage(tid, dirtypages, pgNo))
+						return null;
+					return move(tid, dirtypages, pid, pgNo);
+				});
+			} catch (TreeChangedException e) {
+				// 这一页已经不在树里了，跳过
+			}
+		}
+	}
+
+	/**
+	 * Measure the pages of a B+ tree. The pages are read in one transaction with
+	 * read-only permission, so the report is consistent even while other transactions
+	 * or a compactor are changing the tree.
+	 *
+	 * @param file the B+ tree
+	 * @return the report
+	 */
+	public static Report report(BTreeFile file) throws DbException, IOException, TransactionAbortedException {
+		return execute((tid, dirtypages) -> {
+			Report report = new Report();
+			report.filePages = file.numPages();
+			Set<Integer> headers = new HashSet<>();
+			BTreePageId headerId = file.getRootPtrPage(tid, dirtypages).getHeaderId();
+			for (int first = 0; headerId != null; first += BTreeHeaderPage.getNumSlots()) {
+				BTreeHeaderPage header = (BTreeHeaderPage) file.getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+				headers.add(headerId.getPageNumber());
+				for (int slot = 0; slot < BTreeHeaderPage.getNumSlots() && first + slot <= report.filePages; slot++) {
+					if (!header.isSlotUsed(slot))
+						report.emptyPages++;
+				}
+				headerId = header.getNextPageId();
+			}
+			report.headerPages = headers.size();
+
+			Deque<BTreePageId> queue = new ArrayDeque<>();
+			queue.add(file.getRootPtrPage(tid, dirtypages).getRootId());
+			BTreePageId leafId = null;
+			while (!queue.isEmpty()) {
+				BTreePageId pid = queue.poll();
+				if (pid.pgcateg() != BTreePageId.INTERNAL) {
+					leafId = pid;
+					break;
+				}
+				report.internalPages++;
+				BTreeInternalPage page = (BTreeInternalPage) file.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+				Iterator<BTreeEntry> it = page.iterator();
+				BTreeEntry e = it.next();
+				queue.add(e.getLeftChild());
+				queue.add(e.getRightChild());
+				while (it.hasNext())
+					queue.add(it.next().getRightChild());
+			}
+			// 队列里剩下的都是叶子，按兄弟指针从左到右走一遍
+			while (leafId != null && leafId.pgcateg() == BTreePageId.LEAF) {
+				BTreeLeafPage leaf = (BTreeLeafPage) file.getPage(tid, dirtypages, leafId, Permissions.READ_ONLY);
+				report.leafPages++;
+				report.tuples += leaf.getNumTuples();
+				report.leafCapacity += leaf.getMaxTuples();
+				BTreePageId left = leaf.getLeftSiblingId();
+				if (left != null) {
+					int expected = left.getPageNumber() + 1;
+					while (headers.contains(expected))
+						expected++;
+					if (leafId.getPageNumber() != expected)
+						report.scatteredLeaves++;
+				}
+				leafId = leaf.getRightSiblingId();
+			}
+			return report;
+		});
+	}
+}
@@ -2,8 +2,10 @@ package simpledb.index;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.common.Database;
+import simpledb.common.Type;
 import simpledb.common.Permissions;
 import simpledb.execution.IndexPredicate;
 import simpledb.execution.Predicate.Op;
@@ -32,7 +34,14 @@ public class BTreeFile implements DbFile {
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
-	private final int keyField;
+	private final int[] keyFields;
+	private volatile int readAhead = DEFAULT_READ_AHEAD;
+	// findLeafPage的统计：乐观下降失败重试的次数，以及退回加锁下降的次数
+	private final AtomicLong optimisticRestarts = new AtomicLong();
+	private final AtomicLong lockedDescents = new AtomicLong();
+
+	/** Default number of leaves scans of a BTreeFile read ahead. */
+	public static final int DEFAULT_READ_AHEAD = 8;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -43,9 +52,28 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] { key }, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on several fields. Tuples are ordered
+	 * by their first key field, then by the second, and so on; the key of a
+	 * tuple is a {@link CompositeField} (see {@link #keyOf(Tuple, int[])}).
+	 * An {@link IndexPredicate} on such a tree may name a prefix of the key
+	 * fields, e.g. only the first one, to find all tuples whose key starts
+	 * with it.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keyFields - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keyFields, TupleDesc td) {
+		if (keyFields.length == 0)
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyFields = keyFields.clone();
 		this.td = td;
 	}
 
@@ -117,13 +145,7 @@ public class BTreeFile implements DbFile {
                             + BufferPool.getPageSize() + " bytes from BTreeFile");
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
+                return newPage(id, pageBuf);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -132,6 +154,63 @@ public class BTreeFile implements DbFile {
         // Ignore failures closing the file
     }
 
+	/**
+	 * Build an internal, leaf or header page of this file from the bytes read
+	 * from disk.
+	 */
+	private Page newPage(BTreePageId id, byte[] pageBuf) throws IOException {
+		if (id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, pageBuf, keyFields);
+		} else if (id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, pageBuf, keyFields);
+		} else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, pageBuf);
+		}
+	}
+
+	/**
+	 * Read several pages, reading runs of pages that are next to each other
+	 * on disk with a single read. Leaves of a bulk-loaded tree are stored in
+	 * key order, so read-ahead on them turns into large sequential reads.
+	 *
+	 * @see DbFile#readPages
+	 */
+	@Override
+	public List<Page> readPages(List<PageId> pids) {
+		Page[] pages = new Page[pids.size()];
+		int pageSize = BufferPool.getPageSize();
+		try (RandomAccessFile rf = new RandomAccessFile(f, "r")) {
+			int i = 0;
+			while (i < pids.size()) {
+				BTreePageId first = (BTreePageId) pids.get(i);
+				if (first.pgcateg() == BTreePageId.ROOT_PTR) {
+					pages[i] = readPage(first);
+					i++;
+					continue;
+				}
+				// 找出页号连续的一段，一次读完
+				int j = i + 1;
+				while (j < pids.size() && ((BTreePageId) pids.get(j)).pgcateg() != BTreePageId.ROOT_PTR
+						&& pids.get(j).getPageNumber() == first.getPageNumber() + (j - i))
+					j++;
+				byte[] buf = new byte[(j - i) * pageSize];
+				long offset = BTreeRootPtrPage.getPageSize() + (long) (first.getPageNumber() - 1) * pageSize;
+				if (offset + buf.length > rf.length())
+					throw new IllegalArgumentException("Read past end of table");
+				rf.seek(offset);
+				rf.readFully(buf);
+				Debug.log(1, "BTreeFile.readPages: read pages %d to %d", first.getPageNumber(),
+						first.getPageNumber() + j - i - 1);
+				for (int k = i; k < j; k++)
+					pages[k] = newPage((BTreePageId) pids.get(k), Arrays.copyOfRange(buf, (k - i) * pageSize, (k - i + 1) * pageSize));
+				i = j;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return Arrays.asList(pages);
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -163,17 +242,124 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on, or of the
+	 * first key field if it is keyed on several
 	 */
 	public int keyField() {
-		return keyField;
+		return keyFields[0];
+	}
+
+	/**
+	 * Set how many leaves to the right of the current one scans of this file
+	 * read ahead of time. 0 turns read-ahead off.
+	 *
+	 * @param n - the number of leaves to read ahead
+	 */
+	public void setReadAhead(int n) {
+		if (n < 0)
+			throw new IllegalArgumentException("negative read-ahead");
+		readAhead = n;
+	}
+
+	/**
+	 * Returns the number of leaves scans of this file read ahead
+	 */
+	public int getReadAhead() {
+		return readAhead;
+	}
+
+	/**
+	 * Returns the number of times an optimistic descent to a leaf of this
+	 * file found the path changed and was restarted
+	 */
+	public long getOptimisticRestarts() {
+		return optimisticRestarts.get();
+	}
+
+	/**
+	 * Returns the number of descents to a leaf of this file that gave up on
+	 * reading optimistically and locked the internal pages instead
+	 */
+	public long getLockedDescents() {
+		return lockedDescents.get();
+	}
+
+	/**
+	 * Ask the buffer pool to read the leaves following leaf in the background.
+	 * Only siblings under the same parent are read ahead, since those can be
+	 * found without locking anything; the next parent is looked at once the
+	 * scan gets there.
+	 *
+	 * @param leaf - the leaf a scan just moved to
+	 * @param n - the number of leaves to read ahead
+	 * @param op - the operator of the predicate that ends the scan, or null
+	 * @param bound - the value of that predicate, or null if the scan runs to the end
+	 * @return the number of leaves asked for
+	 * @see BTreeInternalPage#childrenAfter(BTreePageId, int, Op, Field)
+	 */
+	int readAhead(BTreeLeafPage leaf, int n, Op op, Field bound) {
+		BTreePageId parentId = leaf.getParentId();
+		if (n <= 0 || parentId.pgcateg() != BTreePageId.INTERNAL)
+			return 0;
+		try {
+			BTreeInternalPage parent = (BTreeInternalPage) Database.getBufferPool().getPageOptimistic(parentId);
+			List<BTreePageId> next = parent.childrenAfter(leaf.getId(), n, op, bound);
+			if (!next.isEmpty())
+				Database.getBufferPool().prefetchPages(this, next);
+			return next.size();
+		} catch (DbException | ClassCastException e) {
+			// 预读只是优化，读不到父节点就不预读
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on, most
+	 * significant first
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Returns the key of tuple t in this B+ tree
+	 */
+	public Field keyOf(Tuple t) {
+		return keyOf(t, keyFields);
+	}
+
+	/**
+	 * @param t - a tuple
+	 * @param keyFields - the fields a B+ tree is keyed on
+	 * @return the key of t in a B+ tree keyed on keyFields: the key field
+	 *         itself if there is only one, or a CompositeField of all of them
+	 */
+	public static Field keyOf(Tuple t, int[] keyFields) {
+		if (keyFields.length == 1)
+			return t.getField(keyFields[0]);
+		Field[] fields = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++)
+			fields[i] = t.getField(keyFields[i]);
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * Number of times the optimistic descent in findLeafPage is restarted
+	 * before falling back to locking the internal pages on the way down.
+	 */
+	public static final int MAX_OPTIMISTIC_RETRIES = 3;
+
+	/**
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most
+	 * page possibly containing the key field f. The leaf node is locked with
+	 * permission perm.
+	 * 
+	 * The root pointer and the internal nodes are read optimistically: they are
+	 * not locked, instead the version of every internal page on the path is
+	 * recorded and validated once the leaf is locked. If any of them changed,
+	 * or was evicted from the buffer pool in the meantime, the descent is
+	 * restarted. After MAX_OPTIMISTIC_RETRIES failed attempts all internal nodes
+	 * along the path are locked with READ_ONLY permission instead.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
@@ -188,67 +374,114 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
                                        Field f)
 					throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
-		BTreePageId curPageId = rootPtr.getRootId();
-		BTreePage curPage = null;
-		// f为null时，返回最左边的叶节点
-		if(f==null){
-			while(!(curPageId.pgcateg()==BTreePageId.LEAF)) {
-				BTreeInternalPage bTreeInternalPage =(BTreeInternalPage) getPage(tid, dirtypages, curPageId, Permissions.READ_ONLY);
-				int numSlots = bTreeInternalPage.getMaxEntries() + 1;
-				for (int i = 1; i < numSlots; i++) {
-					if (bTreeInternalPage.isSlotUsed(i)) {
-						BTreePageId bTreePageId=bTreeInternalPage.getChildId(i-1);// 取最左边的key的左边的子节点
-						curPageId=bTreePageId;
-						break;
-					}
-				}
+		return findLeafPage(tid, dirtypages, perm, f, false);
+	}
+
+	/**
+	 * Like {@link #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)},
+	 * but if last is true find the right-most leaf page possibly containing f
+	 * instead, or the right-most leaf page if f is null.
+	 *
+	 * @see BTreeInternalPage#findChild(Field, boolean)
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm,
+									   Field f, boolean last)
+					throws DbException, TransactionAbortedException {
+		for (int attempt = 0; attempt < MAX_OPTIMISTIC_RETRIES; attempt++) {
+			BTreeLeafPage leafPage = findLeafPageOptimistic(tid, dirtypages, perm, f, last);
+			if (leafPage != null)
+				return leafPage;
+			optimisticRestarts.incrementAndGet();
+		}
+		lockedDescents.incrementAndGet();
+		return findLeafPageLocked(tid, dirtypages, perm, f, last);
+	}
+
+	/**
+	 * One attempt of the optimistic descent used by findLeafPage.
+	 * 
+	 * @return the locked leaf page, or null if a concurrent modification was
+	 * detected and the caller has to restart
+	 */
+	private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm,
+												 Field f, boolean last)
+					throws DbException, TransactionAbortedException {
+		List<BTreeInternalPage> path = new ArrayList<>();
+		List<Long> versions = new ArrayList<>();
+		BTreeRootPtrPage rootPtr;
+		BTreePageId curPageId;
+		BTreePageId rootId;
+		try {
+			rootPtr = (BTreeRootPtrPage) getPageOptimistic(dirtypages, BTreeRootPtrPage.getId(tableid));
+			rootId = rootPtr.getRootId();
+			curPageId = rootId;
+			while (curPageId != null && curPageId.pgcateg() != BTreePageId.LEAF) {
+				BTreeInternalPage internalPage = (BTreeInternalPage) getPageOptimistic(dirtypages, curPageId);
+				long version = internalPage.readVersion();
+				curPageId = internalPage.findChild(f, last);
+				if (!internalPage.validateVersion(version))
+					return null;
+				path.add(internalPage);
+				versions.add(version);
 			}
-			BTreeLeafPage firstLeftLeafPage=(BTreeLeafPage) getPage(tid, dirtypages, curPageId, Permissions.READ_WRITE);
-			return firstLeftLeafPage;
+		} catch (RuntimeException e) {
+			// 没有加锁读取的页面可能正处于修改过程中，读到不一致的内容时直接重试
+			return null;
 		}
+		if (curPageId == null)
+			return null;
+
+		BTreeLeafPage leafPage = (BTreeLeafPage) getPage(tid, dirtypages, curPageId, perm);
 
+		// the leaf is locked now, make sure the path that led us here is still valid
+		if (!rootId.equals(rootPtr.getRootId()) || !isCurrent(dirtypages, rootPtr) || !isCurrent(dirtypages, leafPage))
+			return null;
+		for (int i = 0; i < path.size(); i++) {
+			BTreeInternalPage internalPage = path.get(i);
+			if (!internalPage.validateVersion(versions.get(i)) || !isCurrent(dirtypages, internalPage))
+				return null;
+		}
+		return leafPage;
+	}
+
+	/**
+	 * Locked version of findLeafPage: every internal node along the path is
+	 * locked with READ_ONLY permission.
+	 */
+	private BTreeLeafPage findLeafPageLocked(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm,
+											 Field f, boolean last)
+					throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		BTreePageId curPageId = rootPtr.getRootId();
 		while(!(curPageId.pgcateg()==BTreePageId.LEAF)) {
 			BTreeInternalPage bTreeInternalPage =(BTreeInternalPage) getPage(tid, dirtypages, curPageId, Permissions.READ_ONLY);
-			int numSlots = bTreeInternalPage.getMaxEntries() + 1;
-			boolean curpageUpdated=false;
-			for (int i = 1; i < numSlots; i++) {
-				if (bTreeInternalPage.isSlotUsed(i)) {
-					if (bTreeInternalPage.getKey(i).compare(Op.GREATER_THAN_OR_EQ, f)) {
-						BTreePageId bTreePageId=bTreeInternalPage.getChildId(i-1);// 取该key的左边的子节点
-						curPageId=bTreePageId;
-						curpageUpdated=true;
-						break;
-					}
-				}
-			}
-			if(!curpageUpdated){
-				for(int i=numSlots-1;i>0;i--){// 从右侧开始，找到第一个key，取该key的右边的子节点
-					if (bTreeInternalPage.isSlotUsed(i)) {
-						BTreePageId bTreePageId=bTreeInternalPage.getChildId(i);
-						curPageId=bTreePageId;
-						curpageUpdated=true;
-					}
-				}
-			}
+			curPageId = bTreeInternalPage.findChild(f, last);
+			if(curPageId == null)
+				throw new DbException("internal page " + bTreeInternalPage.getId().getPageNumber() + " has no entries");
 		}
-		BTreeLeafPage leafPage=(BTreeLeafPage) getPage(tid, dirtypages, curPageId, Permissions.READ_WRITE);
-		Iterator<Tuple> bTreeLeafPageReverseIterator=leafPage.reverseIterator();
-		boolean leafPageFinded=false;
-		if(bTreeLeafPageReverseIterator.hasNext()){
-			Tuple t=bTreeLeafPageReverseIterator.next();
-			System.out.println("test0  "+t.getField(this.keyField)+":"+f);
-			if(t.getField(this.keyField).compare(Op.GREATER_THAN_OR_EQ,f)){
-				leafPageFinded=true;
-			}
+		return (BTreeLeafPage) getPage(tid, dirtypages, curPageId, perm);
+	}
+
+	/**
+	 * Fetch a page for the optimistic descent without locking it. Pages
+	 * already dirtied by this operation are used as they are.
+	 */
+	private Page getPageOptimistic(Map<PageId, Page> dirtypages, PageId pid) throws DbException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
 		}
-		//因为是寻找left-most page possibly containing the key field f（此方法的注释中有描述），所以不需要这段代码
-//		if(!leafPageFinded){
-//			curPageId=leafPage.getRightSiblingId();
-//			leafPage=(BTreeLeafPage) getPage(tid, dirtypages, curPageId, Permissions.READ_WRITE);
-//			leafPageFinded=true;
-//		}
-        return leafPage;
+		return Database.getBufferPool().getPageOptimistic(pid);
+	}
+
+	/**
+	 * @return true if page is still the instance this operation would see
+	 * when fetching its page id again
+	 */
+	private boolean isCurrent(Map<PageId, Page> dirtypages, Page page) {
+		if(dirtypages.containsKey(page.getId())) {
+			return dirtypages.get(page.getId()) == page;
+		}
+		return Database.getBufferPool().isCached(page);
 	}
 	
 	/**
@@ -268,6 +501,19 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
 	}
 
+	/**
+	 * Find the right-most leaf page possibly containing the key field f, or
+	 * the right-most leaf page if f is null. Used by the reverse iterators.
+	 *
+	 * @param tid - the transaction id
+	 * @param f - the field to search for
+	 * @return the right-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLastLeafPage(TransactionId tid, Field f)
+					throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, new HashMap<>(), Permissions.READ_ONLY, f, true);
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -291,16 +537,50 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeLeafPage splitLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field field)
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		return splitLeafPage(tid, dirtypages, page, field, page.getNumTuples() - page.getNumTuples() / 2);
+	}
+
+	/**
+	 * Like {@link #splitLeafPage(TransactionId, Map, BTreeLeafPage, Field)},
+	 * but keep the given number of tuples on the left page instead of half of
+	 * them. Right-heavy splits leave little room on the left page when the
+	 * tuples to come all go to the right.
+	 *
+	 * @param keep - the number of tuples to keep on page, less than the number of tuples on it
+	 */
+	private BTreeLeafPage splitLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page,
+			Field field, int keep)
+			throws DbException, IOException, TransactionAbortedException {
+		// 键较大的部分搬到新页面，新页面接在原页面右边
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+		int moveCount = page.getNumTuples() - keep;
+		List<Tuple> moved = new ArrayList<>();
+		Iterator<Tuple> it = page.reverseIterator();
+		while (moved.size() < moveCount && it.hasNext()) {
+			moved.add(it.next());
+		}
+		for (Tuple t : moved) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		BTreePageId oldRightId = page.getRightSiblingId();
+		newPage.setLeftSiblingId(page.getId());
+		newPage.setRightSiblingId(oldRightId);
+		page.setRightSiblingId(newPage.getId());
+		if (oldRightId != null) {
+			BTreeLeafPage oldRight = (BTreeLeafPage) getPage(tid, dirtypages, oldRightId, Permissions.READ_WRITE);
+			oldRight.setLeftSiblingId(newPage.getId());
+		}
+
+		// 新页面的第一个键复制到父节点，字符串键只复制能区分两个页面的最短前缀
+		Field midKey = separator(keyOf(page.reverseIterator().next()), keyOf(moved.get(moved.size() - 1)));
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midKey);
+		parent.insertEntry(new BTreeEntry(midKey, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, midKey) ? newPage : page;
 	}
 	
 	/**
@@ -328,16 +608,34 @@ public class BTreeFile implements DbFile {
 	public BTreeInternalPage splitInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		// 右半部分的entry搬到新页面，中间的键推到父节点
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+		// 按占用的空间而不是entry的个数平分，键长度不固定时两边才都有空间
+		int half = page.getUsedSpace() / 2;
+		int movedSpace = 0;
+		List<BTreeEntry> moved = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		BTreeEntry mid = it.next();
+		while (movedSpace + page.getEntrySize(mid.getKey()) <= half) {
+			movedSpace += page.getEntrySize(mid.getKey());
+			moved.add(mid);
+			mid = it.next();
+		}
+		for (BTreeEntry e : moved) {
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+		page.deleteKeyAndRightChild(mid);
+		updateParentPointers(tid, dirtypages, newPage);
+
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid.getKey());
+		mid.setLeftChild(page.getId());
+		mid.setRightChild(newPage.getId());
+		parent.insertEntry(mid);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, mid.getKey()) ? newPage : page;
 	}
 	
 	/**
@@ -384,7 +682,7 @@ public class BTreeFile implements DbFile {
 		}
 
 		// split the parent if needed
-		if(parent.getNumEmptySlots() == 0) {
+		if(parent.getNumEmptySlots() < parent.getEntrySize(field)) {
 			parent = splitInternalPage(tid, dirtypages, parent, field);
 		}
 
@@ -487,6 +785,25 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
+		// find and lock the left-most leaf page corresponding to the key field,
+		// and split the leaf page if there are no more slots available
+		BTreeLeafPage leafPage = findLeafPageForInsert(tid, dirtypages, keyOf(t));
+		if(leafPage.getNumEmptySlots() == 0) {
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, keyOf(t));	
+		}
+
+		// insert the tuple into the leaf page
+		leafPage.insertTuple(t);
+
+        return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * Find and lock with READ_WRITE permission the left-most leaf page
+	 * corresponding to key, creating the root page of an empty tree first.
+	 */
+	private BTreeLeafPage findLeafPageForInsert(TransactionId tid, Map<PageId, Page> dirtypages, Field key)
+			throws DbException, IOException, TransactionAbortedException {
 		// get a read lock on the root pointer page and use it to locate the root page
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
@@ -496,18 +813,107 @@ public class BTreeFile implements DbFile {
 			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
 			rootPtr.setRootId(rootId);
 		}
+		return findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, key);
+	}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+	/** Share of a leaf the left page keeps when batch inserts append past its last key. */
+	public static final double DEFAULT_APPEND_FILL_FACTOR = 0.9;
+
+	/**
+	 * Insert several tuples into this BTreeFile.
+	 * 
+	 * @see #insertTuples(TransactionId, List, double)
+	 */
+	@Override
+	public List<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		return insertTuples(tid, tuples, DEFAULT_APPEND_FILL_FACTOR);
+	}
+
+	/**
+	 * Insert several tuples into this BTreeFile. The tuples are sorted by key
+	 * and inserted into the current leaf for as long as their keys belong in
+	 * it, so the tree is only searched from the root once per leaf instead of
+	 * once per tuple.
+	 * <p>
+	 * When a tuple goes past the last key of a full leaf and enough of the
+	 * batch follows it to fill at least half of a page, the leaf is split
+	 * right-heavy: fillFactor of it stays on the left page and the rest of the
+	 * batch goes to the right one. Appending sorted tuples thus leaves pages
+	 * fillFactor full rather than half full.
+	 * 
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to insert, in any order
+	 * @param fillFactor - the share of a full leaf to keep on the left page of a right-heavy split, in (0.5, 1]
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #insertTuple(TransactionId, Tuple)
+	 */
+	public List<Page> insertTuples(TransactionId tid, List<Tuple> tuples, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		if (fillFactor <= 0.5 || fillFactor > 1)
+			throw new IllegalArgumentException("fill factor must be in (0.5, 1]");
+		List<Tuple> sorted = new ArrayList<>(tuples);
+		sorted.sort(new BTreeFileEncoder.TupleComparator(keyFields));
+
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreeLeafPage leafPage = null;
+		Field hi = null; // the largest key that can go to leafPage, null for any
+		for (int i = 0; i < sorted.size(); i++) {
+			Tuple t = sorted.get(i);
+			Field key = keyOf(t);
+			boolean moved = false;
+			if (leafPage == null || (hi != null && !key.compare(Op.LESS_THAN_OR_EQ, hi))) {
+				// 超出了当前叶子的范围，重新从根往下找
+				leafPage = findLeafPageForInsert(tid, dirtypages, key);
+				moved = true;
+			}
+			if (leafPage.getNumEmptySlots() == 0) {
+				int keep = leafPage.getNumTuples() - leafPage.getNumTuples() / 2;
+				if (key.compare(Op.GREATER_THAN, keyOf(leafPage.reverseIterator().next()))
+						&& fitsRemaining(sorted, i, hi, leafPage.getMaxTuples() / 2))
+					keep = Math.min((int) Math.ceil(leafPage.getNumTuples() * fillFactor), leafPage.getNumTuples() - 1);
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, key, keep);
+				moved = true;
+			}
+			leafPage.insertTuple(t);
+			// 分裂之后即使还在原来的叶子上，它的范围也变小了
+			if (moved)
+				hi = upperBound(dirtypages, leafPage);
 		}
+		return new ArrayList<>(dirtypages.values());
+	}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
+	/**
+	 * @return true if at least n of the sorted tuples from index from on have
+	 * keys of at most hi (any key if hi is null)
+	 */
+	private boolean fitsRemaining(List<Tuple> sorted, int from, Field hi, int n) {
+		if (from + n > sorted.size())
+			return false;
+		return hi == null || keyOf(sorted.get(from + n - 1)).compare(Op.LESS_THAN_OR_EQ, hi);
+	}
 
-        return new ArrayList<>(dirtypages.values());
+	/**
+	 * The largest key that may be inserted into a leaf without searching for
+	 * it from the root: null for the right-most leaf, otherwise the key right
+	 * of it in its parent. If the parent cannot be read without locking it,
+	 * the largest key on the leaf, which is always safe. leaf must not be
+	 * empty.
+	 */
+	private Field upperBound(Map<PageId, Page> dirtypages, BTreeLeafPage leaf) {
+		if (leaf.getRightSiblingId() == null)
+			return null;
+		if (leaf.getParentId().pgcateg() == BTreePageId.INTERNAL) {
+			try {
+				BTreeInternalPage parent = (BTreeInternalPage) getPageOptimistic(dirtypages, leaf.getParentId());
+				Field key = parent.keyAfter(leaf.getId());
+				if (key != null)
+					return key;
+			} catch (DbException | RuntimeException e) {
+				// 读不到父节点时退回到叶子里最大的key
+			}
+		}
+		return keyOf(leaf.reverseIterator().next());
 	}
 	
 	/**
@@ -594,6 +1000,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 		else if(rightSiblingId != null) {	
@@ -605,6 +1012,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 	}
@@ -624,11 +1032,23 @@ public class BTreeFile implements DbFile {
 	 */
 	public void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		// 两个页面平分tuple，然后父节点的键改为右边页面的第一个键
+		int toMove = sibling.getNumTuples() - (page.getNumTuples() + sibling.getNumTuples()) / 2;
+		List<Tuple> moved = new ArrayList<>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		while (moved.size() < toMove && it.hasNext()) {
+			moved.add(it.next());
+		}
+		for (Tuple t : moved) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		BTreeLeafPage left = isRightSibling ? page : sibling;
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		Iterator<Tuple> leftIt = left.reverseIterator();
+		entry.setKey(separator(leftIt.hasNext() ? keyOf(leftIt.next()) : null, keyOf(right.iterator().next())));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -663,22 +1083,24 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(leftSibling.getNumEmptySlots() >= maxEmptySlots && fits(leftSibling, page, leftEntry)) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 		else if(rightSiblingId != null) {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(rightSibling.getNumEmptySlots() >= maxEmptySlots && fits(page, rightSibling, rightEntry)) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 	}
@@ -703,11 +1125,31 @@ public class BTreeFile implements DbFile {
 	public void stealFromLeftInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		// 键经过父节点旋转：父节点的键拉下来放到page最左边，左兄弟最后一个键推上去
+		// 按占用的空间平分，搬过来的是依次拉下来的键
+		int target = (leftSibling.getUsedSpace() + page.getUsedSpace()) / 2;
+		int space = page.getUsedSpace();
+		Field pulledDown = parentEntry.getKey();
+		List<BTreeEntry> moved = new ArrayList<>();
+		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
+		while (moved.size() < leftSibling.getNumEntries() - 1 && space + page.getEntrySize(pulledDown) <= target) {
+			space += page.getEntrySize(pulledDown);
+			BTreeEntry e = it.next();
+			moved.add(e);
+			pulledDown = e.getKey();
+		}
+
+		BTreePageId firstChild = page.iterator().next().getLeftChild();
+		pulledDown = parentEntry.getKey();
+		for (BTreeEntry e : moved) {
+			page.insertEntry(new BTreeEntry(pulledDown, e.getRightChild(), firstChild));
+			leftSibling.deleteKeyAndRightChild(e);
+			pulledDown = e.getKey();
+			firstChild = e.getRightChild();
+		}
+		parentEntry.setKey(pulledDown);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -730,11 +1172,30 @@ public class BTreeFile implements DbFile {
 	public void stealFromRightInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		// 键经过父节点旋转：父节点的键拉下来放到page最右边，右兄弟第一个键推上去
+		int target = (rightSibling.getUsedSpace() + page.getUsedSpace()) / 2;
+		int space = page.getUsedSpace();
+		Field pulledDown = parentEntry.getKey();
+		List<BTreeEntry> moved = new ArrayList<>();
+		Iterator<BTreeEntry> it = rightSibling.iterator();
+		while (moved.size() < rightSibling.getNumEntries() - 1 && space + page.getEntrySize(pulledDown) <= target) {
+			space += page.getEntrySize(pulledDown);
+			BTreeEntry e = it.next();
+			moved.add(e);
+			pulledDown = e.getKey();
+		}
+
+		BTreePageId lastChild = page.reverseIterator().next().getRightChild();
+		pulledDown = parentEntry.getKey();
+		for (BTreeEntry e : moved) {
+			page.insertEntry(new BTreeEntry(pulledDown, lastChild, e.getLeftChild()));
+			rightSibling.deleteKeyAndLeftChild(e);
+			pulledDown = e.getKey();
+			lastChild = e.getLeftChild();
+		}
+		parentEntry.setKey(pulledDown);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -758,13 +1219,25 @@ public class BTreeFile implements DbFile {
 	public void mergeLeafPages(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
+		List<Tuple> moved = new ArrayList<>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while (it.hasNext()) {
+			moved.add(it.next());
+		}
+		for (Tuple t : moved) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		BTreePageId rightRightId = rightPage.getRightSiblingId();
+		leftPage.setRightSiblingId(rightRightId);
+		if (rightRightId != null) {
+			BTreeLeafPage rightRight = (BTreeLeafPage) getPage(tid, dirtypages, rightRightId, Permissions.READ_WRITE);
+			rightRight.setLeftSiblingId(leftPage.getId());
+		}
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -790,16 +1263,72 @@ public class BTreeFile implements DbFile {
 	public void mergeInternalPages(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
-		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		// 父节点的键拉下来，连接左页面最后一个child和右页面第一个child
+		List<BTreeEntry> moved = new ArrayList<>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while (it.hasNext()) {
+			moved.add(it.next());
+		}
+		BTreePageId leftLastChild = leftPage.reverseIterator().next().getRightChild();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), leftLastChild, moved.get(0).getLeftChild()));
+		for (BTreeEntry e : moved) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
+	/**
+	 * @return whether all entries of rightPage fit into leftPage together with
+	 * the key pulled down from parentEntry
+	 */
+	private boolean fits(BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeEntry parentEntry) {
+		return leftPage.getUsedSpace() + rightPage.getUsedSpace() + leftPage.getEntrySize(parentEntry.getKey())
+				<= leftPage.getMaxEntries();
+	}
+
+	/**
+	 * Split an internal page whose key was replaced by a longer one if it no
+	 * longer fits into the page's capacity. Only pages in the compact layout
+	 * can get there.
+	 *
+	 * @see BTreeInternalPage#getUsedSpace()
+	 */
+	private void splitIfOverfull(TransactionId tid, Map<PageId, Page> dirtypages, BTreeInternalPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		if (page.getUsedSpace() > page.getMaxEntries()) {
+			splitInternalPage(tid, dirtypages, page, page.iterator().next().getKey());
+		}
+	}
+
+	/**
+	 * The key to copy up to the parent when the keys up to left go into one
+	 * page and the keys from right into the next. For string keys this is the
+	 * shortest prefix of right that is still greater than left (suffix
+	 * truncation), so that internal pages hold short keys; other keys are
+	 * copied up as they are.
+	 *
+	 * @param left - the last key of the left page, or null if it is empty
+	 * @param right - the first key of the right page
+	 * @return a key greater than left and no greater than right, or right if
+	 *         the two are equal
+	 */
+	static Field separator(Field left, Field right) {
+		if (!(left instanceof StringField) || !(right instanceof StringField))
+			return right;
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int common = 0;
+		while (common < l.length() && common < r.length() && l.charAt(common) == r.charAt(common))
+			common++;
+		if (common >= r.length() - 1)
+			return right;
+		return new StringField(r.substring(0, common + 1), Type.STRING_LEN);
+	}
+
 	/**
 	 * Method to encapsulate the process of deleting an entry (specifically the key and right child) 
 	 * from a parent node.  If the parent becomes empty (no keys remaining), that indicates that it 
@@ -986,17 +1515,40 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		// create the new page
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
+		return getEmptyPage(tid, dirtypages, emptyPageNo, pgcateg);
+	}
+
+	/**
+	 * Wipe a page that the caller has already marked used, on disk and in the cache, and
+	 * return a clean copy locked with read-write permission. Nothing committed is lost,
+	 * since the page was empty when the caller claimed it.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param emptyPageNo - the page number of the new page
+	 * @param pgcateg - the BTreePageId category of the new page.  Either LEAF, INTERNAL, or HEADER
+	 * @return the new empty page
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int emptyPageNo, int pgcateg)
+			throws DbException, IOException, TransactionAbortedException {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
-		
+
+		// 先丢掉各个类别下的缓存副本，discardPage可能会把已提交的旧内容写回这个位置
+		discardPageNo(dirtypages, emptyPageNo);
+
 		// write empty page to disk
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
 		rf.write(BTreePage.createEmptyPageData());
 		rf.close();
 		
-		// make sure the page is not in the buffer pool	or in the local cache		
-		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
+		// make sure the page is not in the buffer pool	or in the local cache
+		// (拿着过时指针的读者可能在这期间又把旧内容读进了缓存)
+		discardPageNo(dirtypages, emptyPageNo);
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -1057,7 +1609,7 @@ public class BTreeFile implements DbFile {
 
 		// iterate through all the existing header pages to find the one containing the slot
 		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() <= emptyPageNo) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
 			prevId = headerId;
 			headerId = headerPage.getNextPageId();
@@ -1067,7 +1619,7 @@ public class BTreeFile implements DbFile {
 		// at this point headerId should either be null or set with 
 		// the headerPage containing the slot corresponding to emptyPageNo.
 		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() <= emptyPageNo) {
 			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
 			
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
@@ -1087,6 +1639,273 @@ public class BTreeFile implements DbFile {
 		headerPage.markSlotUsed(emptySlot, false);
 	}
 
+	/**
+	 * Find the header page holding the slot of the given page number.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pgNo - the page number
+	 * @param perm - the permissions with which to lock the header page
+	 * @return the header page, or null if the header pages do not reach that far, in which
+	 *         case the page counts as used
+	 */
+	private BTreeHeaderPage getHeaderPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgNo, Permissions perm)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		for(int i = pgNo / BTreeHeaderPage.getNumSlots(); i > 0 && headerId != null; i--) {
+			headerId = ((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+		}
+		return headerId == null ? null : (BTreeHeaderPage) getPage(tid, dirtypages, headerId, perm);
+	}
+
+	/**
+	 * Get the lowest page number of this BTreeFile that is marked empty, without
+	 * marking it used.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the lowest empty page number, or -1 if no page inside the file is empty
+	 * @see #claimEmptyPage(TransactionId, Map, int)
+	 */
+	int getLowestEmptyPageNo(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		int first = 0;
+		while(headerId != null && first <= numPages()) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			int emptySlot = headerPage.getEmptySlot();
+			if(emptySlot != -1) {
+				return first + emptySlot <= numPages() ? first + emptySlot : -1;
+			}
+			first += BTreeHeaderPage.getNumSlots();
+			headerId = headerPage.getNextPageId();
+		}
+		return -1;
+	}
+
+	/**
+	 * Mark the given page used if it is empty, like getEmptyPageNo does for the first
+	 * empty page.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pgNo - the page number wanted
+	 * @return true if the page was empty and now belongs to the caller
+	 * @see #movePage(TransactionId, Map, BTreePageId, int)
+	 */
+	boolean claimEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgNo)
+			throws DbException, IOException, TransactionAbortedException {
+		int slot = pgNo % BTreeHeaderPage.getNumSlots();
+		BTreeHeaderPage headerPage = getHeaderPage(tid, dirtypages, pgNo, Permissions.READ_ONLY);
+		if(headerPage == null || headerPage.isSlotUsed(slot)) {
+			return false;
+		}
+		headerPage = getHeaderPage(tid, dirtypages, pgNo, Permissions.READ_WRITE);
+		headerPage.markSlotUsed(slot, true);
+		return true;
+	}
+
+	/**
+	 * Move a leaf, internal or header page to another page number, which the caller has
+	 * already marked used. The page at the new number is wiped and locked with read-write
+	 * permission, and the contents are copied into it through the buffer pool, so that
+	 * the copy is logged and rolled back like any other change. The pointer in the parent
+	 * (or the root pointer), the sibling pointers of a leaf, the parent pointers of the
+	 * children of an internal page and the links of a header page to its neighbours (or
+	 * the root pointer) are updated, and the old page is made available for reuse.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the page to move
+	 * @param pgNo - the page number to move it to; it must have been empty when this
+	 *             transaction marked it used
+	 * @return the page at its new location
+	 * @see #claimEmptyPage(TransactionId, Map, int)
+	 * @see #getEmptyPageNo(TransactionId, Map)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	Page movePage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, int pgNo)
+			throws DbException, IOException, TransactionAbortedException {
+		Page page = getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		Page moved = getEmptyPage(tid, dirtypages, pgNo, pid.pgcateg());
+		BTreePageId newPageId = (BTreePageId) moved.getId();
+		copyPage(page, moved);
+
+		if(moved instanceof BTreeHeaderPage) {
+			BTreeHeaderPage header = (BTreeHeaderPage) moved;
+			if(header.getPrevPageId() == null) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setHeaderId(newPageId);
+			}
+			else {
+				BTreeHeaderPage prev = (BTreeHeaderPage) getPage(tid, dirtypages, header.getPrevPageId(), Permissions.READ_WRITE);
+				prev.setNextPageId(newPageId);
+			}
+			if(header.getNextPageId() != null) {
+				BTreeHeaderPage next = (BTreeHeaderPage) getPage(tid, dirtypages, header.getNextPageId(), Permissions.READ_WRITE);
+				next.setPrevPageId(newPageId);
+			}
+			setEmptyPage(tid, dirtypages, pid.getPageNumber());
+			discardMovedPage(dirtypages, pid);
+			return moved;
+		}
+
+		BTreePageId parentId = ((BTreePage) page).getParentId();
+		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+			rootPtr.setRootId(newPageId);
+		}
+		else {
+			BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+			Iterator<BTreeEntry> it = parent.iterator();
+			while(it.hasNext()) {
+				BTreeEntry e = it.next();
+				if(e.getLeftChild().equals(pid)) {
+					e.setLeftChild(newPageId);
+					parent.updateEntry(e);
+					break;
+				}
+				if(e.getRightChild().equals(pid)) {
+					e.setRightChild(newPageId);
+					parent.updateEntry(e);
+					break;
+				}
+			}
+		}
+
+		if(moved instanceof BTreeLeafPage) {
+			BTreeLeafPage leaf = (BTreeLeafPage) moved;
+			if(leaf.getLeftSiblingId() != null) {
+				BTreeLeafPage left = (BTreeLeafPage) getPage(tid, dirtypages, leaf.getLeftSiblingId(), Permissions.READ_WRITE);
+				left.setRightSiblingId(newPageId);
+			}
+			if(leaf.getRightSiblingId() != null) {
+				BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, leaf.getRightSiblingId(), Permissions.READ_WRITE);
+				right.setLeftSiblingId(newPageId);
+			}
+		}
+		else {
+			updateParentPointers(tid, dirtypages, (BTreeInternalPage) moved);
+		}
+
+		setEmptyPage(tid, dirtypages, pid.getPageNumber());
+		discardMovedPage(dirtypages, pid);
+		return moved;
+	}
+
+	/** Copy the contents of a page into an empty page of the same category. */
+	private void copyPage(Page from, Page to) throws DbException {
+		if(from instanceof BTreeHeaderPage) {
+			BTreeHeaderPage src = (BTreeHeaderPage) from;
+			BTreeHeaderPage dst = (BTreeHeaderPage) to;
+			for(int i = 0; i < BTreeHeaderPage.getNumSlots(); i++) {
+				dst.markSlotUsed(i, src.isSlotUsed(i));
+			}
+			dst.setPrevPageId(src.getPrevPageId());
+			dst.setNextPageId(src.getNextPageId());
+			return;
+		}
+
+		((BTreePage) to).setParentId(((BTreePage) from).getParentId());
+		if(from instanceof BTreeLeafPage) {
+			BTreeLeafPage src = (BTreeLeafPage) from;
+			BTreeLeafPage dst = (BTreeLeafPage) to;
+			dst.setLeftSiblingId(src.getLeftSiblingId());
+			dst.setRightSiblingId(src.getRightSiblingId());
+			List<Tuple> tuples = new ArrayList<>();
+			Iterator<Tuple> it = src.iterator();
+			while(it.hasNext()) {
+				tuples.add(it.next());
+			}
+			for(Tuple t : tuples) {
+				dst.insertTuple(t);
+			}
+		}
+		else {
+			List<BTreeEntry> entries = new ArrayList<>();
+			Iterator<BTreeEntry> it = ((BTreeInternalPage) from).iterator();
+			while(it.hasNext()) {
+				entries.add(it.next());
+			}
+			for(BTreeEntry e : entries) {
+				((BTreeInternalPage) to).insertEntry(e);
+			}
+		}
+	}
+
+	/** Drop the cached copies of a page number under every page category. */
+	private void discardPageNo(Map<PageId, Page> dirtypages, int pgNo) {
+		for(int categ : new int[] { BTreePageId.INTERNAL, BTreePageId.LEAF, BTreePageId.HEADER }) {
+			BTreePageId cached = new BTreePageId(tableid, pgNo, categ);
+			Database.getBufferPool().discardPage(cached);
+			dirtypages.remove(cached);
+		}
+	}
+
+	/**
+	 * Drop the old copy of a moved page from the buffer pool, so that an optimistic
+	 * descent that read it before the move fails its validation instead of following
+	 * pointers that are no longer kept up to date.
+	 */
+	private void discardMovedPage(Map<PageId, Page> dirtypages, BTreePageId pid) {
+		dirtypages.remove(pid);
+		Database.getBufferPool().discardPage(pid);
+	}
+
+	/**
+	 * Cut the empty pages at the end of this BTreeFile off the file. All header pages
+	 * are locked with read-write permission first, so that no page can be handed out
+	 * meanwhile. The slots of the removed pages are marked used again, as pages
+	 * past the end of the file are. The log is checkpointed before the file is cut,
+	 * so that recovery does not redo older changes to the removed pages and write
+	 * them back past the new end of the file.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the number of pages removed
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	int truncateEmptyPages(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		List<BTreeHeaderPage> headerPages = new ArrayList<>();
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		while(headerId != null) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+			headerPages.add(headerPage);
+			headerId = headerPage.getNextPageId();
+		}
+
+		int numSlots = BTreeHeaderPage.getNumSlots();
+		int pages = numPages();
+		int last = pages;
+		while(last > 1 && last / numSlots < headerPages.size()
+				&& !headerPages.get(last / numSlots).isSlotUsed(last % numSlots)) {
+			last--;
+		}
+		if(last == pages) {
+			return 0;
+		}
+
+		for(int pgNo = last + 1; pgNo <= pages; pgNo++) {
+			headerPages.get(pgNo / numSlots).markSlotUsed(pgNo % numSlots, true);
+			discardPageNo(dirtypages, pgNo);
+		}
+		// 被切掉的页已经不在脏页表里，检查点之后redo只会从更新的记录开始，不会再碰它们
+		Database.getLogFile().logCheckpoint();
+		synchronized(this) {
+			RandomAccessFile rf = new RandomAccessFile(f, "rw");
+			rf.setLength(BTreeRootPtrPage.getPageSize() + (long) last * BufferPool.getPageSize());
+			rf.close();
+		}
+		return pages - last;
+	}
+
 	/**
 	 * get the specified tuples from the file based on its IndexPredicate value on
 	 * behalf of the specified transaction. This method will acquire a read lock on
@@ -1101,6 +1920,63 @@ public class BTreeFile implements DbFile {
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * Like {@link #indexIterator(TransactionId, IndexPredicate)}, but if
+	 * reverse is true return the tuples in descending key order, following
+	 * the left sibling pointers of the leaves.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on; one of EQUALS,
+	 *              LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or GREATER_THAN_OR_EQ
+	 *              if reverse is true
+	 * @param reverse - true to return the tuples in descending key order
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred, boolean reverse) {
+		if (!reverse)
+			return indexIterator(tid, ipred);
+		Field f = ipred.getField();
+		switch (ipred.getOp()) {
+			case EQUALS:
+				return new BTreeRangeIterator(this, tid, Op.GREATER_THAN_OR_EQ, f, Op.LESS_THAN_OR_EQ, f, true);
+			case GREATER_THAN:
+			case GREATER_THAN_OR_EQ:
+				return new BTreeRangeIterator(this, tid, ipred.getOp(), f, null, null, true);
+			case LESS_THAN:
+			case LESS_THAN_OR_EQ:
+				return new BTreeRangeIterator(this, tid, null, null, ipred.getOp(), f, true);
+			default:
+				throw new UnsupportedOperationException("cannot scan " + ipred.getOp() + " in reverse");
+		}
+	}
+
+	/**
+	 * Get an iterator for the tuples of this B+ tree file whose keys are in
+	 * [lo, hi), in ascending key order or, if reverse is true, in descending
+	 * key order. Either bound may be null for no bound.
+	 * 
+	 * @param tid - the transaction id
+	 * @param lo - the smallest key to return, or null
+	 * @param hi - the key to stop before, or null
+	 * @param reverse - true to return the tuples in descending key order
+	 * @return an iterator for the tuples in the range
+	 */
+	public DbFileIterator rangeIterator(TransactionId tid, Field lo, Field hi, boolean reverse) {
+		return new BTreeRangeIterator(this, tid, lo == null ? null : Op.GREATER_THAN_OR_EQ, lo,
+				hi == null ? null : Op.LESS_THAN, hi, reverse);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in descending key
+	 * order.
+	 * 
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file, largest key first
+	 */
+	public DbFileIterator reverseIterator(TransactionId tid) {
+		return rangeIterator(tid, null, null, true);
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
 	 * will acquire a read lock on the affected pages of the file, and may block until 
@@ -1115,6 +1991,53 @@ public class BTreeFile implements DbFile {
 
 }
 
+/**
+ * Read-ahead state of a scan over the leaves of a BTreeFile. The scan calls
+ * {@link #moved} whenever it steps onto the next leaf; once half of the leaves
+ * asked for last time have been passed, the next batch is asked for, so that
+ * the leaves come off disk in batches rather than one by one. Scans that end
+ * at an upper bound only read ahead leaves they are sure to get to.
+ */
+class LeafReadAhead {
+
+	private final BTreeFile f;
+	private final Op op;
+	private final Field bound;
+	private int countdown = 0;
+
+	LeafReadAhead(BTreeFile f) {
+		this(f, null);
+	}
+
+	LeafReadAhead(BTreeFile f, IndexPredicate ipred) {
+		this.f = f;
+		if (ipred != null && (ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ)) {
+			this.op = ipred.getOp();
+			this.bound = ipred.getField();
+		} else if (ipred != null && ipred.getOp() == Op.EQUALS) {
+			// 等值查询在遇到比它大的key时结束
+			this.op = Op.LESS_THAN_OR_EQ;
+			this.bound = ipred.getField();
+		} else {
+			this.op = null;
+			this.bound = null;
+		}
+	}
+
+	void moved(BTreeLeafPage leaf) {
+		if (--countdown > 0)
+			return;
+		int n = f.getReadAhead();
+		int asked = f.readAhead(leaf, n, op, bound);
+		// 父节点的子节点用完了就在下一页重新预读
+		countdown = asked < n ? Math.max(asked, 1) : Math.max(n / 2, 1);
+	}
+
+	void reset() {
+		countdown = 0;
+	}
+}
+
 /**
  * Helper class that implements the Java Iterator for tuples on a BTreeFile
  */
@@ -1122,6 +2045,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	final LeafReadAhead readAhead;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1134,17 +2058,20 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
 		this.f = f;
 		this.tid = tid;
+		this.readAhead = new LeafReadAhead(f);
 	}
 
 	/**
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPageOptimistic(
+				BTreeRootPtrPage.getId(f.getId()));
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, null);
 		it = curp.iterator();
+		readAhead.reset();
+		readAhead.moved(curp);
 	}
 
 	/**
@@ -1166,6 +2093,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.moved(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1203,6 +2131,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	final LeafReadAhead readAhead;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1218,6 +2147,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		this.readAhead = new LeafReadAhead(f, ipred);
 	}
 
 	/**
@@ -1225,17 +2155,20 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPageOptimistic(
+				BTreeRootPtrPage.getId(f.getId()));
 		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
 			curp = f.findLeafPage(tid, root, ipred.getField());
+			it = curp.iterator(ipred.getField());
 		}
 		else {
 			curp = f.findLeafPage(tid, root, null);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
+		// 点查询和很短的范围查询只读一两页，等第一次跳到右兄弟时才开始预读
+		readAhead.reset();
 	}
 
 	/**
@@ -1251,7 +2184,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				if (f.keyOf(t).compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1260,7 +2193,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						f.keyOf(t).compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
@@ -1275,6 +2208,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.moved(curp);
 				it = curp.iterator();
 			}
 		}
@@ -1298,3 +2232,119 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		it = null;
 	}
 }
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of a B+ tree
+ * file between two bounds, lo and hi, each either inclusive or exclusive.
+ * Scans in descending key order start at the right-most leaf possibly
+ * holding a key within hi and follow the left sibling pointers.
+ */
+class BTreeRangeIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+	final LeafReadAhead readAhead;
+
+	final TransactionId tid;
+	final BTreeFile f;
+	final Op loOp, hiOp;
+	final Field lo, hi;
+	final boolean reverse;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param loOp - GREATER_THAN or GREATER_THAN_OR_EQ, or null if there is no lower bound
+	 * @param lo - the lower bound, or null
+	 * @param hiOp - LESS_THAN or LESS_THAN_OR_EQ, or null if there is no upper bound
+	 * @param hi - the upper bound, or null
+	 * @param reverse - true to return the tuples in descending key order
+	 */
+	public BTreeRangeIterator(BTreeFile f, TransactionId tid, Op loOp, Field lo, Op hiOp, Field hi,
+			boolean reverse) {
+		this.f = f;
+		this.tid = tid;
+		this.loOp = loOp;
+		this.lo = lo;
+		this.hiOp = hiOp;
+		this.hi = hi;
+		this.reverse = reverse;
+		// 预读只沿右兄弟指针进行
+		this.readAhead = reverse ? null : new LeafReadAhead(f, hi == null ? null : new IndexPredicate(hiOp, hi));
+	}
+
+	/**
+	 * Open this iterator on the first leaf page possibly holding a tuple in
+	 * the range: the left-most one for lo, or the right-most one for hi if
+	 * the scan is in reverse
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPageOptimistic(
+				BTreeRootPtrPage.getId(f.getId()));
+		BTreePageId root = rootPtr.getRootId();
+		if (!reverse) {
+			curp = f.findLeafPage(tid, root, lo);
+			it = lo == null ? curp.iterator() : curp.iterator(lo);
+			readAhead.reset();
+		}
+		else {
+			// 小于hi的key都在第一个可能包含hi的叶子及其左边
+			curp = hi != null && hiOp == Op.LESS_THAN ? f.findLeafPage(tid, root, hi) : f.findLastLeafPage(tid, hi);
+			it = curp.reverseIterator();
+		}
+	}
+
+	/**
+	 * Read the next tuple in the range, following the sibling pointer in the
+	 * direction of the scan when the current page runs out.
+	 * 
+	 * @return the next tuple in the range, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (it != null) {
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				Field key = f.keyOf(t);
+				boolean aboveLo = lo == null || key.compare(loOp, lo);
+				boolean belowHi = hi == null || key.compare(hiOp, hi);
+				if (aboveLo && belowHi)
+					return t;
+				// 越过了扫描方向上的终点就结束，另一端的tuple只会出现在第一页
+				if (reverse ? !aboveLo : !belowHi)
+					return null;
+			}
+
+			BTreePageId nextp = reverse ? curp.getLeftSiblingId() : curp.getRightSiblingId();
+			if (nextp == null)
+				return null;
+			curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, nextp, Permissions.READ_ONLY);
+			if (reverse) {
+				it = curp.reverseIterator();
+			}
+			else {
+				readAhead.moved(curp);
+				it = curp.iterator();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the range
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
@@ -113,7 +113,7 @@ public class BTreeFileEncoder {
 	 * comparator to sort Tuples by key field
 	 */
 	public static class TupleComparator implements Comparator<Tuple> {
-		private final int keyField;
+		private final int[] keyFields;
 
 		/** 
 		 * Construct a TupleComparator
@@ -121,7 +121,17 @@ public class BTreeFileEncoder {
 		 * @param keyField - the index of the field the tuples are keyed on
 		 */
 		public TupleComparator(int keyField) {
-			this.keyField = keyField;
+			this(new int[] { keyField });
+		}
+
+		/**
+		 * Construct a TupleComparator for tuples keyed on several fields
+		 *
+		 * @param keyFields - the indexes of the fields the tuples are keyed on,
+		 *        most significant first
+		 */
+		public TupleComparator(int[] keyFields) {
+			this.keyFields = keyFields.clone();
 		}
 
 		/**
@@ -131,10 +141,12 @@ public class BTreeFileEncoder {
 		 */
 		public int compare(Tuple t1, Tuple t2) {
 			int cmp = 0;
-			if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
+			Field k1 = BTreeFile.keyOf(t1, keyFields);
+			Field k2 = BTreeFile.keyOf(t2, keyFields);
+			if(k1.compare(Op.LESS_THAN, k2)) {
 				cmp = -1;
 			}
-			else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
+			else if(k1.compare(Op.GREATER_THAN, k2)) {
 				cmp = 1;
 			}
 			return cmp;
@@ -158,6 +170,20 @@ public class BTreeFileEncoder {
                                     File bFile, int npagebytes,
                                     int numFields, Type[] typeAr, char fieldSeparator, int keyField)
 					throws IOException, DbException, TransactionAbortedException {
+		return convert(tuples, hFile, bFile, npagebytes, numFields, typeAr, fieldSeparator,
+				new int[] { keyField });
+	}
+
+	/**
+	 * Faster method to encode a B+ tree file keyed on several fields
+	 *
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on, most significant first
+	 * @see #convert(File, File, File, int, int, Type[], char, int[])
+	 */
+	public static BTreeFile convert(List<List<Integer>> tuples, File hFile,
+                                    File bFile, int npagebytes,
+                                    int numFields, Type[] typeAr, char fieldSeparator, int[] keyFields)
+					throws IOException, DbException, TransactionAbortedException {
 		File tempInput = File.createTempFile("tempTable", ".txt");
 		tempInput.deleteOnExit();
 		BufferedWriter bw = new BufferedWriter(new FileWriter(tempInput));
@@ -179,11 +205,12 @@ public class BTreeFileEncoder {
 		}
 		bw.close();
 		return convert(tempInput, hFile, bFile, npagebytes,
-				numFields, typeAr, fieldSeparator, keyField);
+				numFields, typeAr, fieldSeparator, keyFields);
 	}
 
 	/** 
-	 * Faster method to encode the B+ tree file
+	 * Faster method to encode the B+ tree file. All tuples are sorted in
+	 * memory; use {@link BTreeBulkLoader} for inputs that do not fit.
 	 * 
 	 * @param inFile - the file containing the raw data
 	 * @param hFile - the data file for the HeapFile to be used as an intermediate conversion step
@@ -201,6 +228,29 @@ public class BTreeFileEncoder {
 	public static BTreeFile convert(File inFile, File hFile, File bFile, int npagebytes,
 			int numFields, Type[] typeAr, char fieldSeparator, int keyField) 
 					throws IOException, DbException, TransactionAbortedException {
+		return convert(inFile, hFile, bFile, npagebytes, numFields, typeAr, fieldSeparator,
+				new int[] { keyField });
+	}
+
+	/**
+	 * Faster method to encode a B+ tree file keyed on several fields, whose
+	 * tuples are ordered by their first key field, then by the second, and
+	 * so on.
+	 *
+	 * @param inFile - the file containing the raw data
+	 * @param hFile - the data file for the HeapFile to be used as an intermediate conversion step
+	 * @param bFile - the data file for the BTreeFile
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields per tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param fieldSeparator - character separating fields in the raw data file
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on, most significant first
+	 * @return the B+ tree file
+	 * @see BTreeFile#BTreeFile(File, int[], TupleDesc)
+	 */
+	public static BTreeFile convert(File inFile, File hFile, File bFile, int npagebytes,
+			int numFields, Type[] typeAr, char fieldSeparator, int[] keyFields)
+					throws IOException, DbException, TransactionAbortedException {
 		// convert the inFile to HeapFile first.
 		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
 		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
@@ -215,11 +265,14 @@ public class BTreeFileEncoder {
 			tuples.add(tup);
 		}
 		it.close();
-		tuples.sort(new TupleComparator(keyField));
+		tuples.sort(new TupleComparator(keyFields));
 
 		// add the tuples to B+ tree file
-		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
-		Type keyType = typeAr[keyField];
+		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyFields);
+		Type[] keyTypes = new Type[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++) {
+			keyTypes[i] = typeAr[keyFields[i]];
+		}
 		int tableid = bf.getId();
 
 		int nrecbytes = 0;
@@ -230,10 +283,7 @@ public class BTreeFileEncoder {
 		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
-		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		int capacity = BTreeInternalPage.getCapacity(keyTypes, npagebytes);
 
 		List<List<BTreeEntry>> entries = new ArrayList<>();
 
@@ -258,17 +308,17 @@ public class BTreeFileEncoder {
 			}
 			else {
 				// write out a page of records
-				byte[] leafPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
+				byte[] leafPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyFields);
 				BTreePageId leafPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-				BTreeLeafPage leafPage = new BTreeLeafPage(leafPid, leafPageBytes, keyField);
+				BTreeLeafPage leafPage = new BTreeLeafPage(leafPid, leafPageBytes, keyFields);
 				leafPage.setLeftSiblingId(leftSiblingId);
 				bf.writePage(leafPage);
 				leftSiblingId = leafPid;
 
 				// update the parent by "copying up" the next key
-				BTreeEntry copyUpEntry = new BTreeEntry(page2.get(0).getField(keyField), leafPid, null);
-				updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-						keyType, tableid, keyField);
+				BTreeEntry copyUpEntry = new BTreeEntry(BTreeFile.keyOf(page2.get(0), keyFields), leafPid, null);
+				updateEntries(entries, bf, copyUpEntry, 0, capacity, npagebytes, 
+						keyTypes, tableid, keyFields);
 
 				page1 = page2;
 				page2 = new ArrayList<>();
@@ -286,9 +336,9 @@ public class BTreeFileEncoder {
 		BTreePageId lastPid = null;
 		if(page2.size() == 0) {
 			// write out a page of records - this is the root page
-			byte[] lastPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
+			byte[] lastPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyFields);
 			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
+			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyFields);
 			lastPage.setLeftSiblingId(leftSiblingId);
 			bf.writePage(lastPage);
 		}
@@ -301,26 +351,26 @@ public class BTreeFileEncoder {
 			lastPg.addAll(page2);
 
 			// write out the last two pages of records
-			byte[] secondToLastPageBytes = convertToLeafPage(secondToLastPg, npagebytes, numFields, typeAr, keyField);
+			byte[] secondToLastPageBytes = convertToLeafPage(secondToLastPg, npagebytes, numFields, typeAr, keyFields);
 			BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage secondToLastPage = new BTreeLeafPage(secondToLastPid, secondToLastPageBytes, keyField);
+			BTreeLeafPage secondToLastPage = new BTreeLeafPage(secondToLastPid, secondToLastPageBytes, keyFields);
 			secondToLastPage.setLeftSiblingId(leftSiblingId);
 			bf.writePage(secondToLastPage);
 
-			byte[] lastPageBytes = convertToLeafPage(lastPg, npagebytes, numFields, typeAr, keyField);
+			byte[] lastPageBytes = convertToLeafPage(lastPg, npagebytes, numFields, typeAr, keyFields);
 			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
+			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyFields);
 			lastPage.setLeftSiblingId(secondToLastPid);
 			bf.writePage(lastPage);
 
 			// update the parent by "copying up" the next key
-			BTreeEntry copyUpEntry = new BTreeEntry(lastPg.get(0).getField(keyField), secondToLastPid, lastPid);
-			updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-					keyType, tableid, keyField);
+			BTreeEntry copyUpEntry = new BTreeEntry(BTreeFile.keyOf(lastPg.get(0), keyFields), secondToLastPid, lastPid);
+			updateEntries(entries, bf, copyUpEntry, 0, capacity, npagebytes, 
+					keyTypes, tableid, keyFields);
 		}
 
 		// Write out the remaining internal pages
-		cleanUpEntries(entries, bf, nentries, npagebytes, keyType, tableid, keyField);
+		cleanUpEntries(entries, bf, capacity, npagebytes, keyTypes, tableid, keyFields);
 
 		// update the root pointer to point to the last page of the file
 		int root = bf.numPages();
@@ -394,52 +444,51 @@ public class BTreeFileEncoder {
 	 * 
 	 * @param entries - the list of remaining entries
 	 * @param bf - the BTreeFile
-	 * @param nentries - number of entries per page
+	 * @param capacity - the space for entries on a page, see {@link BTreeInternalPage#getCapacity}
 	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
+	 * @param keyTypes - the types of the key fields
 	 * @param tableid - the table id of this BTreeFile
-	 * @param keyField - the index of the key field
+	 * @param keyFields - the indexes of the key fields
 	 * @throws IOException
 	 */
 	private static void cleanUpEntries(List<List<BTreeEntry>> entries,
-			BTreeFile bf, int nentries, int npagebytes, Type keyType, int tableid, 
-			int keyField) throws IOException {
-		// As with the leaf pages, there are two options:
-		// 1. We have less than or equal to a full page of entries. Because of the way the code
-		//    was written, we know this must be the root page
-		// 2. We have somewhere between one and two pages of entries remaining.
-		// For case (1), we write out the page 
-		// For case (2), we divide the remaining entries equally between the last two pages,
-		// write them out, and update the parent's child pointers.
+			BTreeFile bf, int capacity, int npagebytes, Type[] keyTypes, int tableid, 
+			int[] keyFields) throws IOException {
+		// As with the leaf pages, the entries left on a level are written out on
+		// as few pages as they fit on, divided equally between them:
+		// 1. They fit on one page. Unless a page of this level was written before,
+		//    this must be the root page
+		// 2. They take two or, with keys of different sizes, three pages
+		// For case (1), we write out the page and, if it is not the root, make it
+		// the right child of the last entry of the parent level
+		// For case (2), we write out the pages and update the parent's child pointers.
 		for(int i = 0; i < entries.size(); i++) {
 			int childPageCategory = (i == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
-			int size = entries.get(i).size();
-			if(size <= nentries) {
-				// write out a page of entries
-				byte[] internalPageBytes = convertToInternalPage(entries.get(i), npagebytes, keyType, childPageCategory);
+			List<BTreeEntry> level = entries.get(i);
+			List<Integer> pushUps = spread(entrySizes(level, keyTypes, npagebytes), capacity);
+			BTreePageId prevPid = null;
+			int from = 0;
+			for(int p = 0; p <= pushUps.size(); p++) {
+				int to = (p < pushUps.size() ? pushUps.get(p) : level.size());
+				byte[] internalPageBytes = convertToInternalPage(new ArrayList<>(level.subList(from, to)),
+						npagebytes, keyTypes, childPageCategory);
 				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
-			}
-			else {
-				// split the remaining entries in half
-                List<BTreeEntry> secondToLastPg = new ArrayList<>(entries.get(i).subList(0, size / 2));
-                List<BTreeEntry> lastPg = new ArrayList<>(entries.get(i).subList(size / 2 + 1, size));
-
-				// write out the last two pages of entries
-				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, npagebytes, keyType, childPageCategory);
-				BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(secondToLastPid, secondToLastPageBytes, keyField));
-
-				byte[] lastPageBytes = convertToInternalPage(lastPg, npagebytes, keyType, childPageCategory);
-				BTreePageId lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(lastPid, lastPageBytes, keyField));
+				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyFields));
 
-				// update the parent by "pushing up" the next key
-				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(i).get(size/2).getKey(), secondToLastPid, lastPid);
-				updateEntries(entries, bf, pushUpEntry, i+1, nentries, npagebytes, 
-						keyType, tableid, keyField);
+				if(prevPid != null) {
+					// update the parent by "pushing up" the key between the two pages
+					BTreeEntry pushUpEntry = new BTreeEntry(level.get(from - 1).getKey(), prevPid, internalPid);
+					updateEntries(entries, bf, pushUpEntry, i+1, capacity, npagebytes, 
+							keyTypes, tableid, keyFields);
+				}
+				else if(pushUps.isEmpty() && i + 1 < entries.size()) {
+					List<BTreeEntry> parentLevel = entries.get(i + 1);
+					BTreeEntry last = parentLevel.get(parentLevel.size() - 1);
+					parentLevel.set(parentLevel.size() - 1, new BTreeEntry(last.getKey(), last.getLeftChild(), internalPid));
+				}
+				prevPid = internalPid;
+				from = to + 1;
 			}
-
 		}
 	}
 
@@ -450,16 +499,16 @@ public class BTreeFileEncoder {
 	 * @param bf - the BTreefile
 	 * @param e - the new entry 
 	 * @param level - the level of the new entry (0 is closest to the leaf pages)
-	 * @param nentries - number of entries per page
+	 * @param capacity - the space for entries on a page, see {@link BTreeInternalPage#getCapacity}
 	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
+	 * @param keyTypes - the types of the key fields
 	 * @param tableid - the table id of this BTreeFile
-	 * @param keyField - the index of the key field
+	 * @param keyFields - the indexes of the key fields
 	 * @throws IOException
 	 */
 	private static void updateEntries(List<List<BTreeEntry>> entries,
-			BTreeFile bf, BTreeEntry e, int level, int nentries, int npagebytes, Type keyType, 
-			int tableid, int keyField) throws IOException {
+			BTreeFile bf, BTreeEntry e, int level, int capacity, int npagebytes, Type[] keyTypes, 
+			int tableid, int[] keyFields) throws IOException {
 		while(entries.size() <= level) {
 			entries.add(new ArrayList<>());
 		}
@@ -470,17 +519,19 @@ public class BTreeFileEncoder {
 		if(size > 0) {
 			BTreeEntry prev = entries.get(level).get(size-1);
 			entries.get(level).set(size-1, new BTreeEntry(prev.getKey(), prev.getLeftChild(), e.getLeftChild()));
-			if(size == nentries * 2 + 1) {
+			int[] sizes = entrySizes(entries.get(level), keyTypes, npagebytes);
+			if(sum(sizes, 0, size) > capacity * 2) {
 				// write out a page of entries
+				int nentries = fill(sizes, 0, capacity);
                 ArrayList<BTreeEntry> pageEntries = new ArrayList<>(entries.get(level).subList(0, nentries));
-				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keyType, childPageCategory);
+				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keyTypes, childPageCategory);
 				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
+				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyFields));
 
 				// update the parent by "pushing up" the next key
 				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(level).get(nentries).getKey(), internalPid, null);
-				updateEntries(entries, bf, pushUpEntry, level + 1, nentries, npagebytes, 
-						keyType, tableid, keyField);
+				updateEntries(entries, bf, pushUpEntry, level + 1, capacity, npagebytes, 
+						keyTypes, tableid, keyFields);
                 List<BTreeEntry> remainingEntries = new ArrayList<>(entries.get(level).subList(nentries + 1, size));
 				entries.get(level).clear();
 				entries.get(level).addAll(remainingEntries);
@@ -489,6 +540,62 @@ public class BTreeFileEncoder {
 		entries.get(level).add(e);
 	}
 
+	private static int[] entrySizes(List<BTreeEntry> entries, Type[] keyTypes, int npagebytes) {
+		int[] sizes = new int[entries.size()];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = BTreeInternalPage.getEntrySize(keyTypes, npagebytes, entries.get(i).getKey());
+		}
+		return sizes;
+	}
+
+	static int sum(int[] sizes, int from, int to) {
+		int sum = 0;
+		for (int i = from; i < to; i++) {
+			sum += sizes[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * @return the number of keys, starting at from, that go on an internal page
+	 *         filled up to the given space: as many as fit, but at least one
+	 */
+	static int fill(int[] sizes, int from, int space) {
+		int used = sizes[from];
+		int i = from + 1;
+		while (i < sizes.length && used + sizes[i] <= space) {
+			used += sizes[i++];
+		}
+		return i - from;
+	}
+
+	/**
+	 * Spread the keys of a level of internal pages over as few pages as they
+	 * fit on, as evenly as possible. The key between two of the pages goes on
+	 * neither of them, but is pushed up to their parent.
+	 * 
+	 * @param sizes - the space each key takes, see {@link BTreeInternalPage#getEntrySize(Type[], int, Field)}
+	 * @param capacity - the space for entries on a page
+	 * @return the indexes of the keys pushed up, in ascending order
+	 * @throws IllegalArgumentException if the pages cannot all get a key
+	 */
+	static List<Integer> spread(int[] sizes, int capacity) {
+		for (int pages = 1; pages <= sizes.length; pages++) {
+			List<Integer> pushUps = new ArrayList<>();
+			int from = 0;
+			for (int p = 0; p < pages - 1 && from < sizes.length; p++) {
+				int target = Math.min(capacity, sum(sizes, from, sizes.length) / (pages - p));
+				from += fill(sizes, from, target);
+				pushUps.add(from++);
+			}
+			// every page needs a key, and the last one has to fit
+			if (from < sizes.length && sum(sizes, from, sizes.length) <= capacity) {
+				return pushUps;
+			}
+		}
+		throw new IllegalArgumentException(sizes.length + " keys do not fit on internal pages of " + capacity);
+	}
+
 	/**
 	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
 	 * 
@@ -503,6 +610,19 @@ public class BTreeFileEncoder {
 	public static byte[] convertToLeafPage(List<Tuple> tuples, int npagebytes,
 			int numFields, Type[] typeAr, int keyField)
 					throws IOException {
+		return convertToLeafPage(tuples, npagebytes, numFields, typeAr, new int[] { keyField });
+	}
+
+	/**
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
+	 * of a B+ tree keyed on several fields
+	 *
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on, most significant first
+	 * @see #convertToLeafPage(List, int, int, Type[], int)
+	 */
+	public static byte[] convertToLeafPage(List<Tuple> tuples, int npagebytes,
+			int numFields, Type[] typeAr, int[] keyFields)
+					throws IOException {
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
@@ -551,7 +671,7 @@ public class BTreeFileEncoder {
 		if (i % 8 > 0)
 			dos.writeByte(headerbyte);
 
-		tuples.sort(new TupleComparator(keyField));
+		tuples.sort(new TupleComparator(keyFields));
 		for(int t = 0; t < recordcount; t++) {
 			TupleDesc td = tuples.get(t).getTupleDesc();
 			for(int j = 0; j < td.numFields(); j++) {
@@ -621,7 +741,27 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		return convertToInternalPage(entries, npagebytes, new Type[] { keyType }, childPageCategory);
+	}
+
+	/**
+	 * Convert a set of entries to a byte array in the format of a
+	 * BTreeInternalPage of a B+ tree keyed on several fields
+	 *
+	 * @param keyTypes - the types of the key fields, most significant first
+	 * @see #convertToInternalPage(List, int, Type, int)
+	 */
+	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
+			Type[] keyTypes, int childPageCategory)
+					throws IOException {
+		if (keyTypes.length == 1 && BTreeInternalPage.usesCompactKeys(keyTypes[0], npagebytes)) {
+			return convertToCompactInternalPage(entries, npagebytes, childPageCategory);
+		}
+		int keyLen = 0;
+		for (Type t : keyTypes) {
+			keyLen += t.getLen();
+		}
+		int nentrybytes = keyLen + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -670,7 +810,7 @@ public class BTreeFileEncoder {
 		}
 
 		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
+			for (int j=0; j<keyLen; j++) {
 				dos.writeByte(0);
 			}
 		}
@@ -694,6 +834,38 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Convert a set of entries to a byte array in the compact format of a
+	 * BTreeInternalPage, which keeps string keys with their actual length.
+	 * As many entries are written as fit into the
+	 * {@link BTreeInternalPage#getCapacity capacity} of a page.
+	 */
+	private static byte[] convertToCompactInternalPage(List<BTreeEntry> entries, int npagebytes,
+			int childPageCategory) throws IOException {
+		Type[] keyTypes = new Type[] { Type.STRING_TYPE };
+		entries.sort(new EntryComparator());
+		int[] sizes = entrySizes(entries, keyTypes, npagebytes);
+		int entrycount = entries.isEmpty() ? 0 : fill(sizes, 0, BTreeInternalPage.getCapacity(keyTypes, npagebytes));
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childPageCategory);
+		dos.writeShort(entrycount);
+		dos.writeByte(entrycount > 0 ? 1 : 0);
+		dos.writeInt(entrycount > 0 ? entries.get(0).getLeftChild().getPageNumber() : 0);
+		for (int e = 0; e < entrycount; e++) {
+			String key = ((StringField) entries.get(e).getKey()).getValue();
+			if (key.length() > Type.STRING_LEN)
+				key = key.substring(0, Type.STRING_LEN);
+			dos.writeShort(key.length());
+			dos.writeBytes(key);
+			dos.writeInt(entries.get(e).getRightChild().getPageNumber());
+		}
+		dos.write(new byte[npagebytes - dos.size()]);
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Create a byte array in the format of a BTreeRootPtrPage
 	 * 
@@ -13,6 +13,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -25,11 +26,235 @@ import simpledb.storage.RecordId;
 public class BTreeInternalPage extends BTreePage {
 	private final byte[] header;
 	private final Field[] keys;
+	/**
+	 * For trees keyed on an INT_TYPE field the keys are kept here as
+	 * primitives, and compared without going through Field; the Field
+	 * objects in keys are then only created when someone asks for them.
+	 * Null for other key types.
+	 */
+	private final int[] intKeys;
 	private final int[] children;
 	private final int numSlots;
 	
 	private int childCategory; // either leaf or internal
 
+	/**
+	 * Trees keyed on a STRING_TYPE field store their internal pages in a
+	 * compact layout: each key takes only as many bytes as it has characters
+	 * instead of a fixed-width slot (see {@link #usesCompactKeys}). The space
+	 * of such a page is accounted in bytes rather than in entries; see
+	 * {@link #getMaxEntries} and {@link #getEntrySize}. Keys are not prefix
+	 * compressed against each other: with a prefix shared by the page, one
+	 * insert could change the size of every key on it.
+	 */
+	private final boolean compact;
+	private int usedBytes = 0; // compact only: bytes taken by the entries
+
+	/** bytes of a compact page before its entries: parent pointer, child
+	 * category, number of entries, whether slot 0 is used, left-most child */
+	private static final int COMPACT_HEADER_SIZE = INDEX_SIZE + 1 + 2 + 1 + INDEX_SIZE;
+	/** bytes of a compact entry besides its key characters: key length and child pointer */
+	private static final int COMPACT_ENTRY_OVERHEAD = 2 + INDEX_SIZE;
+	private static final int MAX_COMPACT_ENTRY_SIZE = COMPACT_ENTRY_OVERHEAD + Type.STRING_LEN;
+
+	/**
+	 * Version counter used for optimistic lock coupling. Every structural
+	 * modification of this page bumps the counter once before and once after
+	 * the change, so an odd value means a writer is in the middle of modifying
+	 * the page. Readers that do not take a transactional lock on this page
+	 * record the version before reading and call {@link #validateVersion}
+	 * afterwards; if it changed they must restart their traversal.
+	 */
+	private volatile long version = 0;
+
+	/**
+	 * Read the current version of this page. A reader that is not holding a
+	 * lock on this page should call this before looking at the keys and
+	 * children, and pass the result to {@link #validateVersion} afterwards.
+	 * @return the current version counter
+	 */
+	public long readVersion() {
+		return version;
+	}
+
+	/**
+	 * Check that no writer touched this page since {@link #readVersion}
+	 * returned v.
+	 * @param v the version returned by readVersion
+	 * @return true if whatever was read from this page in between is consistent
+	 */
+	public boolean validateVersion(long v) {
+		return (v & 1) == 0 && version == v;
+	}
+
+	/**
+	 * The used key slots of this page in key order, together with the version
+	 * of the page they were collected at. Rebuilt lazily after the page
+	 * changes, so that lookups can binary search the keys instead of walking
+	 * every slot.
+	 */
+	private volatile SlotDirectory directory = null;
+
+	private static final class SlotDirectory {
+		final long version;
+		final int[] slots;
+
+		SlotDirectory(long version, int[] slots) {
+			this.version = version;
+			this.slots = slots;
+		}
+	}
+
+	/**
+	 * @return the used key slots of this page (slot 0 holds no key) in key
+	 * order. May be called without a lock on the page, in which case the
+	 * result has to be validated with the page version like any other
+	 * optimistic read.
+	 */
+	int[] slotDirectory() {
+		long v = version;
+		SlotDirectory d = directory;
+		if (d != null && d.version == v)
+			return d.slots;
+		int[] slots = new int[numSlots - 1];
+		int n = 0;
+		for (int i = 1; i < numSlots; i++) {
+			if (isSlotUsed(i))
+				slots[n++] = i;
+		}
+		slots = Arrays.copyOf(slots, n);
+		// 只缓存没有被并发修改过的结果
+		if (validateVersion(v))
+			directory = new SlotDirectory(v, slots);
+		return slots;
+	}
+
+	/**
+	 * Find the child to descend into when looking for the left-most page
+	 * possibly containing f: the left child of the first key greater than or
+	 * equal to f, or the right child of the last key if there is no such key.
+	 * If f is null the left-most child is returned. The key is found by
+	 * binary search over the slot directory.
+	 *
+	 * @return the child page id, or null if the page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		return findChild(f, false);
+	}
+
+	/**
+	 * Find the child to descend into when looking for the left-most page
+	 * possibly containing f, as {@link #findChild(Field)} does, or, if last
+	 * is true, for the right-most one: the left child of the first key
+	 * greater than f. If last is true and f is null the right-most child is
+	 * returned.
+	 *
+	 * @return the child page id, or null if the page has no entries
+	 */
+	public BTreePageId findChild(Field f, boolean last) {
+		int[] slots = slotDirectory();
+		if (slots.length == 0)
+			return null;
+		Op op = last ? Op.GREATER_THAN : Op.GREATER_THAN_OR_EQ;
+		int lo = 0;
+		int hi = slots.length;
+		if (f == null)
+			lo = hi = last ? slots.length : 0;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compareKey(slots[mid], op, f))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		if (lo == slots.length)
+			return getChildId(slots[lo - 1]);
+		// key的左边的子节点存放在前一个被使用的slot中
+		return getChildId(lo == 0 ? 0 : slots[lo - 1]);
+	}
+
+	/**
+	 * Find up to n children following child, in key order. Like findChild
+	 * this may be called without a lock on the page; a read that raced with
+	 * a writer finds nothing.
+	 *
+	 * @param child a child of this page
+	 * @param n the maximum number of children to return
+	 * @return the children to the right of child, or an empty list if child
+	 * is not a child of this page
+	 */
+	public List<BTreePageId> childrenAfter(BTreePageId child, int n) {
+		return childrenAfter(child, n, null, null);
+	}
+
+	/**
+	 * Like {@link #childrenAfter(BTreePageId, int)}, but stop at the first
+	 * child whose separator key, the key left of it, does not satisfy
+	 * op bound. A scan that stops at the first tuple failing op bound
+	 * reads every child returned, since all tuples of the child before
+	 * one of them are at most that separator key.
+	 *
+	 * @param op the operator of the scan, or null for no bound
+	 * @param bound the value of the scan predicate, or null for no bound
+	 */
+	public List<BTreePageId> childrenAfter(BTreePageId child, int n, Op op, Field bound) {
+		long v = readVersion();
+		int[] slots = slotDirectory();
+		List<BTreePageId> result = new ArrayList<>();
+		// 最左边的子节点在slot 0，之后每个被使用的slot存放一个子节点
+		int i = child.equals(getChildId(0)) ? 0 : -1;
+		for (int j = 0; i < 0 && j < slots.length; j++) {
+			if (child.equals(getChildId(slots[j])))
+				i = j + 1;
+		}
+		if (i >= 0) {
+			for (int j = i; j < slots.length && result.size() < n; j++) {
+				BTreePageId id = getChildId(slots[j]);
+				if (id == null || (bound != null && !compareKey(slots[j], op, bound)))
+					break;
+				result.add(id);
+			}
+		}
+		if (!validateVersion(v))
+			return new ArrayList<>();
+		return result;
+	}
+
+	/**
+	 * Find the key right of child, i.e. the largest key child may hold. Like
+	 * findChild this may be called without a lock on the page.
+	 *
+	 * @param child a child of this page
+	 * @return the key, or null if child is the right-most child, is not a
+	 * child of this page, or a writer changed the page while it was read
+	 */
+	public Field keyAfter(BTreePageId child) {
+		long v = readVersion();
+		int[] slots = slotDirectory();
+		Field key = null;
+		if (slots.length > 0 && child.equals(getChildId(0))) {
+			key = peekKey(slots[0]);
+		} else {
+			for (int j = 0; j < slots.length - 1; j++) {
+				if (child.equals(getChildId(slots[j]))) {
+					key = peekKey(slots[j + 1]);
+					break;
+				}
+			}
+		}
+		if (!validateVersion(v))
+			return null;
+		return key;
+	}
+
+	private void beginWrite() {
+		version++;
+	}
+
+	private void endWrite() {
+		version++;
+	}
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -43,7 +268,7 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        assert !checkOccupancy || depth <= 0 || (getUsedSpace() >= getMaxEntries() / 2);
 	}
 	
 	/**
@@ -62,6 +287,9 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * Pages of trees keyed on a STRING_TYPE field use the compact layout
+	 * described at {@link #readCompactEntries} instead.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -71,8 +299,24 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeInternalPage of a B+ tree keyed on one or more fields.
+	 * Composite keys are stored as their fields one after the other.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
+		this.compact = usesCompactKeys(singleKeyType(), BufferPool.getPageSize());
+		// compact页面的slot只存在于内存中，数量按最短的key计算
+		this.numSlots = compact ? (BufferPool.getPageSize() - COMPACT_HEADER_SIZE) / COMPACT_ENTRY_OVERHEAD + 1
+				: getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -88,22 +332,33 @@ public class BTreeInternalPage extends BTreePage {
 
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
+		keys = new Field[numSlots];
+		intKeys = singleKeyType() == Type.INT_TYPE ? new int[numSlots] : null;
+		children = new int[numSlots];
+		if (compact) {
+			readCompactEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
-		keys = new Field[numSlots];
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
 			// since a node with m keys has m+1 pointers
 			keys[0] = null;
-			for (int i=1; i<keys.length; i++)// 这里的循环从1开始，header中的第一个bit对应的slot比较特殊，该slot位置放的entry没有keyField，只有指向子节点的指针
-				keys[i] = readNextKey(dis,i);
+			for (int i=1; i<keys.length; i++) {// 这里的循环从1开始，header中的第一个bit对应的slot比较特殊，该slot位置放的entry没有keyField，只有指向子节点的指针
+				if (intKeys != null)
+					intKeys[i] = dis.readInt();// int键直接读成基本类型，不创建IntField
+				else
+					keys[i] = readNextKey(dis,i);
+			}
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -116,11 +371,150 @@ public class BTreeInternalPage extends BTreePage {
 		setBeforeImage();
 	}
 
+	/**
+	 * Read the entries of a page in the compact layout: the number of
+	 * entries, whether slot 0 is used and the left-most child, followed by
+	 * the length, characters and right child of every key in key order.
+	 * The entries are placed in consecutive slots.
+	 */
+	private void readCompactEntries(DataInputStream dis) throws IOException {
+		int n = dis.readUnsignedShort();
+		boolean slot0Used = dis.readByte() != 0;
+		int child0 = dis.readInt();
+		if (slot0Used) {
+			markSlotUsed(0, true);
+			children[0] = child0;
+		}
+		for (int i = 1; i <= n; i++) {
+			byte[] bs = new byte[dis.readUnsignedShort()];
+			dis.readFully(bs);
+			keys[i] = new StringField(new String(bs), Type.STRING_LEN);
+			children[i] = dis.readInt();
+			markSlotUsed(i, true);
+			usedBytes += COMPACT_ENTRY_OVERHEAD + bs.length;
+		}
+	}
+
+	/**
+	 * Write the entries of this page in the compact layout.
+	 * @see #readCompactEntries
+	 */
+	private void writeCompactEntries(DataOutputStream dos) throws IOException {
+		dos.writeShort(getNumEntries());
+		dos.writeByte(isSlotUsed(0) ? 1 : 0);
+		dos.writeInt(isSlotUsed(0) ? children[0] : 0);
+		for (int i = 1; i < numSlots; i++) {
+			if (isSlotUsed(i)) {
+				String s = compactKey(keys[i]);
+				dos.writeShort(s.length());
+				dos.writeBytes(s);
+				dos.writeInt(children[i]);
+			}
+		}
+	}
+
+	private static String compactKey(Field key) {
+		String s = ((StringField) key).getValue();
+		return s.length() > Type.STRING_LEN ? s.substring(0, Type.STRING_LEN) : s;
+	}
+
+	/**
+	 * Whether internal pages keyed on keyType use the compact layout, which
+	 * stores keys with their actual length. This is the case for STRING_TYPE
+	 * keys, as long as a page is large enough to split any page into two
+	 * pages that each still have room for a key of the maximum length.
+	 *
+	 * @param keyType the type of the key field
+	 * @param npagebytes the page size
+	 */
+	public static boolean usesCompactKeys(Type keyType, int npagebytes) {
+		return keyType == Type.STRING_TYPE && npagebytes >= COMPACT_HEADER_SIZE + 8 * MAX_COMPACT_ENTRY_SIZE;
+	}
+
+	/**
+	 * @return the number of entries with keys of the given type that an
+	 * internal page of npagebytes bytes holds at least, whatever the keys are
+	 */
+	public static int getMaxEntries(Type keyType, int npagebytes) {
+		return getMaxEntries(new Type[] { keyType }, npagebytes);
+	}
+
+	/**
+	 * @return the number of entries with composite keys made of fields of the
+	 * given types that an internal page of npagebytes bytes holds at least
+	 */
+	public static int getMaxEntries(Type[] keyTypes, int npagebytes) {
+		if (keyTypes.length == 1 && usesCompactKeys(keyTypes[0], npagebytes))
+			return (npagebytes - COMPACT_HEADER_SIZE - MAX_COMPACT_ENTRY_SIZE) / MAX_COMPACT_ENTRY_SIZE;
+		int nentrybytes = INDEX_SIZE;
+		for (Type t : keyTypes)
+			nentrybytes += t.getLen();
+		// pointerbytes: one extra child pointer, parent pointer, child page category
+		int pointerbytes = 2 * INDEX_SIZE + 1;
+		return (npagebytes * 8 - pointerbytes * 8 - 1) / (nentrybytes * 8 + 1);
+	}
+
+	/**
+	 * @return the space for entries on an internal page of npagebytes bytes
+	 * with keys of the given types, in the units of
+	 * {@link #getEntrySize(Type[], int, Field)}; what {@link #getMaxEntries()}
+	 * returns for such a page
+	 */
+	static int getCapacity(Type[] keyTypes, int npagebytes) {
+		if (keyTypes.length == 1 && usesCompactKeys(keyTypes[0], npagebytes))
+			return npagebytes - COMPACT_HEADER_SIZE - MAX_COMPACT_ENTRY_SIZE;
+		return getMaxEntries(keyTypes, npagebytes);
+	}
+
+	/**
+	 * @return the space an entry with the given key takes on an internal page
+	 * of npagebytes bytes with keys of the given types; what
+	 * {@link #getEntrySize(Field)} returns for such a page
+	 */
+	static int getEntrySize(Type[] keyTypes, int npagebytes, Field key) {
+		if (keyTypes.length == 1 && usesCompactKeys(keyTypes[0], npagebytes))
+			return COMPACT_ENTRY_OVERHEAD + compactKey(key).length();
+		return 1;
+	}
+
+	/**
+	 * @return the space the largest entry takes on an internal page of
+	 * npagebytes bytes with keys of the given types
+	 */
+	static int getMaxEntrySize(Type[] keyTypes, int npagebytes) {
+		if (keyTypes.length == 1 && usesCompactKeys(keyTypes[0], npagebytes))
+			return MAX_COMPACT_ENTRY_SIZE;
+		return 1;
+	}
+
+	/**
+	 * @return the space an entry with the given key takes on this page, in the
+	 * units of {@link #getMaxEntries}: 1 for fixed-width keys, the size in
+	 * bytes for pages in the compact layout
+	 */
+	public int getEntrySize(Field key) {
+		return compact ? COMPACT_ENTRY_OVERHEAD + compactKey(key).length() : 1;
+	}
+
+	/**
+	 * @return the space taken by the entries of this page, in the units of
+	 * {@link #getMaxEntries}. May exceed getMaxEntries() after a key of the
+	 * page was replaced by a longer one.
+	 */
+	public int getUsedSpace() {
+		return compact ? usedBytes : getNumEntries();
+	}
+
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys，不是pointers to children的数量)
+	 * For pages in the compact layout this is the number of bytes available
+	 * to entries instead, less the size of one maximum-length entry, which is
+	 * kept in reserve so that a key can be replaced by a longer one.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		if (compact)
+			return BufferPool.getPageSize() - COMPACT_HEADER_SIZE - MAX_COMPACT_ENTRY_SIZE;
+		int keySize = keyLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;// 一条entry（记录，占用一个页面中的一个slot）的大小包括：键占用的空间，指向子节点的指针占用的空间，一个slot需要在header中占用1个bit来标记该slot是否已经被占用
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -133,7 +527,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = numSlots;
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
@@ -149,7 +543,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -172,7 +566,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<keyLen(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -185,7 +579,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = parseKey(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -256,6 +650,17 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		if (compact) {
+			try {
+				writeCompactEntries(dos);
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the header of the page
         for (byte b : header) {
             try {
@@ -274,7 +679,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<keyLen(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -287,7 +692,10 @@ public class BTreeInternalPage extends BTreePage {
 
 			// non-empty slot
 			try {
-				keys[i].serialize(dos);
+				if (intKeys != null)
+					dos.writeInt(intKeys[i]);
+				else
+					keys[i].serialize(dos);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -321,7 +729,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding  一个页面的字节数量并不总是恰好用完，所以没用到的字节要填0
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				keyLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -350,26 +758,33 @@ public class BTreeInternalPage extends BTreePage {
 	 *        delete the left child
 	 */
 	private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
-		RecordId rid = e.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to delete entry with null rid");
-		if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to delete entry on invalid page or table");
-		if (!isSlotUsed(rid.getTupleNumber()))
-			throw new DbException("tried to delete null entry.");
-		if(deleteRightChild) {
-			markSlotUsed(rid.getTupleNumber(), false);
-		}
-		else {
-			for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
-				if(isSlotUsed(i)) {
-					children[i] = children[rid.getTupleNumber()];// 结合lab5给出的数节点结构图更容易理解，删除左边的child时、要将左边的child用右边的child覆盖，然后再通过下一句markSlotUsed来删除key和该key右边的child
-					markSlotUsed(rid.getTupleNumber(), false);
-					break;
-				}	
+		beginWrite();
+		try {
+			RecordId rid = e.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to delete entry with null rid");
+			if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to delete entry on invalid page or table");
+			if (!isSlotUsed(rid.getTupleNumber()))
+				throw new DbException("tried to delete null entry.");
+			if (compact)
+				usedBytes -= getEntrySize(keys[rid.getTupleNumber()]);
+			if(deleteRightChild) {
+				markSlotUsed(rid.getTupleNumber(), false);
 			}
+			else {
+				for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
+					if(isSlotUsed(i)) {
+						children[i] = children[rid.getTupleNumber()];// 结合lab5给出的数节点结构图更容易理解，删除左边的child时、要将左边的child用右边的child覆盖，然后再通过下一句markSlotUsed来删除key和该key右边的child
+						markSlotUsed(rid.getTupleNumber(), false);
+						break;
+					}	
+				}
+			}
+			e.setRecordId(null);
+		} finally {
+			endWrite();
 		}
-		e.setRecordId(null);
 	}
 
 	/**
@@ -407,35 +822,44 @@ public class BTreeInternalPage extends BTreePage {
 	 *         order on the page
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
-		RecordId rid = e.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to update entry with null rid");
-		if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to update entry on invalid page or table");
-		if (!isSlotUsed(rid.getTupleNumber()))
-			throw new DbException("tried to update null entry.");
+		beginWrite();
+		try {
+			RecordId rid = e.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to update entry with null rid");
+			if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to update entry on invalid page or table");
+			if (!isSlotUsed(rid.getTupleNumber()))
+				throw new DbException("tried to update null entry.");
+			int growth = compact ? getEntrySize(e.getKey()) - getEntrySize(keys[rid.getTupleNumber()]) : 0;
+			if (compact && usedBytes + growth > BufferPool.getPageSize() - COMPACT_HEADER_SIZE)
+				throw new DbException("no room on page for updated key " + e.getKey());
 		
-		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
-					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-							" HINT: updated key must be less than or equal to keys on the right");
-				}
-				break;
-			}	
-		}
-		for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
-			if(isSlotUsed(i)) {
-				if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
-					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-							" HINT: updated key must be greater than or equal to keys on the left");
-				}
-				children[i] = e.getLeftChild().getPageNumber();
-				break;
-			}	
+			for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
+				if(isSlotUsed(i)) {
+					if(compareKey(i, Op.LESS_THAN, e.getKey())) {
+						throw new DbException("attempt to update entry with invalid key " + e.getKey() +
+								" HINT: updated key must be less than or equal to keys on the right");
+					}
+					break;
+				}	
+			}
+			for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
+				if(isSlotUsed(i)) {
+					if(i > 0 && compareKey(i, Op.GREATER_THAN, e.getKey())) {
+						throw new DbException("attempt to update entry with invalid key " + e.getKey() +
+								" HINT: updated key must be greater than or equal to keys on the left");
+					}
+					children[i] = e.getLeftChild().getPageNumber();
+					break;
+				}	
+			}
+			children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
+			setKey(rid.getTupleNumber(), e.getKey());
+			usedBytes += growth;
+		} finally {
+			endWrite();
 		}
-		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
-		keys[rid.getTupleNumber()] = e.getKey();
 	}
 
 	/**
@@ -446,108 +870,120 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
-			throw new DbException("key field type mismatch, in insertEntry");
+		beginWrite();
+		try {
+			if (!isKey(e.getKey()))
+				throw new DbException("key field type mismatch, in insertEntry");
 
-		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
-			throw new DbException("table id mismatch in insertEntry");
+			if (compact && usedBytes + getEntrySize(e.getKey()) > BufferPool.getPageSize() - COMPACT_HEADER_SIZE)
+				throw new DbException("called insertEntry on page with no room for the key.");
 
-		if(childCategory == 0) {
-			if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
-				throw new DbException("child page category mismatch in insertEntry");
+			if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
+				throw new DbException("table id mismatch in insertEntry");
 
-			childCategory = e.getLeftChild().pgcateg();
-		}
-		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
-			throw new DbException("child page category mismatch in insertEntry");
+			if(childCategory == 0) {
+				if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
+					throw new DbException("child page category mismatch in insertEntry");
 
-		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
-			children[0] = e.getLeftChild().getPageNumber();
-			children[1] = e.getRightChild().getPageNumber();
-			keys[1] = e.getKey();
-			markSlotUsed(0, true);
-			markSlotUsed(1, true);
-			e.setRecordId(new RecordId(pid, 1));
-			return;
-		}
+				childCategory = e.getLeftChild().pgcateg();
+			}
+			else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
+				throw new DbException("child page category mismatch in insertEntry");
 
-		// find the first empty slot, starting from 1
-		int emptySlot = -1;
-		for (int i=1; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
+			// if this is the first entry, add it and return
+			if(getNumEmptySlots() == getMaxEntries()) {
+				children[0] = e.getLeftChild().getPageNumber();
+				children[1] = e.getRightChild().getPageNumber();
+				setKey(1, e.getKey());
+				if (compact)
+					usedBytes += getEntrySize(e.getKey());
+				markSlotUsed(0, true);
+				markSlotUsed(1, true);
+				e.setRecordId(new RecordId(pid, 1));
+				return;
 			}
-		}
 
-		if (emptySlot == -1)
-			throw new DbException("called insertEntry on page with no empty slots.");        
-
-		// find the child pointer matching the left or right child in this entry
-		int lessOrEqKey = -1;
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(children[i] == e.getLeftChild().getPageNumber() || children[i] == e.getRightChild().getPageNumber()) {
-					if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {// 增加i>0条件的原因：key数组在i=0的时候是null，也就是指针数组中的第一个指针、也就是最左边的左节点，不好取对应的key，因为lab中将key和右边的节点强绑定，实际理论上key值也是取右边子节点中的最小值
-						throw new DbException("attempt to insert invalid entry with left child " + 
-								e.getLeftChild().getPageNumber() + ", right child " +
-								e.getRightChild().getPageNumber() + " and key " + e.getKey() +
-								" HINT: one of these children must match an existing child on the page" +
-								" and this key must be correctly ordered in between that child's" +
-								" left and right keys");
-					}
-					lessOrEqKey = i;
-					if(children[i] == e.getRightChild().getPageNumber()) {
-						children[i] = e.getLeftChild().getPageNumber();
-					}
+			// find the first empty slot, starting from 1
+			int emptySlot = -1;
+			for (int i=1; i<numSlots; i++) {
+				if (!isSlotUsed(i)) {
+					emptySlot = i;
+					break;
 				}
-				else if(lessOrEqKey != -1) {
-					// validate that the next key is greater than or equal to the one we are inserting
-					if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
-						throw new DbException("attempt to insert invalid entry with left child " + 
-								e.getLeftChild().getPageNumber() + ", right child " +
-								e.getRightChild().getPageNumber() + " and key " + e.getKey() +
-								" HINT: one of these children must match an existing child on the page" +
-								" and this key must be correctly ordered in between that child's" +
-								" left and right keys");
+			}
+
+			if (emptySlot == -1)
+				throw new DbException("called insertEntry on page with no empty slots.");        
+
+			// find the child pointer matching the left or right child in this entry
+			int lessOrEqKey = -1;
+			for (int i=0; i<numSlots; i++) {
+				if(isSlotUsed(i)) {
+					if(children[i] == e.getLeftChild().getPageNumber() || children[i] == e.getRightChild().getPageNumber()) {
+						if(i > 0 && compareKey(i, Op.GREATER_THAN, e.getKey())) {// 增加i>0条件的原因：key数组在i=0的时候是null，也就是指针数组中的第一个指针、也就是最左边的左节点，不好取对应的key，因为lab中将key和右边的节点强绑定，实际理论上key值也是取右边子节点中的最小值
+							throw new DbException("attempt to insert invalid entry with left child " + 
+									e.getLeftChild().getPageNumber() + ", right child " +
+									e.getRightChild().getPageNumber() + " and key " + e.getKey() +
+									" HINT: one of these children must match an existing child on the page" +
+									" and this key must be correctly ordered in between that child's" +
+									" left and right keys");
+						}
+						lessOrEqKey = i;
+						if(children[i] == e.getRightChild().getPageNumber()) {
+							children[i] = e.getLeftChild().getPageNumber();
+						}
+					}
+					else if(lessOrEqKey != -1) {
+						// validate that the next key is greater than or equal to the one we are inserting
+						if(compareKey(i, Op.LESS_THAN, e.getKey())) {
+							throw new DbException("attempt to insert invalid entry with left child " + 
+									e.getLeftChild().getPageNumber() + ", right child " +
+									e.getRightChild().getPageNumber() + " and key " + e.getKey() +
+									" HINT: one of these children must match an existing child on the page" +
+									" and this key must be correctly ordered in between that child's" +
+									" left and right keys");
+						}
+						break;
 					}
-					break;
 				}
 			}
-		}
 
-		if(lessOrEqKey == -1) {
-			throw new DbException("attempt to insert invalid entry with left child " + 
-					e.getLeftChild().getPageNumber() + ", right child " +
-					e.getRightChild().getPageNumber() + " and key " + e.getKey() +
-					" HINT: one of these children must match an existing child on the page" +
-					" and this key must be correctly ordered in between that child's" +
-					" left and right keys");
-		}
+			if(lessOrEqKey == -1) {
+				throw new DbException("attempt to insert invalid entry with left child " + 
+						e.getLeftChild().getPageNumber() + ", right child " +
+						e.getRightChild().getPageNumber() + " and key " + e.getKey() +
+						" HINT: one of these children must match an existing child on the page" +
+						" and this key must be correctly ordered in between that child's" +
+						" left and right keys");
+			}
 
-		// shift entries back or forward to fill empty slot and make room for new entry
-		// while keeping entries in sorted order
-		int goodSlot = -1;
-		if(emptySlot < lessOrEqKey) {
-			for(int i = emptySlot; i < lessOrEqKey; i++) {
-				moveEntry(i+1, i);
+			// shift entries back or forward to fill empty slot and make room for new entry
+			// while keeping entries in sorted order
+			int goodSlot = -1;
+			if(emptySlot < lessOrEqKey) {
+				for(int i = emptySlot; i < lessOrEqKey; i++) {
+					moveEntry(i+1, i);
+				}
+				goodSlot = lessOrEqKey;
 			}
-			goodSlot = lessOrEqKey;
-		}
-		else {
-			for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
-				moveEntry(i-1, i);
+			else {
+				for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
+					moveEntry(i-1, i);
+				}
+				goodSlot = lessOrEqKey + 1;
 			}
-			goodSlot = lessOrEqKey + 1;
-		}
 
-		// insert new entry into the correct spot in sorted order
-		markSlotUsed(goodSlot, true);
-		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
-		keys[goodSlot] = e.getKey();
-		children[goodSlot] = e.getRightChild().getPageNumber();
-		e.setRecordId(new RecordId(pid, goodSlot));
+			// insert new entry into the correct spot in sorted order
+			markSlotUsed(goodSlot, true);
+			Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
+			setKey(goodSlot, e.getKey());
+			if (compact)
+				usedBytes += getEntrySize(e.getKey());
+			children[goodSlot] = e.getRightChild().getPageNumber();
+			e.setRecordId(new RecordId(pid, goodSlot));
+		} finally {
+			endWrite();
+		}
 	}
 
 	/**
@@ -558,22 +994,61 @@ public class BTreeInternalPage extends BTreePage {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
 			keys[to] = keys[from];
+			if (intKeys != null)
+				intKeys[to] = intKeys[from];
 			children[to] = children[from];
 			markSlotUsed(from, false);
 		}
 	}
 
+	private void setKey(int i, Field key) {
+		keys[i] = key;
+		if (intKeys != null)
+			intKeys[i] = ((IntField) key).getValue();
+	}
+
+	/**
+	 * Compare the key in slot i with f without materializing it.
+	 * @return whether key op f holds
+	 */
+	private boolean compareKey(int i, Op op, Field f) {
+		if (intKeys != null)
+			return IntField.compare(intKeys[i], op, ((IntField) f).getValue());
+		return keys[i].compare(op, f);
+	}
+
+	/**
+	 * Read the key in slot i without caching it in keys, so that it may be
+	 * called without a lock on the page: a cached key could outlive a
+	 * concurrent moveEntry.
+	 */
+	private Field peekKey(int i) {
+		if (intKeys != null)
+			return new IntField(intKeys[i]);
+		return keys[i];
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
+		if (compact)
+			return numSlots - countEmptySlots() - 1;
 		return numSlots - getNumEmptySlots() - 1;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. For pages in the
+	 * compact layout this is the number of unused bytes instead, in the units
+	 * of {@link #getMaxEntries}.
 	 */
 	public int getNumEmptySlots() {
+		if (compact)
+			return Math.max(0, getMaxEntries() - usedBytes);
+		return countEmptySlots();
+	}
+
+	private int countEmptySlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -583,6 +1058,13 @@ public class BTreeInternalPage extends BTreePage {
 		return cnt;
 	}
 
+	/**
+	 * @return the number of slots of this page, including slot 0
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -641,7 +1123,13 @@ public class BTreeInternalPage extends BTreePage {
 			}
 
 			Debug.log(1, "BTreeInternalPage.getKey: returning key %d", i);
-			return keys[i];
+			Field key = keys[i];
+			// 只在持有页面锁的路径上缓存，无锁的读取用peekKey
+			if (key == null && intKeys != null) {
+				key = new IntField(intKeys[i]);
+				keys[i] = key;
+			}
+			return key;
 
 		} catch (ArrayIndexOutOfBoundsException e) {
 			throw new NoSuchElementException();
@@ -746,7 +1234,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -766,8 +1254,14 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null)
+					continue;
+				// 左孩子在前一个被占用的slot里，删除entry后中间可能留有空slot
+				int prev = entry - 1;
+				while(prev > 0 && !p.isSlotUsed(prev))
+					prev--;
+				BTreePageId childId = p.getChildId(prev);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
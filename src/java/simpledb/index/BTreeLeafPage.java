@@ -19,7 +19,7 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements SlottedPage {
 	private final byte[] header;
 	private final Tuple[] tuples;
 	private final int numSlots;
@@ -27,15 +27,27 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	/**
+	 * The used slots of this page in key order, or null if the page changed
+	 * since it was last built. Lets lookups binary search the tuples instead
+	 * of walking every slot.
+	 */
+	private volatile int[] slotDirectory = null;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
+		checkRep(new int[] { fieldid }, lowerBound, upperBound, checkoccupancy, depth);
+	}
+
+	public void checkRep(int[] fieldids, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
 
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			Field key = BTreeFile.keyOf(t, fieldids);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key));
+			prev = key;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -66,7 +78,19 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeLeafPage of a B+ tree keyed on one or more fields.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -131,6 +155,19 @@ public class BTreeLeafPage extends BTreePage {
 		return hb;
 	}
 
+	public int getSlotAreaOffset() {
+		// parent pointer, left and right sibling pointers, then the header
+		return 3 * INDEX_SIZE + header.length;
+	}
+
+	public int getSlotSize() {
+		return td.getSize();
+	}
+
+	public int getNumSlots() {
+		return numSlots;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeLeafPage getBeforeImage(){
@@ -140,7 +177,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -326,16 +363,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int[] slots = slotDirectory();
+		int pos = search(slots, Predicate.Op.GREATER_THAN, keyOf(t));
+		int lessOrEqKey = pos == 0 ? -1 : slots[pos - 1];
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -476,6 +506,50 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		slotDirectory = null;
+	}
+
+	/**
+	 * @return the used slots of this page in key order
+	 */
+	int[] slotDirectory() {
+		int[] slots = slotDirectory;
+		if (slots != null)
+			return slots;
+		slots = new int[numSlots];
+		int n = 0;
+		for (int i = 0; i < numSlots; i++) {
+			if (isSlotUsed(i))
+				slots[n++] = i;
+		}
+		slots = Arrays.copyOf(slots, n);
+		slotDirectory = slots;
+		return slots;
+	}
+
+	/**
+	 * Binary search the slot directory.
+	 * @param slots the slot directory of this page
+	 * @param op GREATER_THAN or GREATER_THAN_OR_EQ
+	 * @param f the key to search for
+	 * @return the position in slots of the first tuple whose key satisfies
+	 *         key op f, or slots.length if there is none
+	 */
+	private int search(int[] slots, Predicate.Op op, Field f) {
+		int lo = 0;
+		int hi = slots.length;
+		// int键直接比较基本类型
+		boolean ints = f instanceof IntField && singleKeyType() == Type.INT_TYPE;
+		int v = ints ? ((IntField) f).getValue() : 0;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			Field key = keyOf(tuples[slots[mid]]);
+			if (ints ? IntField.compare(((IntField) key).getValue(), op, v) : key.compare(op, f))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
 	}
 
 	/**
@@ -486,6 +560,17 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page starting at the first
+	 * tuple whose key is greater than or equal to f (calling remove on this
+	 * iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		int[] slots = slotDirectory();
+		int pos = search(slots, Predicate.Op.GREATER_THAN_OR_EQ, f);
+		return new BTreeLeafPageIterator(this, pos == slots.length ? numSlots : slots[pos]);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -532,6 +617,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int startSlot) {
+		this.p = p;
+		this.curTuple = startSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
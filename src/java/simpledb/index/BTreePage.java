@@ -1,11 +1,17 @@
 package simpledb.index;
 
+import java.io.DataInputStream;
+import java.text.ParseException;
+
 import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.CompositeField;
+import simpledb.storage.Field;
 import simpledb.storage.Page;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
@@ -25,7 +31,8 @@ public abstract class BTreePage implements Page {
 
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
-	protected final int keyField;
+	protected final int keyField; // 复合键的第一个字段
+	protected final int[] keyFields;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -55,11 +62,75 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) {
+		this(id, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreePage of a B+ tree keyed on one or more fields.
+	 *
+	 * @param id - the id of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 * @see BTreeFile#keyOf(Tuple, int[])
+	 */
+	public BTreePage(BTreePageId id, int[] keyFields) {
 		this.pid = id;
-		this.keyField = key;
+		this.keyFields = keyFields.clone();
+		this.keyField = keyFields[0];
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	/**
+	 * @return the key of tuple t in the B+ tree this page belongs to
+	 */
+	protected Field keyOf(Tuple t) {
+		return BTreeFile.keyOf(t, keyFields);
+	}
+
+	/**
+	 * @return the type of the key field, or null if the B+ tree is keyed on
+	 * more than one field
+	 */
+	protected Type singleKeyType() {
+		return keyFields.length == 1 ? td.getFieldType(keyField) : null;
+	}
+
+	/**
+	 * @return the number of bytes a key of this page takes when serialized
+	 */
+	protected int keyLen() {
+		int len = 0;
+		for (int f : keyFields)
+			len += td.getFieldType(f).getLen();
+		return len;
+	}
+
+	/**
+	 * Read a key of this page as written by {@link Field#serialize}.
+	 */
+	protected Field parseKey(DataInputStream dis) throws ParseException {
+		if (keyFields.length == 1)
+			return td.getFieldType(keyField).parse(dis);
+		Type[] types = new Type[keyFields.length];
+		for (int i = 0; i < types.length; i++)
+			types[i] = td.getFieldType(keyFields[i]);
+		return CompositeField.parse(types, dis);
+	}
+
+	/**
+	 * @return whether f can be a key of this page
+	 */
+	protected boolean isKey(Field f) {
+		if (keyFields.length == 1)
+			return f.getType().equals(td.getFieldType(keyField));
+		if (!(f instanceof CompositeField) || ((CompositeField) f).numFields() != keyFields.length)
+			return false;
+		for (int i = 0; i < keyFields.length; i++) {
+			if (!((CompositeField) f).getField(i).getType().equals(td.getFieldType(keyFields[i])))
+				return false;
+		}
+		return true;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
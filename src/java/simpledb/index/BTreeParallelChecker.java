@@ -0,0 +1,383 @@
+package simpledb.index;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+
+/**
+ * BTreeParallelChecker checks the invariants of a BTreeFile offline, for indexes too
+ * large for {@link BTreeChecker}. It reads the pages straight from the file with
+ * {@link BTreeFile#readPages(List)}, without going through the buffer pool or taking
+ * locks, so nothing may write to the file while it runs; flush the buffer pool first.
+ * <p>
+ * The top levels of the tree are checked on the calling thread until there are enough
+ * subtrees to keep the workers busy. Each subtree is then checked by a worker, and the
+ * sibling pointers between neighbouring subtrees are checked when all are done. The
+ * same invariants as in {@link BTreeChecker#checkRep} are checked, but a violation is
+ * reported in the {@link Result} instead of failing an assertion, so the checker does
+ * not depend on assertions being enabled.
+ * <p>
+ * In sampling mode only a random fraction of the subtrees is checked, together with all
+ * pages above them.
+ */
+public class BTreeParallelChecker {
+
+	/** Subtrees per worker, so that workers that finish early can take over some of the work. */
+	private static final int SUBTREES_PER_THREAD = 4;
+
+	/** The result of a check. */
+	public static class Result {
+		private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+		private int internalPages;
+		private int leafPages;
+		private int tuples;
+		private int subtrees;
+		private int subtreesChecked;
+
+		/** @return true if no invariant was violated */
+		public boolean isValid() {
+			return errors.isEmpty();
+		}
+
+		/** @return a description of each violated invariant */
+		public List<String> getErrors() {
+			return errors;
+		}
+
+		public int getInternalPages() {
+			return internalPages;
+		}
+
+		public int getLeafPages() {
+			return leafPages;
+		}
+
+		/** @return the number of tuples on the leaves checked */
+		public int getTuples() {
+			return tuples;
+		}
+
+		/** @return the number of subtrees the tree was divided into for the workers */
+		public int getSubtrees() {
+			return subtrees;
+		}
+
+		/** @return the number of subtrees checked; less than getSubtrees() when sampling */
+		public int getSubtreesChecked() {
+			return subtreesChecked;
+		}
+
+		private synchronized void add(int internalPages, int leafPages, int tuples) {
+			this.internalPages += internalPages;
+			this.leafPages += leafPages;
+			this.tuples += tuples;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d of %d subtrees, %d internal and %d leaf pages, %d tuples, %d errors",
+					subtreesChecked, subtrees, internalPages, leafPages, tuples, errors.size());
+		}
+	}
+
+	/** A page still to be checked, with what its parent says about it. */
+	private static class Subtree {
+		final BTreePageId pid;
+		final Field lowerBound;
+		final Field upperBound;
+		final BTreePageId parentId;
+		final int depth;
+
+		Subtree(BTreePageId pid, Field lowerBound, Field upperBound, BTreePageId parentId, int depth) {
+			this.pid = pid;
+			this.lowerBound = lowerBound;
+			this.upperBound = upperBound;
+			this.parentId = parentId;
+			this.depth = depth;
+		}
+	}
+
+	/** The leaves at the edges of a checked subtree, like BTreeChecker.SubtreeSummary. */
+	private static class Summary {
+		int depth;
+		BTreePageId ptrLeft;
+		BTreePageId leftmostId;
+		BTreePageId ptrRight;
+		BTreePageId rightmostId;
+	}
+
+	private final BTreeFile file;
+	private final int threads;
+	private final double sampleFraction;
+	private final Random random;
+
+	/**
+	 * Create a checker that checks the whole tree with one worker per processor.
+	 *
+	 * @param file the B+ tree to check
+	 */
+	public BTreeParallelChecker(BTreeFile file) {
+		this(file, Runtime.getRuntime().availableProcessors(), 1.0, new Random());
+	}
+
+	/**
+	 * @param file the B+ tree to check
+	 * @param threads the number of workers
+	 * @param sampleFraction the fraction of the subtrees to check, 1.0 to check all of them
+	 * @param random the source of the sample
+	 */
+	public BTreeParallelChecker(BTreeFile file, int threads, double sampleFraction, Random random) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		if (sampleFraction <= 0 || sampleFraction > 1)
+			throw new IllegalArgumentException("sample fraction must be in (0, 1]: " + sampleFraction);
+		this.file = file;
+		this.threads = threads;
+		this.sampleFraction = sampleFraction;
+		this.random = random;
+	}
+
+	/**
+	 * Check the tree.
+	 *
+	 * @param checkOccupancy whether to check that pages other than the root are at
+	 * least half full
+	 * @return the violations found and what was checked
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	public Result check(boolean checkOccupancy) throws InterruptedException {
+		Result result = new Result();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) file.readPage(BTreeRootPtrPage.getId(file.getId()));
+		if (rootPtr.getRootId() == null)
+			return result;
+
+		// 在当前线程里一层层往下展开，直到子树够分给所有的worker
+		List<Subtree> frontier = new ArrayList<>();
+		frontier.add(new Subtree(rootPtr.getRootId(), null, null, rootPtr.getId(), 0));
+		int[] counts = new int[3];
+		while (frontier.size() < threads * SUBTREES_PER_THREAD) {
+			List<Subtree> next = new ArrayList<>();
+			boolean expanded = false;
+			for (Subtree s : frontier) {
+				if (s.pid.pgcateg() != BTreePageId.INTERNAL) {
+					next.add(s);
+					continue;
+				}
+				BTreeInternalPage page = (BTreeInternalPage) read(Collections.singletonList(s), result).get(0);
+				if (page != null && checkInternal(page, s, checkOccupancy, result, counts))
+					next.addAll(children(page, s));
+				expanded = true;
+			}
+			frontier = next;
+			if (!expanded)
+				break;
+		}
+		result.add(counts[0], counts[1], counts[2]);
+
+		result.subtrees = frontier.size();
+		boolean[] sampled = new boolean[frontier.size()];
+		for (int i = 0; i < sampled.length; i++)
+			sampled[i] = sampleFraction >= 1 || random.nextDouble() < sampleFraction;
+		if (sampled.length > 0)
+			sampled[random.nextInt(sampled.length)] = true;
+
+		ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "simpledb-checker");
+			t.setDaemon(true);
+			return t;
+		});
+		List<Future<Summary>> futures = new ArrayList<>();
+		try {
+			for (int i = 0; i < frontier.size(); i++) {
+				Subtree s = frontier.get(i);
+				futures.add(sampled[i] ? workers.submit(() -> checkSubtree(s, checkOccupancy, result)) : null);
+			}
+			// 相邻的两棵子树都检查过时，才能检查它们之间的兄弟指针
+			Summary prev = null;
+			for (int i = 0; i < futures.size(); i++) {
+				Summary summary = futures.get(i) == null ? null : futures.get(i).get();
+				if (futures.get(i) != null)
+					result.subtreesChecked++;
+				if (summary != null) {
+					if (i == 0 && summary.ptrLeft != null)
+						result.errors.add("left-most leaf " + summary.leftmostId + " has left sibling " + summary.ptrLeft);
+					if (i == futures.size() - 1 && summary.ptrRight != null)
+						result.errors.add("right-most leaf " + summary.rightmostId + " has right sibling " + summary.ptrRight);
+					if (prev != null)
+						checkSiblings(prev, summary, result);
+				}
+				prev = summary;
+			}
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			workers.shutdownNow();
+		}
+		return result;
+	}
+
+	/**
+	 * Check a subtree depth first on the calling worker.
+	 *
+	 * @return the leaves at its edges, or null if its pages could not be checked
+	 */
+	private Summary checkSubtree(Subtree root, boolean checkOccupancy, Result result) {
+		int[] counts = new int[3];
+		Summary summary = checkSubtree(root, read(Collections.singletonList(root), result).get(0),
+				checkOccupancy, result, counts);
+		result.add(counts[0], counts[1], counts[2]);
+		return summary;
+	}
+
+	private Summary checkSubtree(Subtree s, Page page, boolean checkOccupancy, Result result, int[] counts) {
+		if (page == null)
+			return null;
+		if (page instanceof BTreeLeafPage) {
+			BTreeLeafPage leaf = (BTreeLeafPage) page;
+			checkLeaf(leaf, s, checkOccupancy, result, counts);
+			Summary summary = new Summary();
+			summary.depth = s.depth;
+			summary.leftmostId = leaf.getId();
+			summary.rightmostId = leaf.getId();
+			summary.ptrLeft = leaf.getLeftSiblingId();
+			summary.ptrRight = leaf.getRightSiblingId();
+			return summary;
+		}
+		BTreeInternalPage internal = (BTreeInternalPage) page;
+		if (!checkInternal(internal, s, checkOccupancy, result, counts))
+			return null;
+		// 一个父节点的所有孩子一起读，页号连续的能合成一次读
+		List<Subtree> children = children(internal, s);
+		List<Page> pages = read(children, result);
+		Summary acc = null;
+		Summary prev = null;
+		boolean complete = true;
+		for (int i = 0; i < children.size(); i++) {
+			Summary summary = checkSubtree(children.get(i), pages.get(i), checkOccupancy, result, counts);
+			if (summary == null) {
+				complete = false;
+			} else {
+				if (prev != null)
+					checkSiblings(prev, summary, result);
+				acc = acc == null ? summary : join(acc, summary);
+			}
+			prev = summary;
+		}
+		return complete ? acc : null;
+	}
+
+	/** Read pages from the file, reporting the ones that cannot be read as null. */
+	private List<Page> read(List<Subtree> subtrees, Result result) {
+		List<PageId> pids = new ArrayList<>();
+		for (Subtree s : subtrees)
+			pids.add(s.pid);
+		try {
+			return file.readPages(pids);
+		} catch (RuntimeException e) {
+			// 整段读失败时逐页读，只把读不出来的页记为错误
+			List<Page> pages = new ArrayList<>();
+			for (PageId pid : pids) {
+				try {
+					pages.add(file.readPage(pid));
+				} catch (RuntimeException e2) {
+					result.errors.add("page " + pid + " cannot be read: " + e2.getMessage());
+					pages.add(null);
+				}
+			}
+			return pages;
+		}
+	}
+
+	/** @return the children of page, each with the bounds the entries around it give */
+	private static List<Subtree> children(BTreeInternalPage page, Subtree s) {
+		List<Subtree> children = new ArrayList<>();
+		Field lowerBound = s.lowerBound;
+		BTreeEntry e = null;
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext()) {
+			e = it.next();
+			children.add(new Subtree(e.getLeftChild(), lowerBound, e.getKey(), page.getId(), s.depth + 1));
+			lowerBound = e.getKey();
+		}
+		children.add(new Subtree(e.getRightChild(), lowerBound, s.upperBound, page.getId(), s.depth + 1));
+		return children;
+	}
+
+	/** @return true if the children of page can be checked */
+	private static boolean checkInternal(BTreeInternalPage page, Subtree s, boolean checkOccupancy, Result result,
+			int[] counts) {
+		counts[0]++;
+		checkParent(page, s, result);
+		if (page.getNumEntries() == 0) {
+			result.errors.add("internal page " + page.getId() + " has no entries");
+			return false;
+		}
+		Field prev = s.lowerBound;
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext()) {
+			Field key = it.next().getKey();
+			if (prev != null && !prev.compare(Op.LESS_THAN_OR_EQ, key))
+				result.errors.add("internal page " + page.getId() + ": key " + key + " after " + prev);
+			prev = key;
+		}
+		if (s.upperBound != null && !prev.compare(Op.LESS_THAN_OR_EQ, s.upperBound))
+			result.errors.add("internal page " + page.getId() + ": key " + prev + " above " + s.upperBound);
+		if (checkOccupancy && s.depth > 0 && page.getUsedSpace() < page.getMaxEntries() / 2)
+			result.errors.add("internal page " + page.getId() + " is less than half full");
+		return true;
+	}
+
+	private void checkLeaf(BTreeLeafPage leaf, Subtree s, boolean checkOccupancy, Result result, int[] counts) {
+		counts[1]++;
+		counts[2] += leaf.getNumTuples();
+		checkParent(leaf, s, result);
+		Field prev = s.lowerBound;
+		Iterator<Tuple> it = leaf.iterator();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			Field key = file.keyOf(t);
+			if (prev != null && !prev.compare(Op.LESS_THAN_OR_EQ, key))
+				result.errors.add("leaf " + leaf.getId() + ": key " + key + " after " + prev);
+			prev = key;
+			if (!leaf.getId().equals(t.getRecordId().getPageId()))
+				result.errors.add("leaf " + leaf.getId() + ": tuple with record id " + t.getRecordId());
+		}
+		if (s.upperBound != null && prev != null && !prev.compare(Op.LESS_THAN_OR_EQ, s.upperBound))
+			result.errors.add("leaf " + leaf.getId() + ": key " + prev + " above " + s.upperBound);
+		if (checkOccupancy && s.depth > 0 && leaf.getNumTuples() < leaf.getMaxTuples() / 2)
+			result.errors.add("leaf " + leaf.getId() + " is less than half full");
+	}
+
+	private static void checkParent(BTreePage page, Subtree s, Result result) {
+		if (!s.parentId.equals(page.getParentId()))
+			result.errors.add("page " + page.getId() + " has parent " + page.getParentId() + " instead of " + s.parentId);
+	}
+
+	/** Check the sibling pointers between the leaves at the edges of two neighbouring subtrees. */
+	private static void checkSiblings(Summary left, Summary right, Result result) {
+		if (left.depth != right.depth)
+			result.errors.add("leaves " + left.rightmostId + " and " + right.leftmostId + " at depths "
+					+ left.depth + " and " + right.depth);
+		if (!right.leftmostId.equals(left.ptrRight))
+			result.errors.add("leaf " + left.rightmostId + " has right sibling " + left.ptrRight
+					+ " instead of " + right.leftmostId);
+		if (!left.rightmostId.equals(right.ptrLeft))
+			result.errors.add("leaf " + right.leftmostId + " has left sibling " + right.ptrLeft
+					+ " instead of " + left.rightmostId);
+	}
+
+	private static Summary join(Summary left, Summary right) {
+		Summary joined = new Summary();
+		joined.depth = left.depth;
+		joined.leftmostId = left.leftmostId;
+		joined.ptrLeft = left.ptrLeft;
+		joined.rightmostId = right.rightmostId;
+		joined.ptrRight = right.ptrRight;
+		return joined;
+	}
+}
@@ -421,9 +421,13 @@ public class BTreeUtility {
 	 * @return the opened table.
 	 */
 	public static BTreeFile openBTreeFile(int cols, File f, int keyField) {
+		return openBTreeFile(cols, f, new int[] { keyField });
+	}
+
+	public static BTreeFile openBTreeFile(int cols, File f, int[] keyFields) {
 		// create the BTreeFile and add it to the catalog
 		TupleDesc td = Utility.getTupleDesc(cols);
-		BTreeFile bf = new BTreeFile(f, keyField, td);
+		BTreeFile bf = new BTreeFile(f, keyFields, td);
 		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
 		return bf;
 	}
@@ -0,0 +1,328 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * A secondary index of a heap table: a B+ tree holding one entry per tuple
+ * of the table, made of the tuple's value in the key field and its
+ * RecordId, stored as a page number and a tuple number. The B+ tree is keyed
+ * on the first field of the entries.
+ * <p>
+ * {@link #create} builds an index while other transactions keep changing
+ * the table:
+ * <ol>
+ * <li>The index is registered in the catalog before anything else, so that
+ * from then on BufferPool tells it about every inserted and deleted tuple.
+ * While the index is being built these changes are only captured, as the
+ * RecordId of the tuple and the key it had.</li>
+ * <li>The table is scanned through the buffer pool one page at a time,
+ * holding the read lock of a page only while its tuples are copied, and the
+ * entries are bulk loaded into a new B+ tree with {@link BTreeBulkLoader}.</li>
+ * <li>The captured changes are applied to the B+ tree in short
+ * transactions until few are left. Then capturing stops, so later changes
+ * go straight into the B+ tree as part of the transaction making them, the
+ * rest of the captured changes is applied, and the index becomes ready.</li>
+ * </ol>
+ * A captured change is applied by looking at what the slot of the tuple
+ * holds now rather than by replaying the change, so changes the scan already
+ * saw, and changes of transactions that abort, do no harm.
+ */
+public class SecondaryIndex {
+
+	/** Captured RecordIds applied per transaction while catching up. */
+	private static final int CATCH_UP_BATCH = 256;
+
+	private final String name;
+	private final int tableid;
+	private final int keyField;
+	private final TupleDesc entryDesc;
+	private volatile BTreeFile file; // null until the bulk load is done
+	private volatile boolean ready = false;
+	// 构建期间捕获的修改：RecordId -> 这个位置先后出现过的键。停止捕获后为null
+	private Map<RecordId, Set<Field>> captured = new HashMap<>(); // protected by this
+
+	private SecondaryIndex(String name, int tableid, int keyField, TupleDesc tableDesc) {
+		this.name = name;
+		this.tableid = tableid;
+		this.keyField = keyField;
+		this.entryDesc = new TupleDesc(
+				new Type[] { tableDesc.getFieldType(keyField), Type.INT_TYPE, Type.INT_TYPE },
+				new String[] { tableDesc.getFieldName(keyField), "pageno", "tupleno" });
+	}
+
+	/**
+	 * Build a secondary index of a heap table and register it in the catalog,
+	 * without blocking transactions that change the table in the meantime.
+	 * The build runs in transactions of its own.
+	 *
+	 * @param name - the name of the index
+	 * @param tableid - the table to index; must be a HeapFile
+	 * @param fieldName - the name of the field to index
+	 * @param indexFile - the file to store the B+ tree in; it is overwritten
+	 * @return the index, ready to be used by queries
+	 * @throws NoSuchElementException if the table or the field does not exist
+	 */
+	public static SecondaryIndex create(String name, int tableid, String fieldName, File indexFile)
+			throws DbException, IOException, TransactionAbortedException {
+		DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+		if (!(table instanceof HeapFile)) {
+			throw new DbException("only heap files can have secondary indexes");
+		}
+		int keyField = table.getTupleDesc().fieldNameToIndex(fieldName);
+		SecondaryIndex index = new SecondaryIndex(name, tableid, keyField, table.getTupleDesc());
+
+		Database.getCatalog().addIndex(index);
+		try {
+			index.build((HeapFile) table, indexFile);
+		} catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+			Database.getCatalog().removeIndex(index);
+			throw e;
+		}
+		return index;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** @return the id of the indexed table */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/** @return the index of the indexed field in the table's TupleDesc */
+	public int getKeyField() {
+		return keyField;
+	}
+
+	/** @return the B+ tree of entries, or null while the index is being built */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/** @return the TupleDesc of the entries: key, page number, tuple number */
+	public TupleDesc getEntryDesc() {
+		return entryDesc;
+	}
+
+	/** @return true once the build has completed and queries may use the index */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/** @return the RecordId of the table tuple an entry points to */
+	public RecordId recordIdOf(Tuple entry) {
+		return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(1)).getValue()),
+				((IntField) entry.getField(2)).getValue());
+	}
+
+	private Tuple entryFor(Field key, RecordId rid) {
+		Tuple entry = new Tuple(entryDesc);
+		entry.setField(0, key);
+		entry.setField(1, new IntField(rid.getPageId().getPageNumber()));
+		entry.setField(2, new IntField(rid.getTupleNumber()));
+		return entry;
+	}
+
+	/**
+	 * Called by BufferPool after t was inserted into the table by tid.
+	 */
+	public void tupleInserted(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if (!capture(t)) {
+			Database.getBufferPool().insertTuple(tid, file.getId(), entryFor(t.getField(keyField), t.getRecordId()));
+		}
+	}
+
+	/**
+	 * Called by BufferPool after t was deleted from the table by tid.
+	 */
+	public void tupleDeleted(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if (!capture(t)) {
+			deleteEntry(tid, t.getField(keyField), t.getRecordId());
+		}
+	}
+
+	/** @return false if changes are no longer captured but applied directly */
+	private synchronized boolean capture(Tuple t) {
+		if (captured == null) {
+			return false;
+		}
+		captured.computeIfAbsent(t.getRecordId(), rid -> new HashSet<>()).add(t.getField(keyField));
+		return true;
+	}
+
+	/** Take the changes captured so far, and stop capturing if stop is set. */
+	private synchronized Map<RecordId, Set<Field>> takeCaptured(boolean stop) {
+		Map<RecordId, Set<Field>> changes = captured;
+		captured = stop ? null : new HashMap<>();
+		return changes;
+	}
+
+	private void build(HeapFile table, File indexFile)
+			throws DbException, IOException, TransactionAbortedException {
+		Transaction scan = new Transaction();
+		scan.start();
+		try {
+			DbFileIterator it = new EntryScan(scan.getId(), table);
+			it.open();
+			file = new BTreeBulkLoader(entryDesc, 0, BTreeBulkLoader.DEFAULT_FILL_FACTOR,
+					BTreeBulkLoader.DEFAULT_MEMORY_BUDGET).load(it, indexFile);
+			it.close();
+		} catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+			scan.abort();
+			throw e;
+		}
+		scan.commit();
+
+		Map<RecordId, Set<Field>> changes = takeCaptured(false);
+		while (changes.size() > CATCH_UP_BATCH) {
+			apply(changes);
+			changes = takeCaptured(false);
+		}
+		for (Map.Entry<RecordId, Set<Field>> e : takeCaptured(true).entrySet()) {
+			changes.computeIfAbsent(e.getKey(), rid -> new HashSet<>()).addAll(e.getValue());
+		}
+		apply(changes);
+		ready = true;
+	}
+
+	/** Apply captured changes in batches, retrying a batch whose transaction aborts. */
+	private void apply(Map<RecordId, Set<Field>> changes) throws DbException, IOException {
+		List<Map.Entry<RecordId, Set<Field>>> list = new ArrayList<>(changes.entrySet());
+		for (int i = 0; i < list.size(); i += CATCH_UP_BATCH) {
+			List<Map.Entry<RecordId, Set<Field>>> batch = list.subList(i, Math.min(i + CATCH_UP_BATCH, list.size()));
+			while (true) {
+				Transaction t = new Transaction();
+				t.start();
+				try {
+					for (Map.Entry<RecordId, Set<Field>> e : batch) {
+						reconcile(t.getId(), e.getKey(), e.getValue());
+					}
+				} catch (TransactionAbortedException e) {
+					t.abort();
+					continue;
+				} catch (DbException | IOException | RuntimeException e) {
+					t.abort();
+					throw e;
+				}
+				t.commit();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Make the entries for rid match what its slot holds now. keys are all
+	 * the keys that may have been indexed for rid.
+	 */
+	private void reconcile(TransactionId tid, RecordId rid, Set<Field> keys)
+			throws DbException, IOException, TransactionAbortedException {
+		// 读锁一直持有到事务结束，这期间其他事务不能再修改这个位置
+		HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+		Tuple t = page.getTuple(rid.getTupleNumber());
+		Field current = t == null ? null : t.getField(keyField);
+
+		for (Field key : keys) {
+			if (!key.equals(current)) {
+				deleteEntry(tid, key, rid);
+			}
+		}
+		if (current != null && findEntry(tid, current, rid) == null) {
+			Database.getBufferPool().insertTuple(tid, file.getId(), entryFor(current, rid));
+		}
+	}
+
+	private Tuple findEntry(TransactionId tid, Field key, RecordId rid)
+			throws DbException, TransactionAbortedException {
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+		it.open();
+		try {
+			while (it.hasNext()) {
+				Tuple entry = it.next();
+				if (recordIdOf(entry).equals(rid)) {
+					return entry;
+				}
+			}
+			return null;
+		} finally {
+			it.close();
+		}
+	}
+
+	private void deleteEntry(TransactionId tid, Field key, RecordId rid)
+			throws DbException, IOException, TransactionAbortedException {
+		Tuple entry = findEntry(tid, key, rid);
+		if (entry != null) {
+			Database.getBufferPool().deleteTuple(tid, entry);
+		}
+	}
+
+	/**
+	 * Scans a heap file through the buffer pool and returns the entry of
+	 * every tuple. Only the page being copied is locked.
+	 */
+	private class EntryScan extends AbstractDbFileIterator {
+		private final TransactionId tid;
+		private final HeapFile table;
+		private int pgNo;
+		private Iterator<Tuple> it;
+
+		EntryScan(TransactionId tid, HeapFile table) {
+			this.tid = tid;
+			this.table = table;
+		}
+
+		public void open() {
+			pgNo = 0;
+			it = Collections.emptyIterator();
+		}
+
+		public void rewind() {
+			open();
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			it = null;
+		}
+
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (it == null) {
+				return null;
+			}
+			// 表在扫描过程中可能变长，每次重新取页数
+			while (!it.hasNext()) {
+				if (pgNo >= table.numPages()) {
+					return null;
+				}
+				HeapPageId pid = new HeapPageId(tableid, pgNo++);
+				HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+				List<Tuple> entries = new ArrayList<>();
+				for (int i = 0; i < page.getNumSlots(); i++) {
+					Tuple t = page.getTuple(i);
+					if (t != null) {
+						entries.add(entryFor(t.getField(keyField), t.getRecordId()));
+					}
+				}
+				Database.getBufferPool().unsafeReleasePage(tid, pid);
+				it = entries.iterator();
+			}
+			return it.next();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * SecondaryIndexScan is an operator which reads the tuples of a heap table
+ * that match a predicate on the field of a {@link SecondaryIndex}.
+ * <p>
+ * Matching entries are read from the index in batches of RecordIds. Each
+ * batch is sorted by page before the tuples are fetched, so every heap page
+ * is read at most once per batch and pages are visited in file order. As a
+ * consequence tuples are not returned in key order.
+ */
+public class SecondaryIndexScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	/** RecordIds read from the index and sorted together. */
+	public static final int RID_BATCH = 4096;
+
+	private static final Comparator<RecordId> BY_PAGE = (a, b) -> {
+		int cmp = Integer.compare(a.getPageId().getPageNumber(), b.getPageId().getPageNumber());
+		return cmp != 0 ? cmp : Integer.compare(a.getTupleNumber(), b.getTupleNumber());
+	};
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final SecondaryIndex index;
+	private final IndexPredicate ipred;
+	private final String alias;
+	private final TupleDesc myTd;
+	private transient DbFileIterator entries;
+	private transient Iterator<RecordId> batch;
+	private transient HeapPage page;
+	private transient Tuple next;
+
+	/**
+	 * Creates a scan of the table of a secondary index as a part of the
+	 * specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to read; it must be ready
+	 * @param tableAlias
+	 *            the alias of the indexed table; the returned tupleDesc has
+	 *            fields named tableAlias.fieldName
+	 * @param ipred
+	 *            The predicate on the indexed field to match. If null, the scan
+	 *            returns all tuples
+	 */
+	public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.index = index;
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		String[] newNames = new String[td.numFields()];
+		Type[] newTypes = new Type[td.numFields()];
+		for (int i = 0; i < td.numFields(); i++) {
+			newNames[i] = tableAlias + "." + td.getFieldName(i);
+			newTypes[i] = td.getFieldType(i);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred) {
+		this(tid, index, Database.getCatalog().getTableName(index.getTableId()), ipred);
+	}
+
+	/**
+	 * @return the table name of the indexed table
+	 */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(index.getTableId());
+	}
+
+	/**
+	 * @return the alias of the indexed table
+	 */
+	public String getAlias() {
+		return alias;
+	}
+
+	public SecondaryIndex getIndex() {
+		return index;
+	}
+
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+		if (!index.isReady())
+			throw new DbException("index " + index.getName() + " is still being built");
+
+		BTreeFile file = index.getFile();
+		entries = ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+		entries.open();
+		batch = Collections.emptyIterator();
+		page = null;
+		next = null;
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the indexed table, with field names prefixed
+	 * with the tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		if (next == null)
+			next = fetchNext();
+		return next != null;
+	}
+
+	public Tuple next() throws NoSuchElementException,
+			TransactionAbortedException, DbException {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Tuple t = next;
+		next = null;
+		return t;
+	}
+
+	private Tuple fetchNext() throws TransactionAbortedException, DbException {
+		while (true) {
+			if (!batch.hasNext() && !readBatch())
+				return null;
+			RecordId rid = batch.next();
+			// 同一批中同一页的RecordId是连续的，只在换页时访问BufferPool
+			if (page == null || !page.getId().equals(rid.getPageId()))
+				page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+			Tuple t = page.getTuple(rid.getTupleNumber());
+			// 索引项和堆中的元组在同一事务的锁保护下读取，这里只是防御性地再检查一次
+			if (t != null && (ipred == null
+					|| t.getField(index.getKeyField()).compare(ipred.getOp(), ipred.getField())))
+				return t;
+		}
+	}
+
+	/** Read the next batch of RecordIds from the index, sorted by page. */
+	private boolean readBatch() throws TransactionAbortedException, DbException {
+		List<RecordId> rids = new ArrayList<>();
+		while (rids.size() < RID_BATCH && entries.hasNext())
+			rids.add(index.recordIdOf(entries.next()));
+		if (rids.isEmpty())
+			return false;
+		rids.sort(BY_PAGE);
+		batch = rids.iterator();
+		return true;
+	}
+
+	public void close() {
+		if (entries != null)
+			entries.close();
+		entries = null;
+		batch = null;
+		page = null;
+		next = null;
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+			TransactionAbortedException {
+		close();
+		open();
+	}
+}
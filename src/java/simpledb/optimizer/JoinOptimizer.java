@@ -1,8 +1,13 @@
 package simpledb.optimizer;
 
 import simpledb.common.Database;
+import simpledb.common.Type;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -74,13 +79,27 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
+        if (lj.indexJoin && !(lj instanceof LogicalSubplanJoinNode) && LogicalPlan.isIndexable(lj.p)) {
+            List<Predicate> innerFilters = new ArrayList<>();
+            IndexOpIterator index = innerIndex(plan2, t2id, innerFilters);
+            if (index != null) {
+                // 内表上的过滤条件移到连接之上，字段下标加上外表的字段数
+                int td1n = plan1.getTupleDesc().numFields();
+                j = new IndexNestedLoopJoin(p, plan1, index);
+                for (Predicate f : innerFilters)
+                    j = new Filter(new Predicate(td1n + f.getField(), f.getOp(), f.getOperand()), j);
+                return j;
+            }
+        }
+
         if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
                 // fall back on regular join
                 Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
+                java.lang.reflect.Constructor<?> ct = c.getConstructor(
+                        JoinPredicate.class, OpIterator.class, OpIterator.class);
                 j = (OpIterator) ct
                         .newInstance(new Object[] { p, plan1, plan2 });
             } catch (Exception e) {
@@ -94,6 +113,35 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * If plan reads a BTreeFile keyed on field, possibly through filters,
+     * return a BTreeScan of the file that an index nested-loop join can
+     * probe, and add the predicates of the filters to filters.
+     *
+     * @return the index to probe, or null if plan is not such a scan
+     */
+    private static IndexOpIterator innerIndex(OpIterator plan, int field, List<Predicate> filters) {
+        while (plan instanceof Filter) {
+            filters.add(((Filter) plan).getPredicate());
+            plan = ((Filter) plan).getChildren()[0];
+        }
+        if (!(plan instanceof SeqScan || plan instanceof BTreeScan))
+            return null;
+        int tableid = Database.getCatalog().getTableId(OperatorCardinality.scannedTableName(plan));
+        if (!isIndexedOn(tableid, field))
+            return null;
+        if (plan instanceof BTreeScan)
+            return (BTreeScan) plan;
+        SeqScan s = (SeqScan) plan;
+        return new BTreeScan(s.getTransactionId(), tableid, s.getAlias(), null);
+    }
+
+    /** @return true if the table is a BTreeFile keyed on field */
+    private static boolean isIndexedOn(int tableid, int field) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        return file instanceof BTreeFile && ((BTreeFile) file).keyField() == field;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -122,19 +170,103 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, TableStats.getStatsMap(), true);
+    }
+
+    /**
+     * Estimate the cost of a join. When the right-hand side is a base table
+     * stored as a B+ tree keyed on its join field, this is the cheaper of an
+     * {@link IndexNestedLoopJoin} (see {@link #indexJoinCost}) and the join
+     * {@link #instantiateJoin} makes otherwise.
+     *
+     * @param stats
+     *            The table stats, referenced by table names, not alias
+     * @param innerIsBase
+     *            true if the right-hand side is a base table rather than the
+     *            result of other joins
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, Map<String, TableStats> stats, boolean innerIsBase) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            double joinCost=cost1+card1*cost2+card1*card2;
-            double scanCost=cost1+cost2;
-            return scanCost+joinCost;
+            double cost;
+            if (j.p == Predicate.Op.EQUALS) {
+                // HashEquiJoin：每个输入读一遍；插入哈希表比探测贵，算两倍，让小表做build一侧
+                cost = cost1 + cost2 + 2.0 * card1 + card2 + hashJoinSpillCost(j, card1, card2);
+            } else {
+                double joinCost=cost1+card1*cost2+card1*card2;
+                double scanCost=cost1+cost2;
+                cost = scanCost+joinCost;
+            }
+            return Math.min(cost, indexJoinCost(j, card1, cost1, stats, innerIsBase));
+        }
+    }
+
+    /**
+     * Estimate the cost of an {@link IndexNestedLoopJoin}: one scan of the
+     * left-hand side plus one index lookup per left-hand tuple.
+     *
+     * @return the cost, or positive infinity if the right-hand side is not a
+     *         base table stored as a B+ tree keyed on its join field
+     */
+    private double indexJoinCost(LogicalJoinNode j, int card1, double cost1,
+            Map<String, TableStats> stats, boolean innerIsBase) {
+        if (j instanceof LogicalSubplanJoinNode || !innerIsBase || !LogicalPlan.isIndexable(j.p))
+            return Double.POSITIVE_INFINITY;
+        Integer t2id = p.getTableId(j.t2Alias);
+        if (t2id == null)
+            return Double.POSITIVE_INFINITY;
+        TableStats innerStats = stats.get(Database.getCatalog().getTableName(t2id));
+        int field2;
+        try {
+            field2 = Database.getCatalog().getTupleDesc(t2id).fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (innerStats == null || !isIndexedOn(t2id, field2))
+            return Double.POSITIVE_INFINITY;
+        // 索引查找的是内表过滤之前的元组
+        int outer = Math.max(card1, 1);
+        double matches = (double) estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
+                j.f1PureName, j.f2PureName, outer, innerStats.totalTuples(), false, false,
+                stats, p.getTableAliasToIdMapping()) / outer;
+        return cost1 + innerStats.estimateBTreeLookupsCost(card1, matches) + card1 * matches;
+    }
+
+    /**
+     * Estimate the cost of the pages a {@link HashEquiJoin} writes and reads
+     * back when its left-hand side does not fit into
+     * {@link HashEquiJoin#DEFAULT_MEMORY_BUDGET}: the part of both inputs that
+     * is not in the resident partition is written once and read once. Tuple
+     * sizes are those of the base tables of the two aliases; the left-hand
+     * side is measured on the heap, the spill files in serialized bytes.
+     */
+    private double hashJoinSpillCost(LogicalJoinNode j, int card1, int card2) {
+        TupleDesc td1 = tupleDesc(j.t1Alias);
+        TupleDesc td2 = tupleDesc(j.t2Alias);
+        double buildMemory = (double) card1 * td1.getHeapSize();
+        if (buildMemory <= HashEquiJoin.DEFAULT_MEMORY_BUDGET)
+            return 0;
+        double spilled = 1 - HashEquiJoin.DEFAULT_MEMORY_BUDGET / buildMemory;
+        double bytes = spilled * ((double) card1 * td1.getSize() + (double) card2 * td2.getSize());
+        return 2 * bytes / BufferPool.getPageSize() * TableStats.IOCOSTPERPAGE;
+    }
+
+    /** @return the TupleDesc of the base table of alias, or a single int
+        column if alias is not a base table */
+    private TupleDesc tupleDesc(String alias) {
+        Integer id = alias == null ? null : p.getTableId(alias);
+        if (id != null) {
+            try {
+                return Database.getCatalog().getTupleDesc(id);
+            } catch (NoSuchElementException e) {
+                // 不是基本表时按一个int字段估算
+            }
         }
+        return new TupleDesc(new Type[] { Type.INT_TYPE });
     }
 
     /**
@@ -249,6 +381,9 @@ public class JoinOptimizer {
             Map<String, TableStats> stats,
             Map<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
+        // 没有连接（单表查询）时PlanCache里没有空集对应的计划
+        if (this.joins.isEmpty())
+            return new ArrayList<>();
         PlanCache pc=new PlanCache();
         for (int size = 1; size < this.joins.size()+1; size++) {
             Set<Set<LogicalJoinNode>> allLenSubsets=enumerateSubsets(this.joins, size);
@@ -393,20 +528,27 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        boolean t1Base = news.isEmpty() || !doesJoin(prevBest, table1Alias);
+        boolean t2Base = news.isEmpty() || !doesJoin(prevBest, table2Alias);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, stats, t2Base);
+        double indexCost = indexJoinCost(j, t1card, t1cost, stats, t2Base);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, stats, t1Base);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
+            indexCost = indexJoinCost(j2, t2card, t2cost, stats, t1Base);
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
         }
         if (cost1 >= bestCostSoFar)
             return null;
+        // 有索引但另一种连接更便宜时，记下来让instantiateJoin不用索引
+        if (indexCost != Double.POSITIVE_INFINITY && indexCost > cost1)
+            j = j.withoutIndexJoin();
 
         CostCard cc = new CostCard();
 
@@ -25,6 +25,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** Whether the join may probe an index on t2. The optimizer clears it
+     * when another join algorithm costs less than the index lookups. */
+    public boolean indexJoin = true;
+
     public LogicalJoinNode() {
     }
 
@@ -64,6 +68,13 @@ public class LogicalJoinNode {
         return new LogicalJoinNode(t2Alias,t1Alias,f2PureName,f1PureName, newp);
     }
     
+    /** Return a copy of this node with indexJoin cleared. */
+    public LogicalJoinNode withoutIndexJoin() {
+        LogicalJoinNode j = new LogicalJoinNode(t1Alias, t2Alias, f1PureName, f2PureName, p);
+        j.indexJoin = false;
+        return j;
+    }
+
     @Override public boolean equals(Object o) {
         if (!(o instanceof LogicalJoinNode)) return false;
         LogicalJoinNode j2 =(LogicalJoinNode)o;
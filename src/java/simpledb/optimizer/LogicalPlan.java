@@ -4,6 +4,10 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -292,19 +296,25 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        boolean indexOrdered = false;
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            DbFile file;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                file = Database.getCatalog().getDatabaseFile(table.t);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
-            
-            subplanMap.put(table.alias,ss);
+
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
+            OpIterator scan = accessPath(t, table, file, statsMap.get(baseTableName), explain);
+            if (canOrderByIndex(table, file, scan)) {
+                scan = orderedScan(t, table, (BTreeFile) file, scan, explain);
+                indexOrdered = true;
+            }
+            subplanMap.put(table.alias, scan);
             filterSelectivities.put(table.alias, 1.0);
 
         }
@@ -471,13 +481,113 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (hasOrderBy && !indexOrdered) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * Choose how to read a base table: a full scan, or a range scan of an
+     * index on a field the WHERE clause compares with a constant. Index
+     * scans are costed with {@link TableStats#estimateBTreeScanCost} (the
+     * table is a BTreeFile keyed on the field) and
+     * {@link TableStats#estimateSecondaryIndexScanCost} (a ready
+     * {@link SecondaryIndex} of a heap table), and the cheapest access path
+     * wins. The filter the index scan was built from is still applied on top
+     * of it, like any other filter, so the plan returns the same tuples
+     * either way.
+     */
+    private OpIterator accessPath(TransactionId t, LogicalScanNode table, DbFile file, TableStats stats,
+            boolean explain) {
+        OpIterator best = new SeqScan(t, file.getId(), table.alias);
+        if (stats == null)
+            return best;
+        double bestCost = stats.estimateScanCost();
+        String bestFilter = null;
+
+        TupleDesc td = file.getTupleDesc();
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias) || !isIndexable(lf.p))
+                continue;
+            int field;
+            Field f;
+            try {
+                field = td.fieldNameToIndex(lf.fieldPureName);
+                f = td.getFieldType(field) == Type.INT_TYPE
+                        ? new IntField(Integer.parseInt(lf.c)) : new StringField(lf.c, Type.STRING_LEN);
+            } catch (NoSuchElementException | NumberFormatException e) {
+                continue; // 留给下面处理过滤条件时报错
+            }
+            double sel = stats.estimateSelectivity(field, lf.p, f);
+            IndexPredicate ipred = new IndexPredicate(lf.p, f);
+
+            if (file instanceof BTreeFile && ((BTreeFile) file).keyField() == field) {
+                double cost = stats.estimateBTreeScanCost(sel);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = new BTreeScan(t, file.getId(), table.alias, ipred);
+                    bestFilter = lf.fieldQuantifiedName + " " + lf.p + " " + lf.c;
+                }
+            }
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+                if (index.getKeyField() != field)
+                    continue;
+                double cost = stats.estimateSecondaryIndexScanCost(index, sel);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = new SecondaryIndexScan(t, index, table.alias, ipred);
+                    bestFilter = lf.fieldQuantifiedName + " " + lf.p + " " + lf.c + " using " + index.getName();
+                }
+            }
+        }
+        if (explain && bestFilter != null)
+            System.out.println("Index scan of " + table.alias + " on " + bestFilter + ", estimated cost " + bestCost);
+        return best;
+    }
+
+    /**
+     * @return true if the ORDER BY of this plan can be answered by reading
+     * table through its B+ tree instead of sorting: the query reads only this
+     * table, does not aggregate, orders by the (first) key field of the tree,
+     * and the chosen access path is a full scan or a scan of the tree itself.
+     * Filters keep the order of their child, so they do not matter.
+     */
+    private boolean canOrderByIndex(LogicalScanNode table, DbFile file, OpIterator scan) {
+        if (!hasOrderBy || hasAgg || tables.size() != 1 || !joins.isEmpty() || !(file instanceof BTreeFile))
+            return false;
+        if (!(scan instanceof SeqScan || scan instanceof BTreeScan))
+            return false;
+        String[] field = oByField.split("[.]");
+        if (!field[0].equals(table.alias))
+            return false;
+        try {
+            return file.getTupleDesc().fieldNameToIndex(field[1]) == ((BTreeFile) file).keyField();
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Turn the access path of table into a scan of its B+ tree in the order
+     * of the ORDER BY, keeping the index predicate of a BTreeScan.
+     */
+    private OpIterator orderedScan(TransactionId t, LogicalScanNode table, BTreeFile file, OpIterator scan,
+            boolean explain) {
+        IndexPredicate ipred = scan instanceof BTreeScan ? ((BTreeScan) scan).getIndexPredicate() : null;
+        if (explain)
+            System.out.println("Ordered scan of " + table.alias + " on " + oByField + (oByAsc ? " ASC" : " DESC")
+                    + ", no sort needed");
+        return new BTreeScan(t, file.getId(), table.alias, ipred, !oByAsc);
+    }
+
+    /** @return true if an index range scan can find the tuples matching op */
+    static boolean isIndexable(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ
+                || op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
     public static void main(String[] argv) {
         // construct a 3-column table schema
         Type[] types = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
@@ -5,6 +5,8 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
@@ -184,8 +186,85 @@ public class TableStats {
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
-        HeapFile heapFile=new HeapFile(((HeapFile)Database.getCatalog().getDatabaseFile(tableId)).getFile(), Database.getCatalog().getTupleDesc(tableId));
-        return heapFile.numPages()*ioCostPerPage;
+        return numPages(Database.getCatalog().getDatabaseFile(tableId))*ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of a range scan of a table stored as a B+ tree,
+     * using a predicate on its key field: one page to find the first
+     * matching leaf, then the matching leaf pages one after the other.
+     *
+     * @param selectivityFactor
+     *            The selectivity of the predicate on the key field
+     * @return The estimated cost of the index scan
+     */
+    public double estimateBTreeScanCost(double selectivityFactor) {
+        int pages = numPages(Database.getCatalog().getDatabaseFile(tableId));
+        return (1 + Math.ceil(selectivityFactor*pages))*ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of one lookup in a table stored as a B+ tree, as done
+     * by an index nested-loop join for every outer tuple: one page to reach
+     * the first matching leaf, then as many leaf pages as the matching tuples
+     * fill.
+     *
+     * @param matchingTuples
+     *            The expected number of tuples the lookup finds
+     * @return The estimated cost of the lookup
+     */
+    public double estimateBTreeProbeCost(double matchingTuples) {
+        int pages = numPages(Database.getCatalog().getDatabaseFile(tableId));
+        double tuplesPerPage = totalTuple == 0 ? 1 : (double) totalTuple/Math.max(pages, 1);
+        return (1 + Math.ceil(matchingTuples/tuplesPerPage))*ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of a number of lookups in a table stored as a B+
+     * tree, each costing {@link #estimateBTreeProbeCost}. If the whole tree
+     * fits into the buffer pool, later lookups find the pages of earlier ones
+     * there, so together they never cost more than reading every page once.
+     *
+     * @param lookups
+     *            The number of lookups
+     * @param matchingTuples
+     *            The expected number of tuples each lookup finds
+     * @return The estimated cost of all the lookups
+     */
+    public double estimateBTreeLookupsCost(int lookups, double matchingTuples) {
+        double cost = lookups * estimateBTreeProbeCost(matchingTuples);
+        int pages = numPages(Database.getCatalog().getDatabaseFile(tableId));
+        if (pages <= Database.getBufferPool().getMaxPages())
+            cost = Math.min(cost, pages * ioCostPerPage);
+        return cost;
+    }
+
+    /**
+     * Estimates the cost of scanning this heap table through a secondary
+     * index with a predicate on the indexed field: the matching leaf pages of
+     * the index, plus one read per matching tuple, but never more reads of
+     * heap pages than the table has, since SecondaryIndexScan fetches the
+     * matches page by page.
+     *
+     * @param index
+     *            A ready secondary index of this table
+     * @param selectivityFactor
+     *            The selectivity of the predicate on the indexed field
+     * @return The estimated cost of the index scan
+     */
+    public double estimateSecondaryIndexScanCost(SecondaryIndex index, double selectivityFactor) {
+        int heapPages = numPages(Database.getCatalog().getDatabaseFile(tableId));
+        int indexPages = numPages(index.getFile());
+        double matches = Math.ceil(selectivityFactor*totalTuple);
+        return (1 + Math.ceil(selectivityFactor*indexPages) + Math.min(matches, heapPages))*ioCostPerPage;
+    }
+
+    private static int numPages(DbFile file) {
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).numPages();
+        if (file instanceof BTreeFile)
+            return ((BTreeFile) file).numPages();
+        throw new IllegalArgumentException("unknown file type " + file.getClass().getName());
     }
 
     /**
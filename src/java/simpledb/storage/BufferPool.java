@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.index.SecondaryIndex;
 import simpledb.transaction.Lock;
 import simpledb.transaction.LockType;
 import simpledb.transaction.TransactionAbortedException;
@@ -11,9 +12,17 @@ import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 
@@ -43,6 +52,58 @@ public class BufferPool {
 
     private final HashMap<Integer,Page> bufferPool;//缓冲池由很多页面组成，每个页面只能存储一个磁盘加载的页面；为什么不用list或者数组呢，因为利用哈希表可以加快数据页面在buffer pool中的定位，而不需要线性时间
 
+    /**
+     * Whether dirty pages of running transactions may be evicted (STEAL).
+     * Recovery can undo such pages from the log, but the default stays
+     * NO-STEAL: evictPage fails when every page is dirty.
+     */
+    private volatile boolean steal = false;
+
+    /**
+     * Whether commit writes the pages of the transaction to disk (FORCE).
+     * With NO-FORCE, commit only logs the pages; they stay in the dirty page
+     * table until eviction, flushAllPages or the background writer writes
+     * them, and recovery redoes them from the log after a crash.
+     */
+    private volatile boolean force = true;
+
+    /**
+     * Dirty page table: pages whose logged changes are not on disk yet,
+     * with the log offset of the oldest such change (recLSN). Checkpoints
+     * record it instead of flushing the pool. protected by this
+     */
+    private final Map<PageId, Long> dirtyPageTable = new HashMap<>();
+
+    private Thread backgroundWriter; // protected by this
+
+    /** Maximum number of pages read ahead by {@link #prefetchPages} that are
+    kept until someone asks for them. */
+    public static final int MAX_PREFETCHED_PAGES = 64;
+
+    /**
+     * Pages read ahead by prefetchPages that nobody asked for yet, oldest
+     * first. They are kept apart from the pool, take no locks and are moved
+     * into the pool by getPage. protected by this
+     */
+    private final LinkedHashMap<PageId, Page> prefetched = new LinkedHashMap<PageId, Page>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PageId, Page> eldest) {
+            return size() > MAX_PREFETCHED_PAGES;
+        }
+    };
+
+    /**
+     * Pages prefetchPages is reading. Set to false when the page is written
+     * or discarded in the meantime, since what was read may then be stale.
+     * protected by this
+     */
+    private final Map<PageId, Boolean> prefetching = new HashMap<>();
+
+    private ThreadPoolExecutor prefetcher; // protected by this
+    private long prefetchHits = 0; // protected by this
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -53,6 +114,186 @@ public class BufferPool {
         maxPages=numPages;
     }
     
+    /** @return the maximum number of pages in this buffer pool */
+    public int getMaxPages() {
+        return maxPages;
+    }
+
+    /**
+     * Allow or forbid evicting dirty pages of running transactions.
+     * @see LogFile#rollback
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    /**
+     * Choose whether commit writes the pages of the transaction to disk
+     * (the default) or only logs them.
+     * @see #startBackgroundWriter
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
+    /**
+     * @return a snapshot of the dirty page table, page id to recLSN
+     */
+    public synchronized Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<>(dirtyPageTable);
+    }
+
+    /**
+     * Write up to maxPages pages of the dirty page table to disk, oldest
+     * recLSN first, so that the next checkpoint lets recovery start later
+     * in the log and lets the log be truncated further. Pages that a
+     * running transaction has changed again are skipped unless STEAL is on.
+     *
+     * @return the number of pages written
+     */
+    public synchronized int writeDirtyPages(int maxPages) throws IOException {
+        List<Map.Entry<PageId, Long>> entries = new ArrayList<>(dirtyPageTable.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+        int written = 0;
+        for (Map.Entry<PageId, Long> e : entries) {
+            if (written >= maxPages)
+                break;
+            Page page = this.bufferPool.get(e.getKey().hashCode());
+            if (page == null) {
+                dirtyPageTable.remove(e.getKey());
+                continue;
+            }
+            if (page.isDirty() != null && !steal)
+                continue;
+            flushPage(e.getKey());
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * Start a daemon thread that calls {@link #writeDirtyPages} every
+     * intervalMillis milliseconds. Does nothing if one is already running.
+     */
+    public synchronized void startBackgroundWriter(final long intervalMillis, final int pagesPerRound) {
+        if (backgroundWriter != null)
+            return;
+        backgroundWriter = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(intervalMillis);
+                    writeDirtyPages(pagesPerRound);
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "simpledb-page-writer");
+        backgroundWriter.setDaemon(true);
+        backgroundWriter.start();
+    }
+
+    /** Stop the thread started by {@link #startBackgroundWriter}, if any. */
+    public void stopBackgroundWriter() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            t = backgroundWriter;
+            backgroundWriter = null;
+        }
+        if (t != null) {
+            t.interrupt();
+            t.join();
+        }
+    }
+
+    /**
+     * Read the given pages of file in the background, so that a later getPage
+     * for one of them does not have to wait for the disk. Pages that are
+     * cached or being read already are skipped; the rest are handed to
+     * {@link DbFile#readPages} at once. Read-ahead is only a hint: the pages
+     * take no locks, pages written or discarded while they were read are
+     * dropped, and at most {@link #MAX_PREFETCHED_PAGES} unused ones are kept.
+     *
+     * @param file the file the pages belong to
+     * @param pids the pages to read, in the order they will be needed
+     * @return a Future that completes once the pages were read
+     */
+    public synchronized Future<?> prefetchPages(final DbFile file, List<? extends PageId> pids) {
+        final List<PageId> todo = new ArrayList<>();
+        for (PageId pid : pids) {
+            if (!bufferPool.containsKey(pid.hashCode()) && !prefetched.containsKey(pid)
+                    && !prefetching.containsKey(pid)) {
+                prefetching.put(pid, Boolean.TRUE);
+                todo.add(pid);
+            }
+        }
+        if (todo.isEmpty())
+            return CompletableFuture.completedFuture(null);
+        if (prefetcher == null) {
+            prefetcher = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "simpledb-prefetch");
+                t.setDaemon(true);
+                return t;
+            });
+            prefetcher.allowCoreThreadTimeOut(true);
+        }
+        return prefetcher.submit(() -> {
+            List<Page> pages = new ArrayList<>();
+            try {
+                pages = file.readPages(todo);
+            } catch (RuntimeException e) {
+                // 预读失败时什么都不缓存，之后getPage照常从磁盘读
+            }
+            synchronized (BufferPool.this) {
+                for (Page page : pages) {
+                    if (prefetching.get(page.getId()) == Boolean.TRUE && !bufferPool.containsKey(page.getId().hashCode()))
+                        prefetched.put(page.getId(), page);
+                }
+                for (PageId pid : todo)
+                    prefetching.remove(pid);
+                BufferPool.this.notifyAll();
+            }
+        });
+    }
+
+    /**
+     * Take a page read ahead by prefetchPages, if there is one for pid. If
+     * prefetchPages is reading it right now, wait for that read rather than
+     * reading the page a second time.
+     */
+    private synchronized Page takePrefetched(PageId pid) {
+        while (prefetching.get(pid) == Boolean.TRUE) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        Page page = prefetched.remove(pid);
+        if (page != null)
+            prefetchHits++;
+        return page;
+    }
+
+    /**
+     * Forget whatever prefetchPages read or is reading of pid; called when
+     * the page on disk or in the pool changes under it. Caller holds this.
+     */
+    private void invalidatePrefetched(PageId pid) {
+        prefetched.remove(pid);
+        prefetching.replace(pid, Boolean.FALSE);
+    }
+
+    /**
+     * @return the number of pages getPage took from those read ahead by
+     * prefetchPages instead of reading them itself
+     */
+    public synchronized long getPrefetchHits() {
+        return prefetchHits;
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -85,18 +326,19 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        // 先加锁再取页面：等锁期间持有锁的事务可能abort，它改过的页面会被discard，之前取到的对象就过时了
+        if(perm==Permissions.READ_ONLY) {
+            if(!holdsLock(tid,pid))
+                Database.getLockManager().getReadLock(pid, tid);
+            else// 如果有锁，肯定至少可以满足读的权限，不需要再次申请锁
+                ;//do nothing
+        } else {
+            if(!holdsWriteLock(tid, pid))
+                Database.getLockManager().getWriteLock(pid, tid);
+        }
         Page page;
         if(this.bufferPool.containsKey(pid.hashCode())){
             page=this.bufferPool.get(pid.hashCode());
-            if(perm==Permissions.READ_ONLY) {
-                if(!holdsLock(tid,pid))
-                    Database.getLockManager().getReadLock(page.getId(), tid);
-                else// 如果有锁，肯定至少可以满足读的权限，不需要再次申请锁
-                    ;//do nothing
-            } else {
-                if(!holdsWriteLock(tid, pid))
-                    Database.getLockManager().getWriteLock(page.getId(), tid);
-            }
             return page;
         }
         if(bufferPool.size()>=maxPages){
@@ -104,24 +346,48 @@ public class BufferPool {
         }
         int tableId = pid.getTableId();
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-        page = file.readPage(pid);
+        page = takePrefetched(pid);
+        if (page == null)
+            page = file.readPage(pid);
         //buffer pool没有足够的空间了
         this.bufferPool.put(pid.hashCode(), page);
-        if(perm==Permissions.READ_ONLY) {
-            if(!holdsLock(tid,pid))
-                Database.getLockManager().getReadLock(page.getId(), tid);
-            else// 如果有锁，肯定至少可以满足读的权限，不需要再次申请锁；为什么新载入buffer pool的page也可能有锁呢，因为有锁但是没有被修改页面可能被evict驱逐
-                ;//do nothing
-        }else {
-            if(!holdsWriteLock(tid, pid))
-                Database.getLockManager().getWriteLock(page.getId(), tid);
-            else
-                ;//do nothing
-        }
 
         return page;
     }
 
+    /**
+     * Retrieve the specified page without acquiring any lock on it. The page
+     * is brought into the buffer pool if necessary, evicting another page if
+     * the pool is full.
+     * <p>
+     * This is only meant for readers that can detect concurrent modification
+     * on their own, such as the optimistic B+ tree descent, which validates
+     * the version of each internal page and checks with {@link #isCached}
+     * that the page was not evicted or discarded in the meantime.
+     *
+     * @param pid the ID of the requested page
+     */
+    public synchronized Page getPageOptimistic(PageId pid) throws DbException {
+        Page page = this.bufferPool.get(pid.hashCode());
+        if (page != null)
+            return page;
+        if (bufferPool.size() >= maxPages) {
+            evictPage();
+        }
+        page = takePrefetched(pid);
+        if (page == null)
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        this.bufferPool.put(pid.hashCode(), page);
+        return page;
+    }
+
+    /**
+     * @return true if page is the very instance currently cached for its page id
+     */
+    public synchronized boolean isCached(Page page) {
+        return this.bufferPool.get(page.getId().hashCode()) == page;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -190,12 +456,23 @@ public class BufferPool {
         // 一开始莫名其妙将if commit这段代码放在while循环后面。。。。。 那样的话flushPages一个页面也没有flush到磁盘，因为flushPages是通过occupiedLocks查看占用的页面的，occupiedLocks都释放了，flushPages以为这个事务一个页面都没有占用。。。。。。
         // 上面说的这个错误在TransactionTest.testTwoThreads()中是测试不出来的，因为该测试中一个事务成功后就算flush失败，另一个事务也能读取到buffer pool中更新的值
         // 在testTenThreads()或者testFiveThreads()中，一个事务成功后，flush失败，并没有将更改持久化到磁盘，然后对2个测试分别可能会有剩下的9个或者4个事务开始读，然后都失败了，依此abort，直到最后一个事务abort，于是他们占用共享锁的页面可以discard掉（此时第一个事务write的值已经丢失了，discard就是简单从bufferPool map把page remove掉），因为最后一个事务释放锁时已经独占共享锁，可以discard；接着又有新的事务加入，加入的第一个事务发现page不在buffer pool中，于是从磁盘中加载，由于第一个事务write的值在的页面被discard了并没有持久化，所以此时从磁盘加载的值是丢失过修改的值。
-        if(commit){// commit的情况需要flush脏页;
+        if(commit){// commit的情况需要flush脏页;NO-FORCE时只写日志
             try {
-                flushPages(tid);
+                if (force)
+                    flushPages(tid);
+                else
+                    logPages(tid);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
+            // 提交后的页面内容成为新的before image，之后的UPDATE/DELTA日志记录以及回滚都以它为基准
+            synchronized (this) {
+                for (Lock lock : tid.occupiedLocks) {
+                    Page page = this.bufferPool.get(lock.getPageId().hashCode());
+                    if (page != null && lock.getLockType() == LockType.Write)
+                        page.setBeforeImage();
+                }
+            }
         }
         while(tid.occupiedLocks.size()!=0){// 注意！这里不能for(int i=0;i<tid.occupiedLocks.size();i++) 因为occupiedLocks长度在经过一次循环后可能发生变化；int cnt=tid.occupiedLocks.size();循环里用cnt可以，但是不是每次gei(i)，而是get(0)；最好直接用while
             if(tid.occupiedLocks.get(0).getLockType()==LockType.Read)
@@ -216,6 +493,9 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The secondary indexes of the table, including one still being built,
+     * are told about the new tuple.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
@@ -227,7 +507,31 @@ public class BufferPool {
 //            System.out.println("事务"+tid.getId()+" 想要insert的值："+((IntField) t.getField(0)).getValue());
 //        }
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-        file.insertTuple(tid, t);
+        for (Page page : file.insertTuple(tid, t))
+            page.markDirty(true, tid);
+        for (SecondaryIndex index : Database.getCatalog().getMaintainedIndexes(tableId))
+            index.tupleInserted(tid, t);
+    }
+
+    /**
+     * Add several tuples to the specified table on behalf of transaction tid,
+     * like {@link #insertTuple} does for one, letting the file share work
+     * between them.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     * @see DbFile#insertTuples
+     */
+    public void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        for (Page page : file.insertTuples(tid, tuples))
+            page.markDirty(true, tid);
+        for (SecondaryIndex index : Database.getCatalog().getMaintainedIndexes(tableId)) {
+            for (Tuple t : tuples)
+                index.tupleInserted(tid, t);
+        }
     }
 
     /**
@@ -240,6 +544,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The secondary indexes of the table are told about the deletion.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
@@ -251,7 +557,10 @@ public class BufferPool {
 //        }
         int tableId=t.getRecordId().getPageId().getTableId();
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-        file.deleteTuple(tid, t);
+        for (Page page : file.deleteTuple(tid, t))
+            page.markDirty(true, tid);
+        for (SecondaryIndex index : Database.getCatalog().getMaintainedIndexes(tableId))
+            index.tupleDeleted(tid, t);
     }
 
     /**
@@ -278,6 +587,17 @@ public class BufferPool {
     */
     public synchronized void discardPage(PageId pid) {
         System.out.println("remove page");
+        invalidatePrefetched(pid);
+        Page page = this.bufferPool.get(pid.hashCode());
+        if (page != null && dirtyPageTable.remove(pid) != null) {
+            // 已提交但还没写盘的内容只在before image里（事务abort时当前内容会被丢弃），先写盘，日志里已有它
+            try {
+                Database.getLogFile().force();
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page.getBeforeImage());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
         this.bufferPool.remove(pid.hashCode());
         System.out.println("buffer pool page num: "+this.bufferPool.size());
     }
@@ -289,8 +609,20 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         int tableId = pid.getTableId();
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-        file.writePage(this.bufferPool.get(pid.hashCode()));
-        this.bufferPool.get(pid.hashCode()).markDirty(false, new TransactionId());
+        Page page = this.bufferPool.get(pid.hashCode());
+        // write ahead logging: the change has to be in the log before the page reaches the disk
+        TransactionId dirtier = page.isDirty();
+        if (dirtier != null) {
+            Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+            Database.getLogFile().force();
+        } else if (dirtyPageTable.containsKey(pid)) {
+            // logPages已经记下这一页的修改，但记录可能还在LogBuffer里，提交记录也可能还没写
+            Database.getLogFile().force();
+        }
+        file.writePage(page);
+        invalidatePrefetched(pid);
+        dirtyPageTable.remove(pid);
+        page.markDirty(false, new TransactionId());
         // some code goes here
         // not necessary for lab1
     }
@@ -316,6 +648,21 @@ public class BufferPool {
         // not necessary for lab1|lab2
     }
 
+    /** Log the dirty pages of a committing transaction without writing
+        them (NO-FORCE), and enter them in the dirty page table. The COMMIT
+        record written afterwards forces the log.
+     */
+    private synchronized void logPages(TransactionId tid) throws IOException {
+        for (Lock lock : tid.occupiedLocks) {
+            Page page = this.bufferPool.get(lock.getPageId().hashCode());
+            if (page != null && page.isDirty() != null) {
+                long lsn = Database.getLogFile().logWrite(page.isDirty(), page.getBeforeImage(), page);
+                dirtyPageTable.putIfAbsent(page.getId(), lsn);
+                page.markDirty(false, tid);
+            }
+        }
+    }
+
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
@@ -348,8 +695,18 @@ public class BufferPool {
                 throw new RuntimeException(e);
             }
         }
-        if(allDirtied)
+        if(allDirtied && !steal)
             throw new DbException("all page in buffer pool dirtied");
+        if(allDirtied) {
+            // STEAL：没有干净页面时驱逐一个脏页，flushPage会先写日志，事务abort时由LogFile.rollback通过日志撤销
+            Map.Entry<Integer, Page> victim = bufferPool.entrySet().iterator().next();
+            try {
+                flushPage(victim.getValue().getId());
+            } catch (IOException e) {
+                throw new DbException("unable to flush page while evicting: " + e.getMessage());
+            }
+            discardPage(victim.getValue().getId());
+        }
         // some code goes here
         // not necessary for lab1
     }
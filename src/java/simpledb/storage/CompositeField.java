@@ -0,0 +1,119 @@
+package simpledb.storage;
+
+import simpledb.execution.Predicate;
+import simpledb.common.Type;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the values of several fields, such as the
+ * key of a B+ tree keyed on more than one field. CompositeFields are
+ * compared lexicographically.
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The values of this field, most significant first.
+     */
+    public CompositeField(Field... fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs at least one field");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @return the number of fields this field is made of
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @return the i-th field of this field
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        if (!(field instanceof CompositeField)) return false;
+        return Arrays.equals(((CompositeField) field).fields, fields);
+    }
+
+    /**
+     * Write the fields one after the other.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    /**
+     * Compare the specified field to the value of this Field
+     * lexicographically. val may have fewer fields than this field, in which
+     * case only that many leading fields are compared: val is a prefix, and
+     * this field is equal to it if it starts with it. Any other Field is
+     * treated as a prefix of one field.
+     *
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+        Field[] other = val instanceof CompositeField ? ((CompositeField) val).fields : new Field[] { val };
+        int n = Math.min(fields.length, other.length);
+        for (int i = 0; i < n; i++) {
+            // 第一个不相等的字段决定大小
+            if (!fields[i].compare(Predicate.Op.EQUALS, other[i]))
+                return fields[i].compare(op, other[i]);
+        }
+
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+            case GREATER_THAN_OR_EQ:
+            case LESS_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return the Type of the first field; a CompositeField has no type of its
+     * own.
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+
+    /**
+     * Read a CompositeField with fields of the given types, as written by
+     * {@link #serialize}.
+     */
+    public static CompositeField parse(Type[] types, DataInputStream dis) throws java.text.ParseException {
+        Field[] fields = new Field[types.length];
+        for (int i = 0; i < types.length; i++)
+            fields[i] = types[i].parse(dis);
+        return new CompositeField(fields);
+    }
+}
@@ -33,6 +33,22 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Read several pages from disk, e.g. ahead of a scan. Files that can
+     * read neighbouring pages together should override this to do fewer,
+     * larger reads.
+     *
+     * @param ids the pages to read
+     * @return the pages, in the order of ids
+     * @throws IllegalArgumentException if a page does not exist in this file.
+     */
+    default List<Page> readPages(List<PageId> ids) {
+        List<Page> pages = new ArrayList<>(ids.size());
+        for (PageId id : ids)
+            pages.add(readPage(id));
+        return pages;
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -48,6 +64,26 @@ public interface DbFile {
     List<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts several tuples into the file on behalf of the specified
+     * transaction, in no particular order. Files that can share work between
+     * the tuples, such as finding where they go, should override this.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add, updated like by insertTuple
+     * @return the pages that were modified, each once
+     * @see #insertTuple
+     */
+    default List<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        Map<PageId, Page> dirtypages = new LinkedHashMap<>();
+        for (Tuple t : tuples) {
+            for (Page page : insertTuple(tid, t))
+                dirtypages.put(page.getId(), page);
+        }
+        return new ArrayList<>(dirtypages.values());
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -17,7 +17,7 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlottedPage {
 
     final HeapPageId pid;
     final TupleDesc td;
@@ -94,6 +94,18 @@ public class HeapPage implements Page {
         return nheaderbytes;
     }
     
+    public int getSlotAreaOffset() {
+        return header.length;
+    }
+
+    public int getSlotSize() {
+        return td.getSize();
+    }
+
+    public int getNumSlots() {
+        return numSlots;
+    }
+
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
@@ -355,6 +367,13 @@ public class HeapPage implements Page {
         return judge == 1;
     }
 
+    /**
+     * @return the tuple in slot i, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        return isSlotUsed(i) ? tuples[i] : null;
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      * i定义为从0开始，使用的时候注意一下
@@ -55,20 +55,30 @@ public class IntField implements Field {
 
         IntField iVal = (IntField) val;
 
+        return compare(value, op, iVal.value);
+    }
+
+    /**
+     * Compare two int values the way {@link #compare(Predicate.Op, Field)}
+     * compares IntFields, for callers that keep keys as primitives.
+     *
+     * @return whether a op b holds
+     */
+    public static boolean compare(int a, Predicate.Op op, int b) {
         switch (op) {
             case EQUALS:
             case LIKE:
-                return value == iVal.value;
+                return a == b;
             case NOT_EQUALS:
-                return value != iVal.value;
+                return a != b;
             case GREATER_THAN:
-                return value > iVal.value;
+                return a > b;
             case GREATER_THAN_OR_EQ:
-                return value >= iVal.value;
+                return a >= b;
             case LESS_THAN:
-                return value < iVal.value;
+                return a < b;
             case LESS_THAN_OR_EQ:
-                return value <= iVal.value;
+                return a <= b;
         }
 
         return false;
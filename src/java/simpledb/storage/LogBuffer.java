@@ -0,0 +1,153 @@
+package simpledb.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory buffer for appending log records. Records are serialized into a
+ * direct ByteBuffer and written to the end of the log with one positional
+ * write whenever the buffer fills up or {@link #flush} is called, instead of
+ * one RandomAccessFile write per field.
+ * <p>
+ * The buffer tracks the logical end of the log, so {@link #getFilePointer}
+ * returns the LSN the next record will have in the log even while
+ * earlier records are still buffered. Callers that read the log file back,
+ * or need it durable, must flush first.
+ * <p>
+ * Not thread safe; LogFile only uses it while holding its own monitor.
+ */
+class LogBuffer implements DataOutput {
+
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final LogSegments log;
+    private final ByteBuffer buf;
+    private long fileEnd; // LSN of the first byte in buf
+
+    /**
+     * @param log the segments of the log
+     * @param fileEnd the LSN at which to start appending
+     */
+    LogBuffer(LogSegments log, long fileEnd) {
+        this(log, fileEnd, DEFAULT_CAPACITY);
+    }
+
+    LogBuffer(LogSegments log, long fileEnd, int capacity) {
+        this.log = log;
+        this.fileEnd = fileEnd;
+        this.buf = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /** @return the LSN of the next byte appended */
+    long getFilePointer() {
+        return fileEnd + buf.position();
+    }
+
+    /** Write all buffered bytes to the log (without forcing them to disk). */
+    void flush() throws IOException {
+        buf.flip();
+        int n = buf.remaining();
+        log.write(buf, fileEnd);
+        fileEnd += n;
+        buf.clear();
+    }
+
+    private void ensureRemaining(int n) throws IOException {
+        if (buf.remaining() < n)
+            flush();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureRemaining(1);
+        buf.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > buf.capacity()) {
+            // larger than the whole buffer, write it straight through
+            flush();
+            log.write(ByteBuffer.wrap(b, off, len), fileEnd);
+            fileEnd += len;
+            return;
+        }
+        ensureRemaining(len);
+        buf.put(b, off, len);
+    }
+
+    @Override
+    public void writeBoolean(boolean v) throws IOException {
+        write(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) throws IOException {
+        write(v);
+    }
+
+    @Override
+    public void writeShort(int v) throws IOException {
+        ensureRemaining(2);
+        buf.putShort((short) v);
+    }
+
+    @Override
+    public void writeChar(int v) throws IOException {
+        ensureRemaining(2);
+        buf.putChar((char) v);
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        ensureRemaining(4);
+        buf.putInt(v);
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        ensureRemaining(8);
+        buf.putLong(v);
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        writeInt(Float.floatToIntBits(v));
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        writeLong(Double.doubleToLongBits(v));
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            write(s.charAt(i));
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            writeChar(s.charAt(i));
+    }
+
+    /**
+     * Same encoding as RandomAccessFile.writeUTF, so the records can still be
+     * read back with RandomAccessFile.readUTF.
+     */
+    @Override
+    public void writeUTF(String s) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(s.length() + 2);
+        new DataOutputStream(bytes).writeUTF(s);
+        write(bytes.toByteArray());
+    }
+}
@@ -2,6 +2,7 @@
 package simpledb.storage;
 
 import simpledb.common.Database;
+import simpledb.index.*;
 import simpledb.common.Permissions;
 import simpledb.transaction.LockType;
 import simpledb.transaction.TransactionId;
@@ -9,7 +10,11 @@ import simpledb.common.Debug;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -45,40 +50,73 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is stored as a control file holding the offset of the
+last written checkpoint (or -1 if there are no checkpoints) and a
+sequence of fixed-size segment files, see LogSegments.  Offsets are
+log sequence numbers (LSNs) that stay the same when the log is
+truncated.
 
-<li> All additional data in the log consists of log records.  Log
+<li> All data in the segments consists of log records.  Log
 records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
 <li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+the position in the log file where the record began.  A record whose
+type is unknown or whose start offset does not match is taken to be the
+end of the log.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, DELTA and CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+after image.  Each image is a page id (a one byte page type from
+PageTypes, the table id and the page number) followed by the length
+and bytes of the page data, and can be accessed with the
+LogFile.readPageData() and LogFile.writePageData() methods.  See
+LogFile.print() for an example.
+
+<li>DELTA RECORDS describe a change to a HeapPage or BTreeLeafPage
+more compactly than an UPDATE record: a page id (see writePageId)
+followed by the changed header and tuple slots (see PageDelta).  The
+first change of a page after a checkpoint is always logged as a full
+UPDATE record, later ones as DELTA records.
+
+<li>CLR (compensation log) RECORDS are written while undoing an UPDATE
+or DELTA record, by rollback() or recover().  They contain the page id,
+the offset of the record that was undone and the full page image after
+undoing it.  CLRs are only ever redone, so undo is idempotent: a record
+that already has a CLR is not undone again after a crash.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table and the offset at which the checkpoint began.  The
+format of the record is an integer count of the number of transactions,
+as well as a long integer transaction id and a long integer first record
+offset for each active transaction; then an integer count of dirty pages,
+and a page id (see writePageId) and a long integer recLSN for each of
+them; then the long integer begin offset.  Checkpoints are fuzzy: they
+do not flush the buffer pool, so redo starts at the smallest recLSN (or
+the begin offset, if that is smaller) rather than at the checkpoint.
 
 </ul>
+
+Pages carry no page LSN, so recover() cannot tell whether a page on
+disk already reflects a record: redo repeats every record from the redo
+start unconditionally.  This is only correct because every UPDATE, DELTA
+and CLR record holds physical images (of the page or of whole slots),
+which can be applied any number of times.  A logical record type would
+need a page LSN in the page headers first.
+
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private LogSegments raf; // read and truncated through here
+    private LogBuffer out; // appends go through here, see LogBuffer
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -86,6 +124,8 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
@@ -94,9 +134,30 @@ public class LogFile {
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
+    int forceCount = 0; // protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    // number of threads recover() redoes the log with
+    private volatile int redoThreads = Runtime.getRuntime().availableProcessors();
+    // number of threads that redid at least one page in the last recover()
+    private volatile int redoWorkers = 0;
+
+    // pages that got a full UPDATE record since the last checkpoint; further
+    // changes to them are logged as DELTA records. protected by this
+    final Set<PageId> imagedSinceCheckpoint = new HashSet<>();
+
+    /* Group commit: committing threads append their COMMIT record under
+       this, then wait on groupCommitLock until some thread -- the leader --
+       has forced the log past their record. Commits are numbered in append
+       order, so one force covers every commit appended before it started. */
+    private final Object groupCommitLock = new Object();
+    private volatile long appendedCommits = 0; // written under this
+    private long forcedCommits = 0; // protected by groupCommitLock
+    private boolean forceInProgress = false; // protected by groupCommitLock
+    private int groupCommitMaxBatch = 64; // protected by groupCommitLock
+    private long groupCommitMaxWaitMillis = 0; // protected by groupCommitLock
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -109,8 +170,17 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        @param f The log's control file; segments are stored next to it
+        @param segmentSize The size of newly created log segments
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        raf = new LogSegments(f, segmentSize);
+        out = new LogBuffer(raf, raf.length());
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -131,17 +201,25 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            raf.reset();
+            out = new LogBuffer(raf, raf.length());
+            currentOffset = out.getFilePointer();
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the number of times the log has been forced to disk */
+    public synchronized int getForceCount() {
+        return forceCount;
+    }
+
+    /** @return the offset the next log record will be written at */
+    public synchronized long getEndOffset() {
+        return out.getFilePointer();
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -162,10 +240,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset = out.getFilePointer();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -175,19 +253,108 @@ public class LogFile {
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
 
+        The force is shared with other transactions committing at the
+        same time (group commit): the record is appended, then the caller
+        either waits for a concurrent force that covers it or becomes the
+        leader and forces the log for everyone who appended before it.
+        Returns only once the commit record is durable.
+
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long commitSeq;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = out.getFilePointer();
+            tidToFirstLogRecord.remove(tid.getId());
+            commitSeq = ++appendedCommits;
+        }
+        awaitCommitForced(commitSeq);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Configure group commit.
+
+        @param maxBatch a leader stops waiting for more commits once this
+        many are pending
+        @param maxWaitMillis how long a leader may wait for the batch to
+        fill up before forcing the log; 0 means force right away and only
+        batch the commits that arrived during the previous force
+    */
+    public void setGroupCommit(int maxBatch, long maxWaitMillis) {
+        if (maxBatch < 1 || maxWaitMillis < 0)
+            throw new IllegalArgumentException("invalid group commit settings");
+        synchronized (groupCommitLock) {
+            groupCommitMaxBatch = maxBatch;
+            groupCommitMaxWaitMillis = maxWaitMillis;
+        }
+    }
+
+    /** Block until the log has been forced past the commit with the
+        given sequence number, forcing it ourselves if no other thread is.
+    */
+    private void awaitCommitForced(long commitSeq) throws IOException {
+        while (true) {
+            synchronized (groupCommitLock) {
+                groupCommitLock.notifyAll(); // a waiting leader may have a full batch now
+                while (forcedCommits < commitSeq && forceInProgress) {
+                    try {
+                        groupCommitLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (forcedCommits >= commitSeq)
+                    return;
+
+                // become the leader of the next batch and give it a chance to fill up
+                forceInProgress = true;
+                long deadline = System.currentTimeMillis() + groupCommitMaxWaitMillis;
+                long remaining = groupCommitMaxWaitMillis;
+                while (remaining > 0 && appendedCommits - forcedCommits < groupCommitMaxBatch) {
+                    try {
+                        groupCommitLock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            }
+
+            // groupCommitLock is not held while forcing, so that the next
+            // batch can queue up in the meantime
+            long forcedUpTo = 0;
+            try {
+                forcedUpTo = forceCommits();
+            } finally {
+                synchronized (groupCommitLock) {
+                    forcedCommits = Math.max(forcedCommits, forcedUpTo);
+                    forceInProgress = false;
+                    groupCommitLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Force the log to disk on behalf of a group commit leader. Appends
+        are not blocked during the force.
+
+        @return the sequence number of the last commit made durable
+    */
+    private long forceCommits() throws IOException {
+        long upTo;
+        synchronized (this) {
+            upTo = appendedCommits;
+            out.flush();
+            forceCount++;
+        }
+        raf.force();
+        return upTo;
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -198,11 +365,19 @@ public class LogFile {
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + out.getFilePointer());
         preAppend();
+        long lsn = out.getFilePointer();
+        if (after instanceof SlottedPage && before.getClass() == after.getClass()
+                && imagedSinceCheckpoint.contains(after.getId())) {
+            logDelta(tid, (SlottedPage) before, (SlottedPage) after);
+            return lsn;
+        }
+        if (after instanceof SlottedPage)
+            imagedSinceCheckpoint.add(after.getId());
         /* update record conists of
 
            record type
@@ -211,83 +386,68 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
+        out.writeLong(currentOffset);
+        currentOffset = out.getFilePointer();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
+    /* delta record consists of
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+       record type
+       transaction id
+       page id (see writePageId)
+       page delta (see PageDelta)
+       start offset
+    */
+    private void logDelta(TransactionId tid, SlottedPage before, SlottedPage after)
+        throws IOException {
+        out.writeInt(DELTA_RECORD);
+        out.writeLong(tid.getId());
+        writePageId(out, after.getId());
+        PageDelta.diff(before, after).write(out);
+        out.writeLong(currentOffset);
+        currentOffset = out.getFilePointer();
+
+        Debug.log("DELTA OFFSET = " + currentOffset);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** Write a page id compactly, see PageTypes.writePageId. */
+    void writePageId(DataOutput dout, PageId pid) throws IOException {
+        PageTypes.writePageId(dout, pid);
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    PageId readPageId(DataInput din) throws IOException {
+        return PageTypes.readPageId(din);
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    void writePageData(DataOutput dout, Page p) throws IOException{
+        //page data is:
+        // page id (one byte page type, table id, page number)
+        // page data length
+        // page data
+        writePageId(dout, p.getId());
+        byte[] pageData = p.getPageData();
+        dout.writeInt(pageData.length);
+        dout.write(pageData);
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
+    Page readPageData(DataInput raf) throws IOException {
+        PageId pid = readPageId(raf);
+        byte[] pageData = new byte[raf.readInt()];
+        raf.readFully(pageData);
+        return buildPage(pid, pageData);
+    }
 
+    /** Construct the page with the given id from its serialized data. */
+    Page buildPage(PageId pid, byte[] data) throws IOException {
+        return PageTypes.newPage(pid, data);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -302,150 +462,104 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = out.getFilePointer();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
     /** Checkpoint the log and write a checkpoint record. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        // changes logged after beginLsn are redone anyway, the older ones
+        // whose pages are still not on disk show up in the dirty page table
+        long beginLsn;
+        synchronized (this) {
+            preAppend();
+            beginLsn = out.getFilePointer();
+        }
+        Map<PageId, Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            imagedSinceCheckpoint.clear();
+            startCpOffset = out.getFilePointer();
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                out.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                out.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue());
             }
+            out.writeLong(beginLsn);
+            out.writeLong(currentOffset);
+            force();
+
+            //once the CP is written, make sure the CP location in the
+            // control file is updated
+            raf.setCheckpoint(startCpOffset);
+            currentOffset = out.getFilePointer();
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
+    /** @return the offset at which redo has to start for a checkpoint
+        record: the oldest recLSN in its dirty page table, or the offset
+        at which the checkpoint began if that is older */
+    static long redoStart(LogRecord cp) {
+        long start = cp.checkpointBegin;
+        for (long recLsn : cp.dirtyPages.values())
+            start = Math.min(start, recLsn);
+        return start;
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Records keep their offsets, so this only drops the
+        segments that lie entirely before the oldest record recovery may
+        still need. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        out.flush();
+        long cpLoc = raf.getCheckpoint();
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
+
+        raf.seek(cpLoc);
+        LogRecord cp = readRecord();
+        if (cp == null || cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+        // keep everything redo or undo may still need
+        long minLogRecord = Math.min(cpLoc, redoStart(cp));
+        for (long firstLogRecord : cp.activeTransactions.values()) {
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        Debug.log("TRUNCATING LOG;  WAS " + (raf.length() - raf.getStart()) + " BYTES ; NEW START : " + minLogRecord);
+        raf.truncate(minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -454,6 +568,11 @@ public class LogFile {
         transactions that have already committed (though this may not
         be enforced by this method.)
 
+        Pages the transaction wrote to disk (on eviction or flushAllPages)
+        are restored by undoing its UPDATE and DELTA records from the
+        last to the first, writing a CLR for each.  Changes that never
+        left the buffer pool are dropped by discarding the pages.
+
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
@@ -461,6 +580,27 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord != null) {
+                    out.flush();
+                    List<LogRecord> updates = new ArrayList<>();
+                    Set<Long> compensated = new HashSet<>();
+                    raf.seek(firstRecord);
+                    LogRecord r;
+                    while ((r = readRecord()) != null) {
+                        if (r.tid != tid.getId())
+                            continue;
+                        if (r.type == UPDATE_RECORD || r.type == DELTA_RECORD)
+                            updates.add(r);
+                        else if (r.type == CLR_RECORD)
+                            compensated.add(r.compensatedLsn);
+                    }
+                    for (int i = updates.size() - 1; i >= 0; i--) {
+                        if (!compensated.contains(updates.get(i).lsn))
+                            undo(updates.get(i));
+                    }
+                }
+
                 // 暂时简单的将abort的事务对应的所有页面均从buffer pool中移除  这个暂时确实出问题了 bug看了一天才看出来
                 // 优化：事务占用的页面上该事务肯定持有了锁，有锁但是如果页面并没有修改，也就是不是脏页则不disgardPage  该优化不太好，如果事务占用了大量页面，别的事务不需要这些页面，不disgard就会占用比较多空间
                 // 再优化，尽量都disgard掉，一个页面上该事务加锁了但是没有修改页面这种也disgard掉，脏页肯定diagard掉（不是evict、不违反no steal）；但是diagard里面判断该页面上是否存在别的事务的锁，如果有则不disgard（针对读锁共享，该事务abort后，别的事务会升级锁至写锁、要求页面在buffer pool的这种情况）
@@ -471,19 +611,239 @@ public class LogFile {
                         Database.getBufferPool().discardPage(pageId);
                     }
                 }
-                // some code goes here
             }
         }
     }
 
+    /** Undo an UPDATE or DELTA record on disk: write a CLR describing the
+        restored page, force it, then write the page and drop any cached
+        copy from the buffer pool.  Caller must hold the BufferPool and
+        LogFile monitors.
+    */
+    private void undo(LogRecord r) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(r.pid.getTableId());
+        byte[] restored;
+        if (r.type == UPDATE_RECORD) {
+            restored = r.before.getPageData();
+        } else {
+            restored = r.delta.undo(file.readPage(r.pid).getPageData());
+        }
+        logClr(r.tid, r.pid, r.lsn, restored);
+        force();
+        file.writePage(buildPage(r.pid, restored));
+        Database.getBufferPool().discardPage(r.pid);
+    }
+
+    /** Redo the UPDATE, DELTA and CLR records of one page, given in
+        log order.  Every record carries physical images (of the page or of
+        the changed slots), so redoing a record that is already reflected
+        on disk does no harm; there is no page LSN to skip it with.  The page is read at most once, the records
+        are applied in memory and the result is written once.
+    */
+    private void redoPage(PageId pid, List<LogRecord> records) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        byte[] data = null;
+        for (LogRecord r : records) {
+            switch (r.type) {
+            case UPDATE_RECORD:
+                data = r.after.getPageData();
+                break;
+            case DELTA_RECORD:
+                if (data == null)
+                    data = file.readPage(pid).getPageData();
+                data = r.delta.redo(data);
+                break;
+            case CLR_RECORD:
+                data = r.pageData;
+                break;
+            }
+        }
+        if (data != null)
+            file.writePage(buildPage(pid, data));
+    }
+
+    /** Redo the given records, in log order.  Records are partitioned by
+        page: each of up to redoThreads workers redoes a disjoint set of
+        pages, every page in log order, so no two workers touch the same
+        page.  Caller must hold the BufferPool and LogFile monitors; the
+        redone pages are dropped from the buffer pool afterwards.
+    */
+    private void redoAll(List<LogRecord> records) throws IOException {
+        Map<PageId, List<LogRecord>> byPage = new LinkedHashMap<>();
+        for (LogRecord r : records) {
+            if (r.pid != null)
+                byPage.computeIfAbsent(r.pid, k -> new ArrayList<>()).add(r);
+        }
+
+        int n = Math.min(redoThreads, byPage.size());
+        if (n <= 1) {
+            for (Map.Entry<PageId, List<LogRecord>> e : byPage.entrySet())
+                redoPage(e.getKey(), e.getValue());
+            redoWorkers = n;
+        } else {
+            Set<Thread> busy = ConcurrentHashMap.newKeySet();
+            List<List<PageId>> partitions = new ArrayList<>();
+            for (int i = 0; i < n; i++)
+                partitions.add(new ArrayList<>());
+            for (PageId pid : byPage.keySet())
+                partitions.get((pid.hashCode() & Integer.MAX_VALUE) % n).add(pid);
+
+            ExecutorService workers = Executors.newFixedThreadPool(n);
+            try {
+                List<Future<Void>> done = new ArrayList<>();
+                for (final List<PageId> partition : partitions) {
+                    done.add(workers.submit(() -> {
+                        for (PageId pid : partition) {
+                            redoPage(pid, byPage.get(pid));
+                            busy.add(Thread.currentThread());
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<Void> f : done) {
+                    try {
+                        f.get();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException)
+                            throw (IOException) e.getCause();
+                        throw new RuntimeException(e.getCause());
+                    }
+                }
+            } finally {
+                workers.shutdownNow();
+            }
+            redoWorkers = busy.size();
+        }
+
+        // workers cannot call into the buffer pool, whose monitor we hold
+        for (PageId pid : byPage.keySet())
+            Database.getBufferPool().discardPage(pid);
+    }
+
+    /** Set how many threads recover() uses to redo the log.
+        @param threads the number of redo threads, at least 1
+    */
+    public void setRedoThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("need at least one redo thread");
+        redoThreads = threads;
+    }
+
+    /** @return the number of threads that redid at least one page in the
+        last call to recover() */
+    public int getRedoWorkers() {
+        return redoWorkers;
+    }
+
+    /* clr record consists of
+
+       record type
+       transaction id
+       page id (see writePageId)
+       offset of the record that was undone
+       length and bytes of the page data after undoing it
+       start offset
+    */
+    private void logClr(long tid, PageId pid, long compensatedLsn, byte[] pageData)
+        throws IOException {
+        preAppend();
+        out.writeInt(CLR_RECORD);
+        out.writeLong(tid);
+        writePageId(out, pid);
+        out.writeLong(compensatedLsn);
+        out.writeInt(pageData.length);
+        out.write(pageData);
+        out.writeLong(currentOffset);
+        currentOffset = out.getFilePointer();
+    }
+
+    /** A log record as read back by readRecord(). Only the fields
+        relevant to its type are set. */
+    static class LogRecord {
+        long lsn; // offset of the record in the log file
+        int type;
+        long tid;
+        PageId pid; // UPDATE, DELTA, CLR
+        Page before, after; // UPDATE
+        PageDelta delta; // DELTA
+        long compensatedLsn; // CLR
+        byte[] pageData; // CLR
+        Map<Long, Long> activeTransactions; // CHECKPOINT: tid -> first record
+        Map<PageId, Long> dirtyPages; // CHECKPOINT: page -> recLSN
+        long checkpointBegin; // CHECKPOINT
+    }
+
+    /** Read the log record at the current position of raf.
+        @return the record, or null at the end of the log
+    */
+    LogRecord readRecord() throws IOException {
+        LogRecord r = new LogRecord();
+        r.lsn = raf.getFilePointer();
+        try {
+            r.type = raf.readInt();
+            if (r.type < ABORT_RECORD || r.type > CLR_RECORD) {
+                // preallocated (zero) or leftover bytes after the last record
+                raf.seek(r.lsn);
+                return null;
+            }
+            r.tid = raf.readLong();
+            switch (r.type) {
+            case UPDATE_RECORD:
+                r.before = readPageData(raf);
+                r.after = readPageData(raf);
+                r.pid = r.after.getId();
+                break;
+            case DELTA_RECORD:
+                r.pid = readPageId(raf);
+                r.delta = PageDelta.read(raf);
+                break;
+            case CLR_RECORD:
+                r.pid = readPageId(raf);
+                r.compensatedLsn = raf.readLong();
+                r.pageData = new byte[raf.readInt()];
+                raf.readFully(r.pageData);
+                break;
+            case CHECKPOINT_RECORD:
+                r.activeTransactions = new HashMap<>();
+                int numXactions = raf.readInt();
+                while (numXactions-- > 0) {
+                    long xid = raf.readLong();
+                    r.activeTransactions.put(xid, raf.readLong());
+                }
+                r.dirtyPages = new HashMap<>();
+                int numDirty = raf.readInt();
+                while (numDirty-- > 0) {
+                    PageId dirtyPid = readPageId(raf);
+                    r.dirtyPages.put(dirtyPid, raf.readLong());
+                }
+                r.checkpointBegin = raf.readLong();
+                break;
+            }
+            if (raf.readLong() != r.lsn) {
+                // a record cut short by a crash counts as never written
+                raf.seek(r.lsn);
+                return null;
+            }
+        } catch (EOFException e) {
+            raf.seek(r.lsn);
+            return null;
+        }
+        return r;
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                out.flush();
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -498,22 +858,108 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                redoWorkers = 0;
+                out.flush();
+                if (raf.length() == raf.getStart())
+                    return;
+
+                // analysis: find the transactions that were still running
+                // at the crash (losers) and where redo has to start
+                long cpLoc = raf.getCheckpoint();
+                long redoStart = raf.getStart();
+                long scanStart = raf.getStart();
+                LogRecord cp = null;
+                Set<Long> losers = new HashSet<>();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    raf.seek(cpLoc);
+                    cp = readRecord();
+                    if (cp == null || cp.type != CHECKPOINT_RECORD)
+                        throw new IOException("checkpoint pointer does not point to checkpoint record");
+                    // pages not in the dirty page table were on disk when the
+                    // checkpoint began, so redo can start at the oldest recLSN
+                    redoStart = redoStart(cp);
+                    scanStart = redoStart;
+                    losers.addAll(cp.activeTransactions.keySet());
+                    for (long first : cp.activeTransactions.values())
+                        scanStart = Math.min(scanStart, first);
+                }
+
+                List<LogRecord> records = new ArrayList<>();
+                Set<Long> compensated = new HashSet<>();
+                raf.seek(scanStart);
+                LogRecord r;
+                while ((r = readRecord()) != null) {
+                    records.add(r);
+                    switch (r.type) {
+                    case BEGIN_RECORD:
+                        losers.add(r.tid);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        losers.remove(r.tid);
+                        break;
+                    case CLR_RECORD:
+                        compensated.add(r.compensatedLsn);
+                        break;
+                    }
+                }
+                // drop a partially written record at the end of the log
+                long end = raf.getFilePointer();
+                raf.setEnd(end);
+                out = new LogBuffer(raf, end);
+                currentOffset = end;
+
+                // redo: repeat history from redoStart on, including the
+                // changes of losers and the CLRs of earlier rollbacks.  Records
+                // older than the checkpoint only need redoing for pages that
+                // were dirty at the checkpoint, from their recLSN on
+                List<LogRecord> toRedo = new ArrayList<>();
+                for (LogRecord rec : records) {
+                    if (rec.lsn < redoStart)
+                        continue;
+                    if (cp != null && rec.lsn < cp.checkpointBegin) {
+                        Long recLsn = cp.dirtyPages.get(rec.pid);
+                        if (recLsn == null || rec.lsn < recLsn)
+                            continue;
+                    }
+                    toRedo.add(rec);
+                }
+                redoAll(toRedo);
+
+                // undo: roll back the losers, newest change first
+                for (int i = records.size() - 1; i >= 0; i--) {
+                    LogRecord rec = records.get(i);
+                    if ((rec.type == UPDATE_RECORD || rec.type == DELTA_RECORD)
+                            && losers.contains(rec.tid) && !compensated.contains(rec.lsn))
+                        undo(rec);
+                }
+                for (long tid : losers) {
+                    preAppend();
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(currentOffset);
+                    currentOffset = out.getFilePointer();
+                    tidToFirstLogRecord.remove(tid);
+                }
+                force();
             }
          }
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
+        out.flush();
         long curOffset = raf.getFilePointer();
 
-        raf.seek(0);
+        raf.seek(raf.getStart());
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        System.out.println("checkpoint record at offset " + raf.getCheckpoint() + ", log starts at " + raf.getStart());
 
         while (true) {
             try {
                 int cpType = raf.readInt();
+                if (cpType < ABORT_RECORD || cpType > CLR_RECORD)
+                    break; // end of the log
                 long cpTid = raf.readLong();
 
                 System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
@@ -544,8 +990,34 @@ public class LogFile {
                         System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
                         System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                     }
+                    int numDirty = raf.readInt();
+                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+                    while (numDirty-- > 0) {
+                        PageId dirtyPid = readPageId(raf);
+                        long recLsn = raf.readLong();
+                        System.out.println("table id " + dirtyPid.getTableId() + ", page number " + dirtyPid.getPageNumber()
+                                + ", recLSN " + recLsn);
+                    }
+                    System.out.println(raf.getFilePointer() + ": CHECKPOINT BEGIN: " + raf.readLong());
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
+                    break;
+                case DELTA_RECORD:
+                    System.out.println(" (DELTA)");
+                    PageId deltaPid = readPageId(raf);
+                    PageDelta delta = PageDelta.read(raf);
+                    System.out.println("table id " + deltaPid.getTableId() + ", page number " + deltaPid.getPageNumber()
+                            + ", " + delta.getNumChangedSlots() + " changed slots");
+                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    break;
+                case CLR_RECORD:
+                    System.out.println(" (CLR)");
+                    PageId clrPid = readPageId(raf);
+                    long compensatedLsn = raf.readLong();
+                    raf.skipBytes(raf.readInt());
+                    System.out.println("table id " + clrPid.getTableId() + ", page number " + clrPid.getPageNumber()
+                            + ", undoes record at " + compensatedLsn);
+                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
@@ -556,13 +1028,13 @@ public class LogFile {
                     long middle = raf.getFilePointer();
                     Page after = readPageData(raf);
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+                    System.out.println((start + 1) + ": before image table id " + before.getId().getTableId());
+                    System.out.println((start + 1 + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
+                    System.out.println((start + 1 + 3 * INT_SIZE) + " TO " + middle + ": page data");
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                    System.out.println((middle + 1) + ": after image table id " + after.getId().getTableId());
+                    System.out.println((middle + 1 + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
+                    System.out.println((middle + 1 + 3 * INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
 
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
@@ -580,7 +1052,9 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        out.flush();
+        forceCount++;
+        raf.force();
     }
 
 }
@@ -0,0 +1,406 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The storage behind a LogFile: a sequence of fixed-size segment files
+ * addressed by a global log sequence number (LSN), plus a small control
+ * file. Segment i holds LSNs [i * segmentSize, (i + 1) * segmentSize) and
+ * is stored next to the control file as {@code <control file>.<i>}; a
+ * record may span two segments.
+ * <p>
+ * The control file holds a magic number, the offset of the last checkpoint,
+ * the first LSN still in the log and the segment size. Truncating the log only moves the
+ * first LSN forward and deletes the segments entirely before it, so records
+ * keep their LSNs and nothing is copied.
+ * <p>
+ * New segments are preallocated with zeros, so appends never change a file
+ * size and forcing them only needs to sync data. Consequently the end of
+ * the log is not the end of the last file: readers stop at the first record
+ * that does not check out (see LogFile.readRecord), and recovery then calls
+ * {@link #setEnd}.
+ * <p>
+ * Reads go through a small buffer at a current position, like a
+ * RandomAccessFile; they are only used while holding the LogFile monitor.
+ */
+class LogSegments implements DataInput {
+
+    static final long DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static final long CONTROL_MAGIC = 0x53444c4f47534547L;
+    private static final int CONTROL_SIZE = 4 * 8;
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int ZERO_CHUNK_SIZE = 64 * 1024;
+
+    private final File controlFile;
+    private final RandomAccessFile control;
+    private final long segmentSize;
+
+    private long checkpoint; // protected by this
+    private long start;      // first LSN in the log; protected by this
+    private long end;        // reads past this LSN fail; protected by this
+    private final Map<Long, FileChannel> segments = new HashMap<>(); // segment number -> channel; protected by this
+    private final Set<FileChannel> unforced = new HashSet<>(); // protected by this
+    private final Object forceLock = new Object(); // one force at a time; taken before this
+
+    private long position;
+    private final ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private long readBufStart = 0; // LSN of readBuf[0], readBuf holds limit() bytes
+
+    /**
+     * Open the log with the given control file, creating an empty log if
+     * the control file does not describe one (for instance because it was
+     * written by the older single file format).
+     *
+     * @param segmentSize size of new segments; an existing log keeps the
+     *            size it was created with
+     */
+    LogSegments(File controlFile, long segmentSize) throws IOException {
+        this.controlFile = controlFile;
+        this.control = new RandomAccessFile(controlFile, "rw");
+        control.seek(0);
+        if (control.length() >= CONTROL_SIZE && control.readLong() == CONTROL_MAGIC) {
+            checkpoint = control.readLong();
+            start = control.readLong();
+            this.segmentSize = control.readLong();
+        } else {
+            checkpoint = LogFile.NO_CHECKPOINT_ID;
+            start = 0;
+            this.segmentSize = segmentSize;
+            control.setLength(CONTROL_SIZE);
+            writeControl();
+        }
+        readBuf.limit(0);
+
+        // the log may go up to the end of the last segment on disk
+        long last = start / this.segmentSize;
+        end = start;
+        while (segmentFile(last).exists()) {
+            end = (last + 1) * this.segmentSize;
+            last++;
+        }
+    }
+
+    private File segmentFile(long segment) {
+        return new File(controlFile.getPath() + "." + segment);
+    }
+
+    private void writeControl() throws IOException {
+        control.seek(0);
+        control.writeLong(CONTROL_MAGIC);
+        control.writeLong(checkpoint);
+        control.writeLong(start);
+        control.writeLong(segmentSize);
+        control.getChannel().force(true);
+    }
+
+    /** @return the channel of a segment, creating and preallocating it if needed */
+    private FileChannel segment(long segment) throws IOException {
+        FileChannel channel = segments.get(segment);
+        if (channel != null)
+            return channel;
+        File f = segmentFile(segment);
+        boolean created = !f.exists();
+        channel = new RandomAccessFile(f, "rw").getChannel();
+        if (created) {
+            ByteBuffer zeros = ByteBuffer.allocate(ZERO_CHUNK_SIZE);
+            for (long pos = 0; pos < segmentSize; ) {
+                zeros.clear();
+                zeros.limit((int) Math.min(ZERO_CHUNK_SIZE, segmentSize - pos));
+                pos += channel.write(zeros, pos);
+            }
+            // the only metadata change of the segment, synced once here
+            channel.force(true);
+        }
+        segments.put(segment, channel);
+        return channel;
+    }
+
+    private void deleteSegment(long segment) throws IOException {
+        FileChannel channel = segments.remove(segment);
+        if (channel != null) {
+            unforced.remove(channel);
+            channel.close();
+        }
+        segmentFile(segment).delete();
+    }
+
+    synchronized long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /** Point the control file at a new checkpoint record, durably. */
+    synchronized void setCheckpoint(long lsn) throws IOException {
+        checkpoint = lsn;
+        writeControl();
+    }
+
+    /** @return the first LSN still in the log */
+    synchronized long getStart() {
+        return start;
+    }
+
+    /** @return the LSN after the last byte of the log known so far */
+    synchronized long length() {
+        return end;
+    }
+
+    /**
+     * Drop the log before lsn: record the new start in the control file,
+     * then delete the segments that lie entirely before it.
+     */
+    synchronized void truncate(long lsn) throws IOException {
+        if (lsn <= start)
+            return;
+        long first = start / segmentSize;
+        start = lsn;
+        writeControl();
+        for (long s = first; s < lsn / segmentSize; s++)
+            deleteSegment(s);
+        position = Math.max(position, start);
+    }
+
+    /** Throw away the whole log and start over at LSN 0, without a checkpoint. */
+    synchronized void reset() throws IOException {
+        for (long s = start / segmentSize; s * segmentSize < end; s++)
+            deleteSegment(s);
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        start = 0;
+        end = 0;
+        position = 0;
+        readBuf.limit(0);
+        writeControl();
+    }
+
+    /**
+     * Make lsn the end of the log, e.g. after recovery found a partially
+     * written record there: zero the rest of its segment and delete the
+     * segments after it, so that the garbage cannot be mistaken for records
+     * once the log grows past it again.
+     */
+    synchronized void setEnd(long lsn) throws IOException {
+        long segment = lsn / segmentSize;
+        for (long s = segment + 1; s * segmentSize < end; s++)
+            deleteSegment(s);
+        if (segmentFile(segment).exists()) {
+            FileChannel channel = segment(segment);
+            ByteBuffer zeros = ByteBuffer.allocate(ZERO_CHUNK_SIZE);
+            for (long pos = lsn % segmentSize; pos < segmentSize; ) {
+                zeros.clear();
+                zeros.limit((int) Math.min(ZERO_CHUNK_SIZE, segmentSize - pos));
+                pos += channel.write(zeros, pos);
+            }
+            channel.force(false);
+        }
+        end = lsn;
+        readBuf.limit(0);
+    }
+
+    /**
+     * Write all remaining bytes of src at the given LSN, crossing into the
+     * next segment where necessary.
+     */
+    synchronized void write(ByteBuffer src, long lsn) throws IOException {
+        if (lsn < readBufStart + readBuf.limit() && lsn + src.remaining() > readBufStart)
+            readBuf.limit(0);
+        while (src.hasRemaining()) {
+            long segment = lsn / segmentSize;
+            long offset = lsn % segmentSize;
+            FileChannel channel = segment(segment);
+            int n = (int) Math.min(src.remaining(), segmentSize - offset);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            while (part.hasRemaining())
+                offset += channel.write(part, offset);
+            src.position(src.position() + n);
+            lsn += n;
+            unforced.add(channel);
+        }
+        end = Math.max(end, lsn);
+    }
+
+    /**
+     * Force every segment written since the last call to disk. The monitor
+     * is not held while forcing, so appends can go on in the meantime.
+     * Forces run one at a time: a caller that finds nothing left to force
+     * returns only after the force that took its writes has completed.
+     */
+    void force() throws IOException {
+        synchronized (forceLock) {
+            List<FileChannel> channels;
+            synchronized (this) {
+                channels = new ArrayList<>(unforced);
+                unforced.clear();
+            }
+            for (FileChannel channel : channels) {
+                try {
+                    // segments are preallocated, so their metadata never changes
+                    channel.force(false);
+                } catch (ClosedChannelException e) {
+                    // the segment was truncated away, nothing in it matters any more
+                }
+            }
+        }
+    }
+
+    synchronized void close() throws IOException {
+        for (FileChannel channel : segments.values())
+            channel.close();
+        segments.clear();
+        unforced.clear();
+        control.close();
+    }
+
+    // ---- reading ----
+
+    synchronized void seek(long lsn) {
+        position = lsn;
+    }
+
+    synchronized long getFilePointer() {
+        return position;
+    }
+
+    @Override
+    public synchronized void readFully(byte[] b, int off, int len) throws IOException {
+        if (position < start || position + len > end)
+            throw new EOFException();
+        while (len > 0) {
+            long bufOffset = position - readBufStart;
+            if (bufOffset < 0 || bufOffset >= readBuf.limit())
+                fillReadBuffer();
+            bufOffset = position - readBufStart;
+            int n = (int) Math.min(len, readBuf.limit() - bufOffset);
+            System.arraycopy(readBuf.array(), (int) bufOffset, b, off, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void fillReadBuffer() throws IOException {
+        long segment = position / segmentSize;
+        long offset = position % segmentSize;
+        FileChannel channel = segment(segment);
+        readBuf.clear();
+        readBuf.limit((int) Math.min(READ_BUFFER_SIZE, Math.min(segmentSize - offset, end - position)));
+        long pos = offset;
+        while (readBuf.hasRemaining()) {
+            int n = channel.read(readBuf, pos);
+            if (n < 0)
+                throw new EOFException();
+            pos += n;
+        }
+        readBuf.flip();
+        readBufStart = position;
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized int skipBytes(int n) throws IOException {
+        int skipped = (int) Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    private final byte[] scratch = new byte[8];
+
+    @Override
+    public synchronized boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public synchronized byte readByte() throws IOException {
+        readFully(scratch, 0, 1);
+        return scratch[0];
+    }
+
+    @Override
+    public synchronized int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    @Override
+    public synchronized short readShort() throws IOException {
+        readFully(scratch, 0, 2);
+        return ByteBuffer.wrap(scratch, 0, 2).getShort();
+    }
+
+    @Override
+    public synchronized int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    @Override
+    public synchronized char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    @Override
+    public synchronized int readInt() throws IOException {
+        readFully(scratch, 0, 4);
+        return ByteBuffer.wrap(scratch, 0, 4).getInt();
+    }
+
+    @Override
+    public synchronized long readLong() throws IOException {
+        readFully(scratch, 0, 8);
+        return ByteBuffer.wrap(scratch, 0, 8).getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /** Reads bytes up to a line terminator, like RandomAccessFile.readLine:
+        each byte is one character, and null is returned at the end of the log. */
+    @Override
+    public synchronized String readLine() throws IOException {
+        if (position >= end)
+            return null;
+        StringBuilder line = new StringBuilder();
+        while (position < end) {
+            int c = readUnsignedByte();
+            if (c == '\n')
+                break;
+            if (c == '\r') {
+                if (position < end && readUnsignedByte() != '\n')
+                    position--;
+                break;
+            }
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
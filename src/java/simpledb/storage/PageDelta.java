@@ -0,0 +1,160 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The difference between two versions of a {@link SlottedPage}, as stored in
+ * a DELTA log record: the range of header bytes that changed, and the before
+ * and after bytes of every tuple slot that changed. Inserting, deleting or
+ * updating one tuple therefore costs a few bytes of header and one slot
+ * instead of two full page images.
+ * <p>
+ * A delta is physical at slot granularity, so both {@link #redo} and
+ * {@link #undo} are idempotent and do not depend on the rest of the page.
+ */
+class PageDelta {
+
+    private final int slotAreaOffset;
+    private final int slotSize;
+    private final int headerFrom; // changed header bytes are [headerFrom, headerFrom + headerBefore.length)
+    private final byte[] headerBefore;
+    private final byte[] headerAfter;
+    private final int[] slots;
+    private final byte[][] slotsBefore;
+    private final byte[][] slotsAfter;
+
+    private PageDelta(int slotAreaOffset, int slotSize, int headerFrom, byte[] headerBefore, byte[] headerAfter,
+                      int[] slots, byte[][] slotsBefore, byte[][] slotsAfter) {
+        this.slotAreaOffset = slotAreaOffset;
+        this.slotSize = slotSize;
+        this.headerFrom = headerFrom;
+        this.headerBefore = headerBefore;
+        this.headerAfter = headerAfter;
+        this.slots = slots;
+        this.slotsBefore = slotsBefore;
+        this.slotsAfter = slotsAfter;
+    }
+
+    /**
+     * Compute the delta between two images of the same page.
+     * @param before the page before the change
+     * @param after the page after the change
+     */
+    static PageDelta diff(SlottedPage before, SlottedPage after) {
+        byte[] b = before.getPageData();
+        byte[] a = after.getPageData();
+        int offset = after.getSlotAreaOffset();
+        int slotSize = after.getSlotSize();
+
+        int headerFrom = 0;
+        while (headerFrom < offset && b[headerFrom] == a[headerFrom])
+            headerFrom++;
+        int headerTo = offset;
+        while (headerTo > headerFrom && b[headerTo - 1] == a[headerTo - 1])
+            headerTo--;
+        byte[] headerBefore = Arrays.copyOfRange(b, headerFrom, headerTo);
+        byte[] headerAfter = Arrays.copyOfRange(a, headerFrom, headerTo);
+
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < after.getNumSlots(); i++) {
+            int start = offset + i * slotSize;
+            if (!rangeEquals(b, a, start, start + slotSize))
+                changed.add(i);
+        }
+        int[] slots = new int[changed.size()];
+        byte[][] slotsBefore = new byte[slots.length][];
+        byte[][] slotsAfter = new byte[slots.length][];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = changed.get(i);
+            int start = offset + slots[i] * slotSize;
+            slotsBefore[i] = Arrays.copyOfRange(b, start, start + slotSize);
+            slotsAfter[i] = Arrays.copyOfRange(a, start, start + slotSize);
+        }
+        return new PageDelta(offset, slotSize, headerFrom, headerBefore, headerAfter, slots, slotsBefore, slotsAfter);
+    }
+
+    private static boolean rangeEquals(byte[] x, byte[] y, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (x[i] != y[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return a copy of data with the after image of this delta applied
+     */
+    byte[] redo(byte[] data) {
+        return apply(data, headerAfter, slotsAfter);
+    }
+
+    /**
+     * @return a copy of data with the before image of this delta applied
+     */
+    byte[] undo(byte[] data) {
+        return apply(data, headerBefore, slotsBefore);
+    }
+
+    private byte[] apply(byte[] data, byte[] header, byte[][] slotData) {
+        byte[] result = data.clone();
+        System.arraycopy(header, 0, result, headerFrom, header.length);
+        for (int i = 0; i < slots.length; i++)
+            System.arraycopy(slotData[i], 0, result, slotAreaOffset + slots[i] * slotSize, slotSize);
+        return result;
+    }
+
+    /**
+     * @return the number of tuple slots this delta changes
+     */
+    int getNumChangedSlots() {
+        return slots.length;
+    }
+
+    /*
+       a delta is stored as
+
+       slot area offset, slot size
+       offset and length of the changed header bytes, their before and after bytes
+       number of changed slots
+       for each changed slot: slot number, before bytes, after bytes
+    */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(slotAreaOffset);
+        out.writeInt(slotSize);
+        out.writeInt(headerFrom);
+        out.writeInt(headerBefore.length);
+        out.write(headerBefore);
+        out.write(headerAfter);
+        out.writeInt(slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            out.writeInt(slots[i]);
+            out.write(slotsBefore[i]);
+            out.write(slotsAfter[i]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        int slotAreaOffset = in.readInt();
+        int slotSize = in.readInt();
+        int headerFrom = in.readInt();
+        byte[] headerBefore = new byte[in.readInt()];
+        byte[] headerAfter = new byte[headerBefore.length];
+        in.readFully(headerBefore);
+        in.readFully(headerAfter);
+        int n = in.readInt();
+        int[] slots = new int[n];
+        byte[][] slotsBefore = new byte[n][slotSize];
+        byte[][] slotsAfter = new byte[n][slotSize];
+        for (int i = 0; i < n; i++) {
+            slots[i] = in.readInt();
+            in.readFully(slotsBefore[i]);
+            in.readFully(slotsAfter[i]);
+        }
+        return new PageDelta(slotAreaOffset, slotSize, headerFrom, headerBefore, headerAfter, slots, slotsBefore, slotsAfter);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Registry of the page types that can appear in the log. Each type has a
+ * one byte tag, which together with a table id and page number identifies a
+ * page, and factories that rebuild its page id and page from the log without
+ * reflection.
+ * <p>
+ * A page id is logged as its tag, table id and page number (see
+ * {@link #writePageId}); for B+ tree pages the tag also encodes the page
+ * category, which therefore takes no space of its own.
+ */
+final class PageTypes {
+
+    static final byte HEAP = 0;
+    static final byte BTREE_ROOT_PTR = 1;
+    static final byte BTREE_HEADER = 2;
+    static final byte BTREE_INTERNAL = 3;
+    static final byte BTREE_LEAF = 4;
+
+    /** Builds the page id of a type from a table id and page number. */
+    @FunctionalInterface
+    interface PageIdFactory {
+        PageId create(int tableId, int pageNo);
+    }
+
+    /** Builds a page of a type from its id and serialized data. */
+    @FunctionalInterface
+    interface PageFactory {
+        Page create(PageId pid, byte[] data) throws IOException;
+    }
+
+    private static final PageIdFactory[] ID_FACTORIES = new PageIdFactory[BTREE_LEAF + 1];
+    private static final PageFactory[] PAGE_FACTORIES = new PageFactory[BTREE_LEAF + 1];
+
+    static {
+        register(HEAP, HeapPageId::new,
+                (pid, data) -> new HeapPage((HeapPageId) pid, data));
+        register(BTREE_ROOT_PTR, (t, p) -> new BTreePageId(t, p, BTreePageId.ROOT_PTR),
+                (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data));
+        register(BTREE_HEADER, (t, p) -> new BTreePageId(t, p, BTreePageId.HEADER),
+                (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data));
+        register(BTREE_INTERNAL, (t, p) -> new BTreePageId(t, p, BTreePageId.INTERNAL),
+                (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data, keyFields(pid)));
+        register(BTREE_LEAF, (t, p) -> new BTreePageId(t, p, BTreePageId.LEAF),
+                (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data, keyFields(pid)));
+    }
+
+    private PageTypes() {
+    }
+
+    private static void register(byte tag, PageIdFactory ids, PageFactory pages) {
+        ID_FACTORIES[tag] = ids;
+        PAGE_FACTORIES[tag] = pages;
+    }
+
+    /** B+ tree internal and leaf pages need the key fields of their file */
+    private static int[] keyFields(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyFields();
+    }
+
+    /** @return the tag of the page type that pid belongs to */
+    static byte tagOf(PageId pid) throws IOException {
+        if (pid instanceof HeapPageId)
+            return HEAP;
+        if (pid instanceof BTreePageId) {
+            switch (((BTreePageId) pid).pgcateg()) {
+            case BTreePageId.ROOT_PTR:
+                return BTREE_ROOT_PTR;
+            case BTreePageId.HEADER:
+                return BTREE_HEADER;
+            case BTreePageId.INTERNAL:
+                return BTREE_INTERNAL;
+            case BTreePageId.LEAF:
+                return BTREE_LEAF;
+            }
+        }
+        throw new IOException("cannot log page id of class " + pid.getClass().getName());
+    }
+
+    private static byte checkTag(byte tag) throws IOException {
+        if (tag < 0 || tag >= ID_FACTORIES.length || ID_FACTORIES[tag] == null)
+            throw new IOException("unknown page type " + tag);
+        return tag;
+    }
+
+    /** Write a page id as its tag, table id and page number. */
+    static void writePageId(DataOutput dout, PageId pid) throws IOException {
+        dout.writeByte(tagOf(pid));
+        dout.writeInt(pid.getTableId());
+        dout.writeInt(pid.getPageNumber());
+    }
+
+    static PageId readPageId(DataInput din) throws IOException {
+        byte tag = checkTag(din.readByte());
+        return ID_FACTORIES[tag].create(din.readInt(), din.readInt());
+    }
+
+    /** @return a new page of the type of pid, built from data */
+    static Page newPage(PageId pid, byte[] data) throws IOException {
+        return PAGE_FACTORIES[tagOf(pid)].create(pid, data);
+    }
+}
@@ -0,0 +1,30 @@
+package simpledb.storage;
+
+/**
+ * A page whose serialized form ({@link Page#getPageData}) is a fixed-size
+ * prefix (header bitmap and, for B+ tree leaves, parent and sibling
+ * pointers) followed by an array of fixed-size tuple slots.
+ * <p>
+ * Knowing this layout lets the log describe a change to the page as the
+ * slots that changed instead of two complete page images.
+ *
+ * @see PageDelta
+ */
+public interface SlottedPage extends Page {
+
+    /**
+     * @return the offset of the first tuple slot in the page data; everything
+     * before it is header
+     */
+    int getSlotAreaOffset();
+
+    /**
+     * @return the size of one tuple slot in bytes
+     */
+    int getSlotSize();
+
+    /**
+     * @return the number of tuple slots on this page
+     */
+    int getNumSlots();
+}
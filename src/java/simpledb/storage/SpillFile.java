@@ -0,0 +1,112 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * A temporary file of tuples with a fixed TupleDesc, for operators that
+ * have to move data out of memory: tuples are appended with {@link #add}
+ * and read back in the same order through a {@link Reader}. Fields are
+ * stored with Field.serialize, so every tuple takes exactly
+ * TupleDesc.getSize() bytes.
+ * <p>
+ * The file is deleted by {@link #delete}, or when the JVM exits.
+ */
+public class SpillFile {
+
+    /** Bytes buffered per open writer or reader. */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int numTuples = 0;
+
+    /**
+     * Create an empty spill file.
+     *
+     * @param td the TupleDesc of all tuples added to the file
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".tmp");
+        this.file.deleteOnExit();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** Append a tuple to the file. */
+    public void add(Tuple t) throws IOException {
+        if (out == null)
+            throw new IllegalStateException("spill file is already being read");
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+        numTuples++;
+    }
+
+    /** @return the number of tuples in the file */
+    public int size() {
+        return numTuples;
+    }
+
+    /**
+     * Finish writing and open a reader over all tuples of the file. No
+     * more tuples can be added afterwards; any number of readers may be
+     * opened.
+     */
+    public Reader reader() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        return new Reader();
+    }
+
+    /** Delete the file. Readers still open stop working. */
+    public void delete() {
+        try {
+            if (out != null)
+                out.close();
+        } catch (IOException e) {
+            // deleting it anyway
+        }
+        out = null;
+        file.delete();
+    }
+
+    /** Reads the tuples of a SpillFile in the order they were added. */
+    public class Reader implements Closeable {
+        private final DataInputStream in;
+        private int remaining = numTuples;
+
+        private Reader() throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        }
+
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        public Tuple next() throws IOException {
+            if (remaining == 0)
+                throw new EOFException("no more tuples in spill file");
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (ParseException e) {
+                throw new IOException("corrupt spill file: " + e.getMessage());
+            }
+            remaining--;
+            return t;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -160,6 +160,24 @@ public class TupleDesc implements Serializable {
         return size;
     }
 
+    /**
+     * @return An estimate of the number of bytes a Tuple of this TupleDesc
+     *         occupies on the Java heap: the Tuple object, its Field array and
+     *         RecordId, and the Field objects. Operators that bound the memory
+     *         they hold tuples in use this rather than getSize(), which counts
+     *         the bytes of the serialized tuple only.
+     */
+    public int getHeapSize() {
+        int size = TUPLE_HEAP_OVERHEAD;
+        for (TDItem tdItem : tdItems) {
+            size += 4 + tdItem.fieldType.getHeapSize();// 数组里的引用加上Field对象
+        }
+        return size;
+    }
+
+    // Tuple对象(24)、Field数组头(16)、RecordId及其PageId(40)，按64位JVM压缩指针估算
+    private static final int TUPLE_HEAP_OVERHEAD = 24 + 16 + 40;
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -26,6 +26,19 @@ public class LockManager {
 
     private Random random = new Random();
 
+    private final LockStats lockStats = new LockStats();
+
+    public LockManager() {
+        LockStats.register(lockStats);
+    }
+
+    /**
+     * 锁等待相关的统计信息，同时通过JMX暴露
+     */
+    public LockStats getLockStats() {
+        return lockStats;
+    }
+
     /**
      * 利用同步代码块保证加锁操作的原子性
      * @param pageId
@@ -40,14 +53,20 @@ public class LockManager {
         if(lockManager.containsKey(pageId) && lockManager.get(pageId).getLockType()==LockType.Read){
             lock=lockManager.get(pageId);
             lock.addLock(transactionId);
+            lockStats.recordAcquire(pageId, 0);
             return true;
         }
         // 1.当前页面上不存在锁 2.当前页面上存在锁，但是存在的是写锁，暂时不能加入读锁
         lock=new Lock(LockType.Read, pageId);
         boolean timeout=false;
+        long waitStart=0;
         while (lockManager.containsKey(pageId)){// 因为当前方法获取了对象锁，而在这个方法里面无法移除lockManager中的某个key，所以使用wait()等改并释放锁
-            if(timeout)
+            if(timeout) {
+                lockStats.recordTimeout(pageId, System.nanoTime()-waitStart);
                 throw new TransactionAbortedException();
+            }
+            if(waitStart==0)
+                waitStart=System.nanoTime();
             try {
                 this.wait(TIMEOUT_MILLIS);
                 timeout=true;
@@ -57,6 +76,7 @@ public class LockManager {
         }
         lockManager.put(pageId,lock);
         lock.addLock(transactionId);
+        lockStats.recordAcquire(pageId, waitStart==0 ? 0 : System.nanoTime()-waitStart);
         return true;
     }
 
@@ -87,6 +107,8 @@ public class LockManager {
         if(lockManager.containsKey(pageId) && lockManager.get(pageId).getLockType()==LockType.Read && lockManager.get(pageId).occupyingLockAlone(transactionId)){
             lock=lockManager.get(pageId);
             lock.upgradeReadLock();
+            lockStats.recordUpgrade(pageId);
+            lockStats.recordAcquire(pageId, 0);
             printLockManagerMap(transactionId, "point3");
             return true;
         }
@@ -96,9 +118,14 @@ public class LockManager {
         lock=new Lock(LockType.Write, pageId);
         long stopTestTime = System.currentTimeMillis() + TIMEOUT_MILLIS;
         boolean timeout=false;
+        long waitStart=0;
         while (lockManager.containsKey(pageId) && !(lockManager.get(pageId).getLockType()==LockType.Read && lockManager.get(pageId).occupyingLockAlone(transactionId))){// 循环中需要再次考虑读锁升级成写锁的情况
-            if(timeout)
+            if(timeout) {
+                lockStats.recordTimeout(pageId, System.nanoTime()-waitStart);
                 throw new TransactionAbortedException();
+            }
+            if(waitStart==0)
+                waitStart=System.nanoTime();
             try {
                 // 如果想让等待的时间随机一点，TIMEOUT_MILLIS乘以一个随机数，随机数一定不能“可能为0”，否则有概率两个事务走到这里都取到0，那么都一直等待，不会超时失败，测试不通过：如果用random.nextInt()，则可以乘以(random.nextInt(2)+1)
                 // 至于为什么要让等待的时间随机，如果等待时间一样，如果是事务A、B想要写锁，此时C想要写锁，则设置一样的等待时间，事务A、B差不多时间失败就可以，主要是下面的场景
@@ -114,11 +141,14 @@ public class LockManager {
         if(lockManager.containsKey(pageId) && lockManager.get(pageId).getLockType()==LockType.Read && lockManager.get(pageId).occupyingLockAlone(transactionId)){
             lock=lockManager.get(pageId);
             lock.upgradeReadLock();
+            lockStats.recordUpgrade(pageId);
+            lockStats.recordAcquire(pageId, waitStart==0 ? 0 : System.nanoTime()-waitStart);
             printLockManagerMap(transactionId, "point2");
             return true;
         }else {
             lockManager.put(pageId, lock);
             lock.addLock(transactionId);
+            lockStats.recordAcquire(pageId, waitStart==0 ? 0 : System.nanoTime()-waitStart);
             printLockManagerMap(transactionId,"point2");
             return true;
         }
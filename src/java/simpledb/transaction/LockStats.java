@@ -0,0 +1,276 @@
+package simpledb.transaction;
+
+import simpledb.storage.PageId;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock contention counters collected by the {@link LockManager}, kept per
+ * page and per table: how often a lock was granted, how often the requester
+ * had to wait and for how long, how many read locks were upgraded and how
+ * many requests timed out (and so aborted their transaction).
+ * <p>
+ * Counters are LongAdders so that recording does not add contention of its
+ * own. At most {@link #MAX_TRACKED_PAGES} pages are counted at a time: when
+ * a page beyond them is locked, the half of the pages with the fewest waits
+ * is dropped. The table and total counters always cover every page. The
+ * statistics are exposed through JMX, see {@link LockStatsMBean}.
+ *
+ * @Threadsafe
+ */
+public class LockStats implements LockStatsMBean {
+
+    public static final String OBJECT_NAME = "simpledb:type=LockStats";
+
+    /** Number of buckets of the log2 wait time histogram (in microseconds). */
+    public static final int HISTOGRAM_BUCKETS = 24;
+
+    /** Number of pages that have counters of their own at most. */
+    public static final int MAX_TRACKED_PAGES = 4096;
+
+    /**
+     * Counters of a single page or table.
+     */
+    public static class Counters {
+        private final LongAdder acquisitions = new LongAdder();
+        private final LongAdder waits = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder upgrades = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+        public long getAcquisitions() {
+            return acquisitions.sum();
+        }
+
+        public long getWaits() {
+            return waits.sum();
+        }
+
+        public long getWaitNanos() {
+            return waitNanos.sum();
+        }
+
+        public long getUpgrades() {
+            return upgrades.sum();
+        }
+
+        public long getTimeouts() {
+            return timeouts.sum();
+        }
+
+        public long[] getHistogram() {
+            long[] result = new long[HISTOGRAM_BUCKETS];
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++)
+                result[i] = histogram.get(i);
+            return result;
+        }
+
+        private void recordAcquire(long waitNanos) {
+            acquisitions.increment();
+            if (waitNanos > 0)
+                recordWait(waitNanos);
+        }
+
+        private void recordTimeout(long waitNanos) {
+            timeouts.increment();
+            recordWait(waitNanos);
+        }
+
+        private void recordWait(long nanos) {
+            waits.increment();
+            waitNanos.add(nanos);
+            histogram.incrementAndGet(bucket(nanos));
+        }
+
+        @Override
+        public String toString() {
+            return "acquisitions=" + getAcquisitions() + ", waits=" + getWaits()
+                    + ", waitMillis=" + getWaitNanos() / 1000000 + ", upgrades=" + getUpgrades()
+                    + ", timeouts=" + getTimeouts();
+        }
+    }
+
+    private final Map<PageId, Counters> pageCounters = new ConcurrentHashMap<>();
+    private final Map<Integer, Counters> tableCounters = new ConcurrentHashMap<>();
+    private final Counters total = new Counters();
+
+    /**
+     * Bucket of a wait time: 0 for less than one microsecond, otherwise one
+     * more than the index of the highest bit of the wait time in microseconds.
+     */
+    static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        int b = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(b, HISTOGRAM_BUCKETS - 1);
+    }
+
+    private Counters page(PageId pid) {
+        Counters c = pageCounters.get(pid);
+        if (c != null)
+            return c;
+        if (pageCounters.size() >= MAX_TRACKED_PAGES)
+            prune();
+        return pageCounters.computeIfAbsent(pid, k -> new Counters());
+    }
+
+    /** Drop the counters of the half of the pages with the fewest waits. */
+    private synchronized void prune() {
+        // 别的线程可能已经清理过了
+        if (pageCounters.size() < MAX_TRACKED_PAGES)
+            return;
+        Set<PageId> keep = new HashSet<>();
+        for (Map.Entry<PageId, Counters> e : top(pageCounters, MAX_TRACKED_PAGES / 2))
+            keep.add(e.getKey());
+        pageCounters.keySet().retainAll(keep);
+    }
+
+    private Counters table(PageId pid) {
+        return tableCounters.computeIfAbsent(pid.getTableId(), k -> new Counters());
+    }
+
+    /**
+     * Record that a lock on pid was granted.
+     * @param waitNanos time spent waiting for the lock, 0 if it was granted immediately
+     */
+    public void recordAcquire(PageId pid, long waitNanos) {
+        page(pid).recordAcquire(waitNanos);
+        table(pid).recordAcquire(waitNanos);
+        total.recordAcquire(waitNanos);
+    }
+
+    /** Record that a read lock on pid was upgraded to a write lock. */
+    public void recordUpgrade(PageId pid) {
+        page(pid).upgrades.increment();
+        table(pid).upgrades.increment();
+        total.upgrades.increment();
+    }
+
+    /**
+     * Record that a request for a lock on pid gave up.
+     * @param waitNanos time spent waiting before giving up
+     */
+    public void recordTimeout(PageId pid, long waitNanos) {
+        page(pid).recordTimeout(waitNanos);
+        table(pid).recordTimeout(waitNanos);
+        total.recordTimeout(waitNanos);
+    }
+
+    /**
+     * @return the counters of a page, or null if it was never locked or its
+     *         counters were dropped to make room for other pages
+     */
+    public Counters getPageCounters(PageId pid) {
+        return pageCounters.get(pid);
+    }
+
+    /** @return the counters of a table, or null if none of its pages was locked */
+    public Counters getTableCounters(int tableId) {
+        return tableCounters.get(tableId);
+    }
+
+    /**
+     * @return the n pages with the most waits, ties broken by total wait time
+     */
+    public List<Map.Entry<PageId, Counters>> topPages(int n) {
+        return top(pageCounters, n);
+    }
+
+    /**
+     * @return the n tables with the most waits, ties broken by total wait time
+     */
+    public List<Map.Entry<Integer, Counters>> topTables(int n) {
+        return top(tableCounters, n);
+    }
+
+    private static <K> List<Map.Entry<K, Counters>> top(Map<K, Counters> counters, int n) {
+        List<Map.Entry<K, Counters>> entries = new ArrayList<>(counters.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<K, Counters> e) -> e.getValue().getWaits())
+                .thenComparingLong(e -> e.getValue().getWaitNanos())
+                .reversed());
+        return entries.subList(0, Math.min(n, entries.size()));
+    }
+
+    @Override
+    public long getAcquisitions() {
+        return total.getAcquisitions();
+    }
+
+    @Override
+    public long getWaits() {
+        return total.getWaits();
+    }
+
+    @Override
+    public long getUpgrades() {
+        return total.getUpgrades();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return total.getTimeouts();
+    }
+
+    @Override
+    public long[] getWaitHistogram() {
+        return total.getHistogram();
+    }
+
+    @Override
+    public String[] getHotLocks(int n) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<PageId, Counters> e : topPages(n)) {
+            lines.add("tableId: " + e.getKey().getTableId() + ", pgNo: " + e.getKey().getPageNumber() + ", " + e.getValue());
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getHotTables(int n) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<Integer, Counters> e : topTables(n)) {
+            lines.add("tableId: " + e.getKey() + ", " + e.getValue());
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public void reset() {
+        pageCounters.clear();
+        tableCounters.clear();
+        total.acquisitions.reset();
+        total.waits.reset();
+        total.waitNanos.reset();
+        total.upgrades.reset();
+        total.timeouts.reset();
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++)
+            total.histogram.set(i, 0);
+    }
+
+    /**
+     * Register stats as the LockStats MBean of the platform MBean server,
+     * replacing a previously registered instance (Database.reset() creates a
+     * new LockManager every time).
+     */
+    static void register(LockStats stats) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(stats, name);
+        } catch (InstanceAlreadyExistsException e) {
+            // 另一个线程同时注册了，使用它注册的实例即可
+        } catch (JMException | SecurityException e) {
+            System.out.println("unable to register LockStats MBean: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package simpledb.transaction;
+
+/**
+ * JMX management interface of {@link LockStats}, registered as
+ * {@value LockStats#OBJECT_NAME} on the platform MBean server.
+ */
+public interface LockStatsMBean {
+
+    long getAcquisitions();
+
+    long getWaits();
+
+    long getUpgrades();
+
+    long getTimeouts();
+
+    /**
+     * The wait time histogram over all pages. Bucket i counts waits that took
+     * less than 2^i microseconds (and at least 2^(i-1)), the last bucket
+     * collects everything longer.
+     */
+    long[] getWaitHistogram();
+
+    /**
+     * @param n the number of pages to return
+     * @return the n pages with the most lock waits, one line per page
+     */
+    String[] getHotLocks(int n);
+
+    /**
+     * @param n the number of tables to return
+     * @return the n tables with the most lock waits, one line per table
+     */
+    String[] getHotTables(int n);
+
+    /** Clear all counters. */
+    void reset();
+}
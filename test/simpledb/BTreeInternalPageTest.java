@@ -174,6 +174,106 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChild()
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		List<BTreeEntry> entries = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+
+		assertEquals(entries.get(0).getLeftChild(), page.findChild(null));
+		for (BTreeEntry e : entries) {
+			int key = ((IntField) e.getKey()).getValue();
+			assertEquals(e.getLeftChild(), page.findChild(new IntField(key)));
+			assertEquals(e.getRightChild(), page.findChild(new IntField(key + 1)));
+		}
+		assertEquals(entries.get(0).getLeftChild(), page.findChild(new IntField(0)));
+
+		// the lookup follows changes to the page
+		page.deleteKeyAndRightChild(entries.get(entries.size() - 1));
+		BTreeEntry last = entries.get(entries.size() - 2);
+		assertEquals(last.getRightChild(), page.findChild(new IntField(Integer.MAX_VALUE)));
+		page.deleteKeyAndRightChild(entries.get(0));
+		assertEquals(entries.get(0).getLeftChild(), page.findChild(entries.get(1).getKey()));
+		assertEquals(entries.get(1).getRightChild(), page.findChild(new IntField(
+				((IntField) entries.get(1).getKey()).getValue() + 1)));
+	}
+
+	/**
+	 * Unit test for reading back a page with int keys after it was modified
+	 */
+	@Test public void intKeysRoundTrip() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry first = it.next();
+		BTreeEntry second = it.next();
+		page.deleteKeyAndLeftChild(first);
+		second.setKey(new IntField(((IntField) second.getKey()).getValue() - 1));
+		page.updateEntry(second);
+
+		BTreeInternalPage copy = new BTreeInternalPage(pid, page.getPageData(), 0);
+		Iterator<BTreeEntry> it1 = page.iterator();
+		Iterator<BTreeEntry> it2 = copy.iterator();
+		while (it1.hasNext()) {
+			assertTrue(it2.hasNext());
+			BTreeEntry e1 = it1.next();
+			BTreeEntry e2 = it2.next();
+			assertEquals(e1.getKey(), e2.getKey());
+			assertEquals(e1.getLeftChild(), e2.getLeftChild());
+			assertEquals(e1.getRightChild(), e2.getRightChild());
+		}
+		assertFalse(it2.hasNext());
+		assertEquals(second.getLeftChild(), copy.findChild(second.getKey()));
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.readVersion() and validateVersion()
+	 */
+	@Test public void version() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		long v = page.readVersion();
+		assertEquals(0, v % 2);
+		assertTrue(page.validateVersion(v));
+		// an odd version means a writer is in the middle of a change
+		assertFalse(page.validateVersion(v + 1));
+
+		// reading does not change the version
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry first = it.next();
+		BTreeEntry last = first;
+		while (it.hasNext())
+			last = it.next();
+		page.findChild(first.getKey());
+		page.keyAfter(first.getLeftChild());
+		assertTrue(page.validateVersion(v));
+
+		// every change bumps it twice, once on each side of the change
+		first.setKey(new IntField(((IntField) first.getKey()).getValue() - 1));
+		page.updateEntry(first);
+		assertEquals(v + 2, page.readVersion());
+		assertFalse(page.validateVersion(v));
+		assertTrue(page.validateVersion(v + 2));
+
+		page.deleteKeyAndRightChild(last);
+		assertEquals(v + 4, page.readVersion());
+		page.insertEntry(new BTreeEntry(last.getKey(), last.getLeftChild(), last.getRightChild()));
+		assertEquals(v + 6, page.readVersion());
+
+		// a change that fails still leaves the version even
+		first.setKey(new IntField(Integer.MAX_VALUE));
+		try {
+			page.updateEntry(first);
+			throw new Exception("should not be able to move a key out of order; expected DbException");
+		} catch (DbException e) {
+			// explicitly ignored
+		}
+		assertEquals(v + 8, page.readVersion());
+		assertTrue(page.validateVersion(v + 8));
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
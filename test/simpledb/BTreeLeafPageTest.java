@@ -196,6 +196,36 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field)
+	 */
+	@Test public void testIteratorFrom() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		for (int insert = 0; insert < 2; insert++) {
+			List<Integer> keys = new ArrayList<>();
+			Iterator<Tuple> it = page.iterator();
+			while (it.hasNext())
+				keys.add(((IntField) it.next().getField(0)).getValue());
+
+			for (int probe : new int[] { Integer.MIN_VALUE, keys.get(0), keys.get(3), keys.get(3) + 1,
+					keys.get(keys.size() - 1), Integer.MAX_VALUE }) {
+				List<Integer> expected = new ArrayList<>();
+				for (int k : keys) {
+					if (k >= probe)
+						expected.add(k);
+				}
+				List<Integer> actual = new ArrayList<>();
+				it = page.iterator(new IntField(probe));
+				while (it.hasNext())
+					actual.add(((IntField) it.next().getField(0)).getValue());
+				assertEquals(expected, actual);
+			}
+
+			// the lookup follows changes to the page
+			page.insertTuple(BTreeUtility.getBTreeTuple(keys.get(3), 2));
+		}
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
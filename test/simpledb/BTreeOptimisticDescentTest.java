@@ -0,0 +1,173 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Descents to a leaf that read the internal pages of a B+ tree without
+ * locking them.
+ */
+public class BTreeOptimisticDescentTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private BTreeFile bigFile;
+	private BTreePageId rootPtrId;
+	private BTreePageId rootId;
+
+	@Before
+	public void createTree() throws Exception {
+		tid = new TransactionId();
+		// This should create a B+ tree with 100 leaf pages under one internal page
+		bigFile = BTreeUtility.createRandomBTreeFile(2, 50200, null, null, 0);
+		rootPtrId = BTreeRootPtrPage.getId(bigFile.getId());
+		TransactionId t = new TransactionId();
+		rootId = ((BTreeRootPtrPage) Database.getBufferPool().getPage(t, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		Database.getBufferPool().transactionComplete(t);
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private int lookup(TransactionId tid, int key) throws Exception {
+		DbFileIterator it = bigFile.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		int n = 0;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			assertEquals(new IntField(key), t.getField(0));
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	@Test
+	public void lookupLocksOnlyTheLeaf() throws Exception {
+		// room for every page, so that evicting the path does not force a restart
+		Database.resetBufferPool(500);
+		for (int key = 0; key < BTreeUtility.MAX_RAND_VALUE; key += 997)
+			lookup(tid, key);
+		assertFalse(Database.getLockManager().pageLocked(rootPtrId));
+		assertFalse(Database.getLockManager().pageLocked(rootId));
+		int leavesLocked = 0;
+		Iterator<BTreeEntry> it = ((BTreeInternalPage) bigFile.readPage(rootId)).iterator();
+		while (it.hasNext()) {
+			if (Database.getBufferPool().holdsLock(tid, it.next().getRightChild()))
+				leavesLocked++;
+		}
+		assertTrue(leavesLocked > 0);
+		assertEquals(0, bigFile.getOptimisticRestarts());
+		assertEquals(0, bigFile.getLockedDescents());
+	}
+
+	@Test
+	public void lookupIgnoresLockedRoot() throws Exception {
+		// another transaction holding the root exclusively does not block the descent
+		TransactionId writer = new TransactionId();
+		Database.getBufferPool().getPage(writer, rootId, Permissions.READ_WRITE);
+		try {
+			lookup(tid, 1000);
+			assertTrue(Database.getBufferPool().holdsLock(writer, rootId));
+			assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+		} finally {
+			Database.getBufferPool().transactionComplete(writer);
+		}
+	}
+
+	/** Leaf splits change the root under concurrent lookups, which then start over. */
+	@Test
+	public void concurrentSplitsRestartDescent() throws Exception {
+		Database.resetBufferPool(500);
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		Thread writer = new Thread(() -> {
+			Random r = new Random(1);
+			try {
+				while (!stop.get()) {
+					TransactionId t = new TransactionId();
+					try {
+						for (int i = 0; i < 10; i++) {
+							Database.getBufferPool().insertTuple(t, bigFile.getId(),
+									BTreeUtility.getBTreeTuple(new int[] { r.nextInt(BTreeUtility.MAX_RAND_VALUE), i }));
+						}
+						Database.getBufferPool().transactionComplete(t);
+					} catch (TransactionAbortedException e) {
+						Database.getBufferPool().transactionComplete(t, false);
+					}
+				}
+			} catch (Throwable e) {
+				error.set(e);
+			}
+		});
+		writer.start();
+
+		Random r = new Random(2);
+		long deadline = System.currentTimeMillis() + 60000;
+		try {
+			while (bigFile.getOptimisticRestarts() == 0 && System.currentTimeMillis() < deadline) {
+				TransactionId t = new TransactionId();
+				try {
+					lookup(t, r.nextInt(BTreeUtility.MAX_RAND_VALUE));
+					Database.getBufferPool().transactionComplete(t);
+				} catch (TransactionAbortedException e) {
+					Database.getBufferPool().transactionComplete(t, false);
+				}
+			}
+		} finally {
+			stop.set(true);
+			writer.join();
+		}
+		assertNull(error.get());
+		assertTrue(bigFile.getOptimisticRestarts() > 0);
+		BTreeChecker.checkRep(bigFile, tid, new HashMap<>(), true);
+	}
+
+	/**
+	 * With room for only two pages in the buffer pool, the pages of the path
+	 * are evicted before they can be validated, so every optimistic attempt
+	 * fails and the descent locks the internal pages instead.
+	 */
+	@Test
+	public void fallBackToLocking() throws Exception {
+		Database.resetBufferPool(2);
+		int n = lookup(tid, 1000);
+		assertEquals(BTreeFile.MAX_OPTIMISTIC_RETRIES, bigFile.getOptimisticRestarts());
+		assertEquals(1, bigFile.getLockedDescents());
+		assertTrue(Database.getBufferPool().holdsLock(tid, rootId));
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		TransactionId t = new TransactionId();
+		assertEquals(n, lookup(t, 1000));
+		Database.getBufferPool().transactionComplete(t);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeOptimisticDescentTest.class);
+	}
+}
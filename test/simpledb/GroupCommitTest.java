@@ -0,0 +1,106 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+	private File file;
+	private LogFile log;
+
+	@Before public void createLog() throws Exception {
+		file = File.createTempFile("groupcommit", ".log");
+		file.deleteOnExit();
+		log = new LogFile(file);
+	}
+
+	@After public void deleteLog() {
+		LogSegmentTest.deleteLog(file);
+	}
+
+	private void commitConcurrently(int threads, final int commitsPerThread) throws Exception {
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> list = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(() -> {
+				try {
+					for (int j = 0; j < commitsPerThread; j++) {
+						TransactionId tid = new TransactionId();
+						log.logXactionBegin(tid);
+						log.logCommit(tid);
+					}
+				} catch (Throwable e) {
+					error.set(e);
+				}
+			});
+			list.add(t);
+			t.start();
+		}
+		for (Thread t : list)
+			t.join();
+		if (error.get() != null)
+			throw new AssertionError(error.get());
+	}
+
+	/**
+	 * Every commit record gets written when many threads commit at once
+	 */
+	@Test public void concurrentCommits() throws Exception {
+		commitConcurrently(8, 25);
+		assertEquals(8 * 25 * 2, log.getTotalRecords());
+		assertTrue(log.getForceCount() <= 8 * 25);
+	}
+
+	/**
+	 * A leader forces the log as soon as its batch is full, and the force
+	 * covers every commit of the batch
+	 */
+	@Test public void maxBatch() throws Exception {
+		log.setGroupCommit(8, 10000);
+		long start = System.currentTimeMillis();
+		commitConcurrently(8, 25);
+		// each thread has one commit pending at a time, so every batch is one commit per thread
+		assertEquals(8 * 25 * 2, log.getTotalRecords());
+		assertEquals(25, log.getForceCount());
+		assertTrue(System.currentTimeMillis() - start < 10000);
+	}
+
+	/**
+	 * A leader that waits for its batch to fill up still returns once the
+	 * wait expires
+	 */
+	@Test public void maxWait() throws Exception {
+		log.setGroupCommit(1000, 200);
+		long start = System.currentTimeMillis();
+		commitConcurrently(1, 1);
+		assertTrue(System.currentTimeMillis() - start >= 190);
+		assertEquals(1, log.getForceCount());
+
+		log.setGroupCommit(1000, 5);
+		commitConcurrently(4, 10);
+		assertEquals(4 * 10 * 2 + 2, log.getTotalRecords());
+		// commits arriving within the wait share the force
+		assertTrue(log.getForceCount() < 1 + 4 * 10);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(GroupCommitTest.class);
+	}
+}
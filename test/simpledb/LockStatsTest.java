@@ -0,0 +1,111 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.LockStats;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LockStatsTest extends SimpleDbTestBase {
+
+	private LockManager lockManager;
+	private LockStats stats;
+	private PageId p0;
+	private PageId p1;
+
+	@Before public void createLockManager() {
+		lockManager = Database.getLockManager();
+		stats = lockManager.getLockStats();
+		p0 = new HeapPageId(7, 0);
+		p1 = new HeapPageId(7, 1);
+	}
+
+	/**
+	 * Unit test for the acquisition and upgrade counters
+	 */
+	@Test public void acquisitions() throws Exception {
+		TransactionId tid1 = new TransactionId();
+		TransactionId tid2 = new TransactionId();
+		lockManager.getReadLock(p0, tid1);
+		lockManager.getReadLock(p0, tid2);
+		lockManager.getReadLock(p1, tid1);
+		lockManager.releaseReadLock(p0, tid2);
+		lockManager.getWriteLock(p0, tid1);
+
+		assertEquals(3, stats.getPageCounters(p0).getAcquisitions());
+		assertEquals(1, stats.getPageCounters(p0).getUpgrades());
+		assertEquals(1, stats.getPageCounters(p1).getAcquisitions());
+		assertEquals(4, stats.getTableCounters(7).getAcquisitions());
+		assertEquals(0, stats.getWaits());
+	}
+
+	/**
+	 * Unit test for the wait and timeout counters and the hot lock query
+	 */
+	@Test public void timeouts() throws Exception {
+		TransactionId tid1 = new TransactionId();
+		TransactionId tid2 = new TransactionId();
+		lockManager.getWriteLock(p1, tid1);
+		try {
+			lockManager.getReadLock(p1, tid2);
+			fail("expected the read lock to time out");
+		} catch (TransactionAbortedException e) {
+			// expected
+		}
+
+		assertEquals(1, stats.getPageCounters(p1).getTimeouts());
+		assertEquals(1, stats.getPageCounters(p1).getWaits());
+		assertEquals(1, stats.getTimeouts());
+
+		List<Map.Entry<PageId, LockStats.Counters>> hot = stats.topPages(1);
+		assertEquals(1, hot.size());
+		assertEquals(p1, hot.get(0).getKey());
+		assertEquals(1, stats.getHotLocks(5).length);
+	}
+
+	/**
+	 * Unit test for the bound on the number of pages with counters of their own
+	 */
+	@Test public void trackedPagesBounded() {
+		PageId hot = new HeapPageId(8, 0);
+		stats.recordAcquire(hot, 5000);
+		for (int i = 1; i <= 2 * LockStats.MAX_TRACKED_PAGES; i++)
+			stats.recordAcquire(new HeapPageId(8, i), 0);
+
+		assertTrue(stats.topPages(Integer.MAX_VALUE).size() <= LockStats.MAX_TRACKED_PAGES);
+		// the page that had to wait is kept, and the table still counts every page
+		assertEquals(1, stats.getPageCounters(hot).getWaits());
+		assertEquals(2 * LockStats.MAX_TRACKED_PAGES + 1, stats.getTableCounters(8).getAcquisitions());
+	}
+
+	/**
+	 * Unit test for the log2 wait time buckets
+	 */
+	@Test public void histogramBuckets() {
+		long[] before = stats.getWaitHistogram();
+		assertEquals(LockStats.HISTOGRAM_BUCKETS, before.length);
+		stats.recordAcquire(p0, 3000);// 3us -> bucket 2
+		long[] after = stats.getWaitHistogram();
+		assertEquals(before[2] + 1, after[2]);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(LockStatsTest.class);
+	}
+}
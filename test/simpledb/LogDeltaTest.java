@@ -0,0 +1,115 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class LogDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+    private File file;
+    private LogFile log;
+
+    @Before public void createLog() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        file = File.createTempFile("logdelta", ".log");
+        file.deleteOnExit();
+        log = new LogFile(file);
+    }
+
+    @After public void deleteLog() {
+        LogSegmentTest.deleteLog(file);
+    }
+
+    /**
+     * Only the first change of a page is logged with full page images
+     */
+    @Test public void deltaAfterFirstImage() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage before = new HeapPage(pid, page.getPageData());
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        log.logWrite(tid, before, page);
+        log.force();
+        long afterFullImage = log.getEndOffset();
+        assertTrue(afterFullImage > 2 * BufferPool.getPageSize());
+
+        before = new HeapPage(pid, page.getPageData());
+        page.insertTuple(Utility.getHeapTuple(2, 2));
+        log.logWrite(tid, before, page);
+        log.force();
+        long deltaSize = log.getEndOffset() - afterFullImage;
+        assertTrue("delta record takes " + deltaSize + " bytes", deltaSize < 100);
+
+        // the log can still be read back
+        log.print();
+    }
+
+    /**
+     * A full page image only costs a one byte page type and the page id
+     * besides the page data
+     */
+    @Test public void compactUpdateRecord() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.getEndOffset();
+
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage before = new HeapPage(pid, page.getPageData());
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        log.logWrite(tid, before, page);
+
+        int image = 1 + 3 * 4 + BufferPool.getPageSize();
+        assertEquals(4 + 8 + 2 * image + 8, log.getEndOffset() - start);
+    }
+
+    /**
+     * A checkpoint resets which pages already got a full image
+     */
+    @Test public void fullImageAfterCheckpoint() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage before = new HeapPage(pid, page.getPageData());
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        log.logWrite(tid, before, page);
+
+        log.logCheckpoint();
+        log.force();
+        long length = log.getEndOffset();
+
+        before = new HeapPage(pid, page.getPageData());
+        page.insertTuple(Utility.getHeapTuple(2, 2));
+        log.logWrite(tid, before, page);
+        log.force();
+        assertTrue(log.getEndOffset() - length > 2 * BufferPool.getPageSize());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogDeltaTest.class);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class LogSegmentTest extends SimpleDbTestBase {
+
+    private static final long SEGMENT_SIZE = 4096;
+
+    private File file;
+    private LogFile log;
+
+    /**
+     * Delete a log's control file and all of its segments
+     */
+    public static void deleteLog(File controlFile) {
+        File[] segments = controlFile.getAbsoluteFile().getParentFile()
+                .listFiles((dir, name) -> name.startsWith(controlFile.getName() + "."));
+        if (segments != null) {
+            for (File s : segments)
+                s.delete();
+        }
+        controlFile.delete();
+    }
+
+    private int numSegments() {
+        File[] segments = file.getAbsoluteFile().getParentFile()
+                .listFiles((dir, name) -> name.startsWith(file.getName() + "."));
+        return segments == null ? 0 : segments.length;
+    }
+
+    private void commitMany(int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+    }
+
+    @Before public void createLog() throws Exception {
+        file = File.createTempFile("logsegment", ".log");
+        file.deleteOnExit();
+        log = new LogFile(file, SEGMENT_SIZE);
+    }
+
+    @After public void removeLog() {
+        deleteLog(file);
+    }
+
+    /**
+     * The log spills into new segments, and segments are preallocated
+     */
+    @Test public void spansSegments() throws Exception {
+        commitMany(1000); // 20 bytes per record
+        long end = log.getEndOffset();
+        assertTrue(end > 4 * SEGMENT_SIZE);
+        assertEquals((end + SEGMENT_SIZE - 1) / SEGMENT_SIZE, numSegments());
+        assertEquals(SEGMENT_SIZE, new File(file.getPath() + ".0").length());
+    }
+
+    /**
+     * A checkpoint drops whole segments and keeps the offsets of the
+     * remaining records
+     */
+    @Test public void checkpointDropsSegments() throws Exception {
+        commitMany(1000);
+        TransactionId open = new TransactionId();
+        log.logXactionBegin(open);
+        long end = log.getEndOffset();
+
+        log.logCheckpoint();
+        assertTrue(log.getEndOffset() > end);
+        assertEquals(1, numSegments());
+        assertFalse(new File(file.getPath() + ".0").exists());
+        log.print();
+    }
+
+    /**
+     * Reopening the log finds its end again
+     */
+    @Test public void reopen() throws Exception {
+        commitMany(300);
+        log.logCheckpoint();
+        commitMany(10);
+        log.force();
+        long end = log.getEndOffset();
+
+        log = new LogFile(file, SEGMENT_SIZE);
+        log.recover();
+        assertEquals(end, log.getEndOffset());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentTest.class);
+    }
+}
@@ -0,0 +1,174 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.index.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Access path selection in LogicalPlan.physicalPlan.
+ */
+public class AccessPathTest extends SimpleDbTestBase {
+
+    private static File tempFile() throws Exception {
+        File f = File.createTempFile("access", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    /** Follow the first child of every operator down to the access method. */
+    private static OpIterator leaf(OpIterator plan) {
+        while (plan instanceof Operator)
+            plan = ((Operator) plan).getChildren()[0];
+        return plan;
+    }
+
+    private static OpIterator plan(TransactionId tid, int tableid, String name, String field, Predicate.Op op,
+            int constant) throws Exception {
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(name, new TableStats(tableid, 1000));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(tableid, name);
+        lp.addFilter(name + "." + field, op, Integer.toString(constant));
+        lp.addProjectField("*", null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    private static List<List<Integer>> filter(List<List<Integer>> tuples, int field, Predicate.Op op, int constant) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            int v = t.get(field);
+            if (op == Predicate.Op.EQUALS ? v == constant : op == Predicate.Op.GREATER_THAN ? v > constant : v < constant)
+                result.add(t);
+        }
+        return result;
+    }
+
+    /** A selective predicate on the key of a BTreeFile uses a BTreeScan, an unselective one a full scan. */
+    @Test public void btreeKey() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, tuples, "c");
+        BTreeFile bf = new BTreeBulkLoader(hf.getTupleDesc(), 0, BTreeBulkLoader.DEFAULT_FILL_FACTOR,
+                BTreeBulkLoader.DEFAULT_MEMORY_BUDGET).load(hf, tempFile());
+        Database.getCatalog().addTable(bf, "bt");
+        TransactionId tid = new TransactionId();
+
+        OpIterator p = plan(tid, bf.getId(), "bt", "c0", Predicate.Op.EQUALS, 1234);
+        assertTrue(leaf(p) instanceof BTreeScan);
+        SystemTestUtil.matchTuples(p, filter(tuples, 0, Predicate.Op.EQUALS, 1234));
+
+        p = plan(tid, bf.getId(), "bt", "c0", Predicate.Op.LESS_THAN, 100);
+        assertTrue(leaf(p) instanceof BTreeScan);
+        SystemTestUtil.matchTuples(p, filter(tuples, 0, Predicate.Op.LESS_THAN, 100));
+
+        p = plan(tid, bf.getId(), "bt", "c0", Predicate.Op.GREATER_THAN, 10);
+        assertTrue(leaf(p) instanceof SeqScan);
+        SystemTestUtil.matchTuples(p, filter(tuples, 0, Predicate.Op.GREATER_THAN, 10));
+
+        // not the key field
+        p = plan(tid, bf.getId(), "bt", "c1", Predicate.Op.EQUALS, 1234);
+        assertTrue(leaf(p) instanceof SeqScan);
+        SystemTestUtil.matchTuples(p, filter(tuples, 1, Predicate.Op.EQUALS, 1234));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static boolean hasOrderBy(OpIterator plan) {
+        for (; plan instanceof Operator; plan = ((Operator) plan).getChildren()[0]) {
+            if (plan instanceof OrderBy)
+                return true;
+        }
+        return false;
+    }
+
+    private static List<Integer> column(OpIterator plan, int field) throws Exception {
+        List<Integer> result = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext())
+            result.add(((simpledb.storage.IntField) plan.next().getField(field)).getValue());
+        plan.close();
+        return result;
+    }
+
+    /** ORDER BY the key of a BTreeFile reads the tree in order instead of sorting. */
+    @Test public void orderByKey() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, tuples, "c");
+        BTreeFile bf = new BTreeBulkLoader(hf.getTupleDesc(), 0, BTreeBulkLoader.DEFAULT_FILL_FACTOR,
+                BTreeBulkLoader.DEFAULT_MEMORY_BUDGET).load(hf, tempFile());
+        Database.getCatalog().addTable(bf, "bt");
+        TransactionId tid = new TransactionId();
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("bt", new TableStats(bf.getId(), 1000));
+
+        List<Integer> keys = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(0) < 100)
+                keys.add(t.get(0));
+        }
+        Collections.sort(keys);
+        for (boolean asc : new boolean[] { true, false }) {
+            LogicalPlan lp = new LogicalPlan();
+            lp.addScan(bf.getId(), "bt");
+            lp.addFilter("bt.c0", Predicate.Op.LESS_THAN, "100");
+            lp.addProjectField("*", null);
+            lp.addOrderBy("bt.c0", asc);
+            OpIterator p = lp.physicalPlan(tid, stats, false);
+            assertFalse(hasOrderBy(p));
+            assertTrue(leaf(p) instanceof BTreeScan);
+            assertEquals(!asc, ((BTreeScan) leaf(p)).isReverse());
+            List<Integer> expected = new ArrayList<>(keys);
+            if (!asc)
+                Collections.reverse(expected);
+            assertEquals(expected, column(p, 0));
+        }
+
+        // ORDER BY another field still sorts
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(bf.getId(), "bt");
+        lp.addProjectField("*", null);
+        lp.addOrderBy("bt.c1", false);
+        assertTrue(hasOrderBy(lp.physicalPlan(tid, stats, false)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A selective predicate on the field of a secondary index reads the heap through the index. */
+    @Test public void secondaryIndex() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, tuples, "c");
+        Database.getCatalog().addTable(hf, "ht");
+        TransactionId tid = new TransactionId();
+
+        OpIterator p = plan(tid, hf.getId(), "ht", "c1", Predicate.Op.EQUALS, 42);
+        assertTrue(leaf(p) instanceof SeqScan);
+
+        SecondaryIndex.create("byc1", hf.getId(), "c1", tempFile());
+        p = plan(tid, hf.getId(), "ht", "c1", Predicate.Op.EQUALS, 42);
+        assertTrue(leaf(p) instanceof SecondaryIndexScan);
+        SystemTestUtil.matchTuples(p, filter(tuples, 1, Predicate.Op.EQUALS, 42));
+
+        p = plan(tid, hf.getId(), "ht", "c1", Predicate.Op.GREATER_THAN, 100);
+        assertTrue(leaf(p) instanceof SeqScan);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AccessPathTest.class);
+    }
+}
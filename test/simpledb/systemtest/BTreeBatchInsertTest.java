@@ -0,0 +1,124 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Insert;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Inserting batches of tuples into B+ trees with BTreeFile.insertTuples.
+ */
+public class BTreeBatchInsertTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+
+    @Before public void setUp() {
+        Database.resetBufferPool(1000);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static BTreeFile emptyTree() throws Exception {
+        File f = File.createTempFile("batch", ".dat");
+        f.deleteOnExit();
+        return BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+    }
+
+    private static List<Integer> scan(BTreeFile bf, TransactionId tid) throws Exception {
+        List<Integer> result = new ArrayList<>();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            result.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        return result;
+    }
+
+    /** Insert the keys in batches of the given size, committing after each batch. */
+    private void insert(BTreeFile bf, List<Integer> keys, int batchSize) throws Exception {
+        for (int from = 0; from < keys.size(); from += batchSize) {
+            List<Tuple> batch = new ArrayList<>();
+            for (int k : keys.subList(from, Math.min(from + batchSize, keys.size())))
+                batch.add(BTreeUtility.getBTreeTuple(new int[] { k, k }));
+            Database.getBufferPool().insertTuples(tid, bf.getId(), batch);
+            Database.getBufferPool().transactionComplete(tid);
+            tid = new TransactionId();
+        }
+    }
+
+    /** Appending sorted tuples splits leaves right-heavy, so far fewer pages are needed. */
+    @Test public void sortedAppend() throws Exception {
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 20000; i++)
+            keys.add(i);
+
+        BTreeFile batched = emptyTree();
+        insert(batched, keys, 1000);
+        BTreeChecker.checkRep(batched, tid, new HashMap<>(), true);
+        assertEquals(keys, scan(batched, tid));
+
+        BTreeFile single = emptyTree();
+        insert(single, keys, 1);
+        assertEquals(keys, scan(single, tid));
+        assertTrue(batched.numPages() < single.numPages() * 0.7);
+    }
+
+    /** Batches in random order and with duplicates go to many leaves of an existing tree. */
+    @Test public void randomBatches() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, 5000, null, tuples, 0);
+        Database.resetBufferPool(1000);
+        List<Integer> expected = new ArrayList<>();
+        for (List<Integer> t : tuples)
+            expected.add(t.get(0));
+
+        Random r = new Random(9);
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 10000; i++)
+            keys.add(r.nextInt(6000));
+        insert(bf, keys, 500);
+        expected.addAll(keys);
+        Collections.sort(expected);
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+        assertEquals(expected, scan(bf, tid));
+    }
+
+    @Test public void insertOperator() throws Exception {
+        BTreeFile bf = emptyTree();
+        TupleDesc td = Utility.getTupleDesc(2);
+        List<Tuple> tuples = new ArrayList<>();
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < Insert.BATCH_SIZE * 3 + 7; i++) {
+            tuples.add(BTreeUtility.getBTreeTuple(new int[] { i * 7 % 1000, i }));
+            keys.add(i * 7 % 1000);
+        }
+        Insert insert = new Insert(tid, new TupleIterator(td, tuples), bf.getId());
+        insert.open();
+        assertEquals(tuples.size(), ((IntField) insert.next().getField(0)).getValue());
+        assertFalse(insert.hasNext());
+        insert.close();
+        Collections.sort(keys);
+        assertEquals(keys, scan(bf, tid));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeBatchInsertTest.class);
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	@Before
+	public void createTid() {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private static File tempFile(String prefix) throws IOException {
+		File f = File.createTempFile(prefix, ".dat");
+		f.deleteOnExit();
+		return f;
+	}
+
+	/** all tuples come back in key order and the tree is well formed */
+	private void checkTree(BTreeFile bf, List<List<Integer>> tuples, int keyField) throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		List<List<Integer>> expected = new ArrayList<>(tuples);
+		List<List<Integer>> actual = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			actual.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		assertEquals(expected.size(), actual.size());
+		for (int i = 1; i < actual.size(); i++) {
+			assertTrue(actual.get(i - 1).get(keyField) <= actual.get(i).get(keyField));
+		}
+		Comparator<List<Integer>> byAll = (a, b) -> {
+			for (int i = 0; i < a.size(); i++) {
+				int cmp = Integer.compare(a.get(i), b.get(i));
+				if (cmp != 0)
+					return cmp;
+			}
+			return 0;
+		};
+		expected.sort(byAll);
+		actual.sort(byAll);
+		assertEquals(expected, actual);
+	}
+
+	/**
+	 * A budget of a few pages forces many runs and several merge passes
+	 */
+	@Test
+	public void loadHeapFileWithSmallBudget() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 30000, null, tuples);
+		BTreeBulkLoader loader = new BTreeBulkLoader(hf.getTupleDesc(), 0,
+				BTreeBulkLoader.DEFAULT_FILL_FACTOR, 3 * SpillFile.BUFFER_SIZE);
+		BTreeFile bf = loader.load(hf, tempFile("bulk"));
+		checkTree(bf, tuples, 0);
+		// three levels: 30000 tuples need more leaves than a root can hold
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+	}
+
+	@Test
+	public void loadTextFile() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		Random r = new Random(7);
+		File text = tempFile("bulktext");
+		try (PrintWriter pw = new PrintWriter(new FileWriter(text))) {
+			for (int i = 0; i < 2000; i++) {
+				List<Integer> row = Arrays.asList(r.nextInt(500), i, -i);
+				tuples.add(row);
+				pw.println(row.get(0) + "," + row.get(1) + "," + row.get(2));
+			}
+		}
+		BTreeBulkLoader loader = new BTreeBulkLoader(Utility.getTupleDesc(3), 0,
+				BTreeBulkLoader.DEFAULT_FILL_FACTOR, 4096);
+		BTreeFile bf = loader.load(text, ',', tempFile("bulk"));
+		checkTree(bf, tuples, 0);
+	}
+
+	@Test
+	public void loadEmpty() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		BTreeFile bf = new BTreeBulkLoader(hf.getTupleDesc(), 1,
+				BTreeBulkLoader.DEFAULT_FILL_FACTOR, BTreeBulkLoader.DEFAULT_MEMORY_BUDGET)
+				.load(hf, tempFile("bulk"));
+		checkTree(bf, new ArrayList<>(), 1);
+	}
+
+	/**
+	 * Half full pages take about twice the space
+	 */
+	@Test
+	public void fillFactor() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10000, null, tuples);
+		BTreeFile full = new BTreeBulkLoader(hf.getTupleDesc(), 1, 1.0,
+				BTreeBulkLoader.DEFAULT_MEMORY_BUDGET).load(hf, tempFile("bulk"));
+		BTreeFile half = new BTreeBulkLoader(hf.getTupleDesc(), 1, 0.5,
+				BTreeBulkLoader.DEFAULT_MEMORY_BUDGET).load(hf, tempFile("bulk"));
+		BTreeChecker.checkRep(half, tid, new HashMap<>(), false);
+		checkTree(full, tuples, 1);
+
+		int fullPages = full.numPages();
+		int halfPages = half.numPages();
+		assertTrue(fullPages + " vs " + halfPages,
+				halfPages >= 2 * fullPages - 4 && halfPages <= 2 * fullPages + 4);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void badFillFactor() {
+		new BTreeBulkLoader(Utility.getTupleDesc(2), 0, 1.5, BTreeBulkLoader.DEFAULT_MEMORY_BUDGET);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
@@ -0,0 +1,181 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Online defragmentation of B+ trees with BTreeCompactor.
+ */
+public class BTreeCompactorTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 60000;
+
+    private BTreeFile bf;
+    private List<Integer> keys;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, tuples, 0);
+        Database.resetBufferPool(1000);
+        keys = new ArrayList<>();
+        for (List<Integer> t : tuples)
+            keys.add(t.get(0));
+        Collections.sort(keys);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private List<Integer> scan() throws Exception {
+        List<Integer> result = new ArrayList<>();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            result.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        return result;
+    }
+
+    private void commit() {
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+    }
+
+    /** Delete one tuple with the given key, looking it up again since merges move tuples. */
+    private void delete(int key) throws Exception {
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        Database.getBufferPool().deleteTuple(tid, t);
+    }
+
+    /**
+     * Delete almost half of the tuples, which leaves most leaves just above minimum
+     * occupancy, then insert some more so that splits add leaves out of order.
+     */
+    private void fragment() throws Exception {
+        Random r = new Random(8);
+        List<Integer> remaining = new ArrayList<>();
+        int n = 0;
+        for (int k : keys) {
+            if (r.nextInt(100) < 45) {
+                delete(k);
+                if (++n % 500 == 0)
+                    commit();
+            } else {
+                remaining.add(k);
+            }
+        }
+        for (int i = 0; i < 2000; i++) {
+            // 集中在几个叶子里，分裂出来的新叶子在文件末尾
+            int k = i % 2 == 0 ? r.nextInt(BTreeUtility.MAX_RAND_VALUE) : r.nextInt(1000);
+            Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { k, i }));
+            remaining.add(k);
+        }
+        commit();
+        Collections.sort(remaining);
+        keys = remaining;
+    }
+
+    @Test public void afterDeletes() throws Exception {
+        fragment();
+        BTreeCompactor.Report before = BTreeCompactor.report(bf);
+        assertEquals(keys.size(), before.getTuples());
+        assertTrue(before.toString(), before.getLeafFill() < 0.7);
+        assertTrue(before.toString(), before.getScatteredLeaves() > 0);
+
+        BTreeCompactor compactor = new BTreeCompactor(bf);
+        compactor.compact();
+        assertEquals(BTreeCompactor.Phase.DONE, compactor.getPhase());
+
+        BTreeCompactor.Report after = BTreeCompactor.report(bf);
+        assertEquals(keys.size(), after.getTuples());
+        assertTrue(after.toString(), after.getLeafFill() > 0.8);
+        assertEquals(after.toString(), 0, after.getScatteredLeaves());
+        assertEquals(after.toString(), 0, after.getEmptyPages());
+        assertEquals(after.getLeafPages() + after.getInternalPages() + after.getHeaderPages(), bf.numPages());
+        assertTrue(bf.numPages() < before.getFilePages() * 0.8);
+        assertTrue(compactor.getPagesTruncated() > 0);
+
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+        assertEquals(keys, scan());
+
+        // the compacted tree keeps working, including reusing pages
+        Database.resetBufferPool(1000);
+        for (int i = 0; i < 2000; i++) {
+            int k = keys.get(i * 3);
+            delete(k);
+            keys.remove(i * 3);
+        }
+        commit();
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+        assertEquals(keys, scan());
+    }
+
+    /** The compaction runs in the background while other transactions insert tuples. */
+    @Test public void concurrentInserts() throws Exception {
+        fragment();
+        BTreeCompactor compactor = new BTreeCompactor(bf);
+        Thread thread = compactor.start();
+        Random r = new Random(9);
+        while (thread.isAlive()) {
+            // 用Transaction插入，冲突abort时能回滚
+            Transaction t = new Transaction();
+            t.start();
+            List<Integer> batch = new ArrayList<>();
+            try {
+                for (int i = 0; i < 10; i++) {
+                    int k = r.nextInt(BTreeUtility.MAX_RAND_VALUE);
+                    Database.getBufferPool().insertTuple(t.getId(), bf.getId(),
+                            BTreeUtility.getBTreeTuple(new int[] { k, i }));
+                    batch.add(k);
+                }
+                t.commit();
+                keys.addAll(batch);
+            } catch (TransactionAbortedException e) {
+                t.abort();
+            }
+        }
+        thread.join();
+        assertNull(compactor.getError());
+        Collections.sort(keys);
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+        assertEquals(keys, scan());
+    }
+
+    @Test public void cancelled() throws Exception {
+        fragment();
+        int pages = bf.numPages();
+        BTreeCompactor compactor = new BTreeCompactor(bf);
+        compactor.cancel();
+        compactor.compact();
+        assertEquals(0, compactor.getPagesMoved() + compactor.getPagesFreed());
+        assertEquals(pages, bf.numPages());
+        assertEquals(keys, scan());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeCompactorTest.class);
+    }
+}
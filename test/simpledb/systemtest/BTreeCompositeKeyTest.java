@@ -0,0 +1,163 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * B+ trees keyed on two fields, (tenant, created), of three-field tuples.
+ */
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+
+    private static final int TENANTS = 20;
+    private static final int PER_TENANT = 200;
+
+    private BTreeFile bf;
+    private List<List<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        // 同一tenant的created有重复，第三列只用来区分tuple
+        tuples = new ArrayList<>();
+        Random r = new Random(5);
+        for (int t = 0; t < TENANTS; t++) {
+            for (int i = 0; i < PER_TENANT; i++)
+                tuples.add(Arrays.asList(t, r.nextInt(1000), tuples.size()));
+        }
+        Collections.shuffle(tuples, r);
+        File hFile = File.createTempFile("composite", ".dat");
+        hFile.deleteOnExit();
+        File bFile = File.createTempFile("composite", ".dat");
+        bFile.deleteOnExit();
+        Type[] typeAr = new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
+        bf = BTreeFileEncoder.convert(tuples, hFile, bFile, BufferPool.getPageSize(), 3, typeAr, ',',
+                new int[] { 0, 1 });
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static CompositeField key(int... values) {
+        Field[] fields = new Field[values.length];
+        for (int i = 0; i < values.length; i++)
+            fields[i] = new IntField(values[i]);
+        return new CompositeField(fields);
+    }
+
+    private List<List<Integer>> scan(IndexPredicate ipred) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        DbFileIterator it = ipred == null ? bf.iterator(tid) : bf.indexIterator(tid, ipred);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            result.add(Arrays.asList(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue(),
+                    ((IntField) t.getField(2)).getValue()));
+        }
+        it.close();
+        return result;
+    }
+
+    /** The tuples whose (tenant, created) satisfy the predicate, in no particular order. */
+    private Set<List<Integer>> expected(IndexPredicate ipred) {
+        Set<List<Integer>> result = new HashSet<>();
+        for (List<Integer> t : tuples) {
+            if (key(t.get(0), t.get(1)).compare(ipred.getOp(), ipred.getField()))
+                result.add(t);
+        }
+        return result;
+    }
+
+    private void assertScan(IndexPredicate ipred) throws Exception {
+        List<List<Integer>> result = scan(ipred);
+        assertEquals(expected(ipred).size(), result.size());
+        assertEquals(expected(ipred), new HashSet<>(result));
+    }
+
+    @Test public void lexicographicOrder() throws Exception {
+        List<List<Integer>> result = scan(null);
+        assertEquals(tuples.size(), result.size());
+        for (int i = 1; i < result.size(); i++) {
+            List<Integer> a = result.get(i - 1);
+            List<Integer> b = result.get(i);
+            assertTrue(a.get(0) < b.get(0) || (a.get(0).equals(b.get(0)) && a.get(1) <= b.get(1)));
+        }
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+    }
+
+    @Test public void fullKeyPredicates() throws Exception {
+        List<Integer> t = tuples.get(123);
+        for (Op op : new Op[] { Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN,
+                Op.GREATER_THAN_OR_EQ }) {
+            assertScan(new IndexPredicate(op, key(t.get(0), t.get(1))));
+        }
+    }
+
+    /** A predicate on the first key field only finds every tuple whose key starts with it. */
+    @Test public void prefixPredicates() throws Exception {
+        IndexPredicate tenant = new IndexPredicate(Op.EQUALS, key(7));
+        assertEquals(PER_TENANT, scan(tenant).size());
+        assertScan(tenant);
+        assertScan(new IndexPredicate(Op.LESS_THAN, key(3)));
+        assertScan(new IndexPredicate(Op.GREATER_THAN, key(15)));
+        assertScan(new IndexPredicate(Op.GREATER_THAN_OR_EQ, key(15)));
+        assertScan(new IndexPredicate(Op.LESS_THAN_OR_EQ, key(0)));
+        // a plain field is a prefix of one field
+        assertEquals(scan(tenant), scan(new IndexPredicate(Op.EQUALS, new IntField(7))));
+    }
+
+    @Test public void insertAndDelete() throws Exception {
+        Database.resetBufferPool(500);
+        int n = 0;
+        for (int i = 0; i < 1000; i++) {
+            Tuple t = new Tuple(bf.getTupleDesc());
+            t.setField(0, new IntField(TENANTS));
+            t.setField(1, new IntField(i % 10));
+            t.setField(2, new IntField(-i));
+            Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+            if (++n % 100 == 0) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+        assertEquals(100, scan(new IndexPredicate(Op.EQUALS, key(TENANTS, 4))).size());
+        assertEquals(1000, scan(new IndexPredicate(Op.GREATER_THAN_OR_EQ, key(TENANTS))).size());
+
+        // delete one tenant
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key(7)));
+        it.open();
+        List<Tuple> victims = new ArrayList<>();
+        while (it.hasNext())
+            victims.add(it.next());
+        it.close();
+        for (Tuple t : victims)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+        assertTrue(scan(new IndexPredicate(Op.EQUALS, key(7))).isEmpty());
+        assertEquals(PER_TENANT, scan(new IndexPredicate(Op.EQUALS, key(8))).size());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+    }
+}
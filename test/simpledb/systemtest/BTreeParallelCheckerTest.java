@@ -0,0 +1,97 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.index.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Checking B+ trees offline with BTreeParallelChecker.
+ */
+public class BTreeParallelCheckerTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 60000;
+
+    private BTreeFile bf;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+        Database.resetBufferPool(1000);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** The left-most leaf and its parent, read straight from the file. */
+    private BTreeLeafPage firstLeaf() {
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+        BTreeInternalPage root = (BTreeInternalPage) bf.readPage(rootPtr.getRootId());
+        return (BTreeLeafPage) bf.readPage(root.iterator().next().getLeftChild());
+    }
+
+    @Test public void wholeTree() throws Exception {
+        BTreeParallelChecker.Result result = new BTreeParallelChecker(bf, 4, 1.0, new Random(1)).check(true);
+        assertTrue(result.getErrors().toString(), result.isValid());
+        assertEquals(ROWS, result.getTuples());
+        assertEquals(result.getSubtrees(), result.getSubtreesChecked());
+        assertEquals(bf.numPages(), result.getLeafPages() + result.getInternalPages());
+    }
+
+    @Test public void afterInserts() throws Exception {
+        Random r = new Random(2);
+        for (int i = 0; i < 3000; i++) {
+            Database.getBufferPool().insertTuple(tid, bf.getId(),
+                    BTreeUtility.getBTreeTuple(new int[] { r.nextInt(BTreeUtility.MAX_RAND_VALUE), i }));
+        }
+        // the checker reads the file, so the new pages have to be written first
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        BTreeParallelChecker.Result result = new BTreeParallelChecker(bf).check(true);
+        assertTrue(result.getErrors().toString(), result.isValid());
+        assertEquals(ROWS + 3000, result.getTuples());
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+    }
+
+    @Test public void sample() throws Exception {
+        BTreeParallelChecker.Result result = new BTreeParallelChecker(bf, 2, 0.25, new Random(3)).check(true);
+        assertTrue(result.getErrors().toString(), result.isValid());
+        assertTrue(result.toString(), result.getSubtreesChecked() > 0);
+        assertTrue(result.toString(), result.getSubtreesChecked() < result.getSubtrees());
+        assertTrue(result.toString(), result.getTuples() < ROWS);
+    }
+
+    @Test public void corruptPointers() throws Exception {
+        BTreeLeafPage leaf = firstLeaf();
+        BTreePageId right = leaf.getRightSiblingId();
+        leaf.setRightSiblingId(leaf.getId());
+        bf.writePage(leaf);
+        BTreeLeafPage next = (BTreeLeafPage) bf.readPage(right);
+        next.setParentId(new BTreePageId(bf.getId(), bf.numPages() + 1, BTreePageId.INTERNAL));
+        bf.writePage(next);
+
+        BTreeParallelChecker.Result result = new BTreeParallelChecker(bf, 4, 1.0, new Random(4)).check(false);
+        assertFalse(result.isValid());
+        assertEquals(result.getErrors().toString(), 2, result.getErrors().size());
+        String errors = result.getErrors().toString();
+        assertTrue(errors, errors.contains("leaf " + leaf.getId() + " has right sibling"));
+        assertTrue(errors, errors.contains("page " + right + " has parent"));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeParallelCheckerTest.class);
+    }
+}
@@ -0,0 +1,127 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Scans of B+ trees reading leaves ahead through BufferPool.prefetchPages.
+ */
+public class BTreeReadAheadTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 30000;
+
+    private BTreeFile bf;
+    private List<List<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        Database.resetBufferPool(1000);
+        tuples = new ArrayList<>();
+        bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, tuples, 0);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private List<Integer> scan(IndexPredicate ipred) throws Exception {
+        List<Integer> result = new ArrayList<>();
+        DbFileIterator it = ipred == null ? bf.iterator(tid) : bf.indexIterator(tid, ipred);
+        it.open();
+        while (it.hasNext())
+            result.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        return result;
+    }
+
+    private List<Integer> sortedKeys() {
+        List<Integer> keys = new ArrayList<>();
+        for (List<Integer> t : tuples)
+            keys.add(t.get(0));
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private BTreePageId leaf(int pgNo) {
+        return new BTreePageId(bf.getId(), pgNo, BTreePageId.LEAF);
+    }
+
+    @Test public void readPagesMatchesReadPage() throws Exception {
+        // 一段连续的页和几个不连续的页
+        List<PageId> pids = new ArrayList<>();
+        for (int i = 2; i < 12; i++)
+            pids.add(leaf(i));
+        pids.add(leaf(20));
+        pids.add(leaf(15));
+        pids.add(leaf(16));
+        List<Page> pages = bf.readPages(pids);
+        assertEquals(pids.size(), pages.size());
+        for (int i = 0; i < pids.size(); i++) {
+            assertEquals(pids.get(i), pages.get(i).getId());
+            assertArrayEquals(bf.readPage(pids.get(i)).getPageData(), pages.get(i).getPageData());
+        }
+    }
+
+    @Test public void prefetchedPagesAreUsed() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        List<BTreePageId> pids = Arrays.asList(leaf(3), leaf(4), leaf(5));
+        bp.prefetchPages(bf, pids).get();
+        long hits = bp.getPrefetchHits();
+        for (BTreePageId pid : pids) {
+            Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+            assertArrayEquals(bf.readPage(pid).getPageData(), p.getPageData());
+        }
+        assertEquals(hits + 3, bp.getPrefetchHits());
+
+        // a page that was discarded meanwhile is read again
+        bp.prefetchPages(bf, Collections.singletonList(leaf(6))).get();
+        bp.discardPage(leaf(6));
+        hits = bp.getPrefetchHits();
+        bp.getPage(tid, leaf(6), Permissions.READ_ONLY);
+        assertEquals(hits, bp.getPrefetchHits());
+    }
+
+    @Test public void scans() throws Exception {
+        List<Integer> keys = sortedKeys();
+        long hits = Database.getBufferPool().getPrefetchHits();
+        assertEquals(keys, scan(null));
+        assertTrue(Database.getBufferPool().getPrefetchHits() > hits);
+
+        int lo = keys.get(ROWS / 3);
+        List<Integer> expected = new ArrayList<>();
+        for (int k : keys) {
+            if (k >= lo)
+                expected.add(k);
+        }
+        Database.resetBufferPool(1000);
+        assertEquals(expected, scan(new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(lo))));
+
+        // the same without read-ahead
+        bf.setReadAhead(0);
+        Database.resetBufferPool(1000);
+        hits = Database.getBufferPool().getPrefetchHits();
+        assertEquals(keys, scan(null));
+        assertEquals(hits, Database.getBufferPool().getPrefetchHits());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeReadAheadTest.class);
+    }
+}
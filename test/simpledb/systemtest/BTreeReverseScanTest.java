@@ -0,0 +1,136 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Descending and bounded range scans of B+ trees.
+ */
+public class BTreeReverseScanTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 20000;
+    private static final int MAX_KEY = 3000;
+
+    private BTreeFile bf;
+    private List<Integer> keys;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        // 每个key平均出现好几次，相同的key会跨越叶子
+        List<List<Integer>> tuples = new ArrayList<>();
+        bf = BTreeUtility.createRandomBTreeFile(2, ROWS, MAX_KEY, null, tuples, 0);
+        Database.resetBufferPool(1000);
+        keys = new ArrayList<>();
+        for (List<Integer> t : tuples)
+            keys.add(t.get(0));
+        Collections.sort(keys);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static List<Integer> keys(DbFileIterator it) throws Exception {
+        List<Integer> result = new ArrayList<>();
+        it.open();
+        while (it.hasNext())
+            result.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        return result;
+    }
+
+    private List<Integer> expected(Op op, int value, boolean reverse) {
+        List<Integer> result = new ArrayList<>();
+        for (int k : keys) {
+            if (new IntField(k).compare(op, new IntField(value)))
+                result.add(k);
+        }
+        if (reverse)
+            Collections.reverse(result);
+        return result;
+    }
+
+    private List<Integer> expectedRange(int lo, int hi, boolean reverse) {
+        List<Integer> result = new ArrayList<>();
+        for (int k : keys) {
+            if (k >= lo && k < hi)
+                result.add(k);
+        }
+        if (reverse)
+            Collections.reverse(result);
+        return result;
+    }
+
+    @Test public void reverseIterator() throws Exception {
+        List<Integer> expected = new ArrayList<>(keys);
+        Collections.reverse(expected);
+        assertEquals(expected, keys(bf.reverseIterator(tid)));
+    }
+
+    @Test public void reverseIndexIterator() throws Exception {
+        int[] values = { keys.get(0), keys.get(ROWS / 2), keys.get(ROWS - 1), -1, MAX_KEY + 1 };
+        for (Op op : new Op[] { Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN,
+                Op.GREATER_THAN_OR_EQ }) {
+            for (int v : values) {
+                IndexPredicate ipred = new IndexPredicate(op, new IntField(v));
+                assertEquals(op + " " + v, expected(op, v, true), keys(bf.indexIterator(tid, ipred, true)));
+                assertEquals(op + " " + v, expected(op, v, false), keys(bf.indexIterator(tid, ipred, false)));
+            }
+        }
+    }
+
+    @Test public void rangeIterator() throws Exception {
+        Random r = new Random(3);
+        for (int i = 0; i < 20; i++) {
+            int lo = r.nextInt(MAX_KEY);
+            int hi = lo + r.nextInt(MAX_KEY / 4);
+            assertEquals(expectedRange(lo, hi, false), keys(bf.rangeIterator(tid, new IntField(lo), new IntField(hi), false)));
+            assertEquals(expectedRange(lo, hi, true), keys(bf.rangeIterator(tid, new IntField(lo), new IntField(hi), true)));
+        }
+        int mid = keys.get(ROWS / 2);
+        assertEquals(expectedRange(Integer.MIN_VALUE, mid, true), keys(bf.rangeIterator(tid, null, new IntField(mid), true)));
+        assertEquals(expectedRange(mid, Integer.MAX_VALUE, true), keys(bf.rangeIterator(tid, new IntField(mid), null, true)));
+        assertEquals(expectedRange(mid, Integer.MAX_VALUE, false), keys(bf.rangeIterator(tid, new IntField(mid), null, false)));
+        // an empty range
+        assertTrue(keys(bf.rangeIterator(tid, new IntField(mid), new IntField(mid), true)).isEmpty());
+    }
+
+    /** The left sibling pointers are kept up to date by splits as well. */
+    @Test public void afterInserts() throws Exception {
+        Random r = new Random(4);
+        for (int i = 0; i < 2000; i++) {
+            int k = r.nextInt(MAX_KEY);
+            Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { k, i }));
+            keys.add(k);
+            if (i % 100 == 99) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Collections.sort(keys);
+        List<Integer> expected = new ArrayList<>(keys);
+        Collections.reverse(expected);
+        assertEquals(expected, keys(bf.reverseIterator(tid)));
+        assertEquals(expectedRange(100, 2000, true), keys(bf.rangeIterator(tid, new IntField(100), new IntField(2000), true)));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeReverseScanTest.class);
+    }
+}
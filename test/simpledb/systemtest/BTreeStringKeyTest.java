@@ -0,0 +1,224 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * B+ trees keyed on a STRING_TYPE field: compact internal pages and suffix
+ * truncated separator keys.
+ */
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+
+    private static final String PREFIX = "customer/region-europe/country-";
+
+    private BTreeFile bf;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        Database.resetBufferPool(500);
+        File f = File.createTempFile("strings", ".dat");
+        f.deleteOnExit();
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE }, new String[] { "k", "v" });
+        bf = new BTreeFile(f, 0, td);
+        Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static String key(int i) {
+        return PREFIX + String.format("%06d", i);
+    }
+
+    private Tuple tuple(int i) {
+        Tuple t = new Tuple(bf.getTupleDesc());
+        t.setField(0, new StringField(key(i), Type.STRING_LEN));
+        t.setField(1, new IntField(i));
+        return t;
+    }
+
+    /** Insert the given keys, committing every 100 tuples so that the buffer pool does not fill up. */
+    private void insert(List<Integer> keys) throws Exception {
+        int n = 0;
+        for (int i : keys) {
+            Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(i));
+            if (++n % 100 == 0) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+    }
+
+    private List<Integer> scan(IndexPredicate ipred) throws Exception {
+        List<Integer> result = new ArrayList<>();
+        DbFileIterator it = ipred == null ? bf.iterator(tid) : bf.indexIterator(tid, ipred);
+        it.open();
+        while (it.hasNext())
+            result.add(((IntField) it.next().getField(1)).getValue());
+        it.close();
+        return result;
+    }
+
+    /** All internal pages of the tree, top down. */
+    private List<BTreeInternalPage> internalPages() throws Exception {
+        List<BTreeInternalPage> pages = new ArrayList<>();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        Deque<BTreePageId> todo = new ArrayDeque<>();
+        todo.add(rootPtr.getRootId());
+        while (!todo.isEmpty()) {
+            BTreePageId pid = todo.poll();
+            if (pid.pgcateg() != BTreePageId.INTERNAL)
+                continue;
+            BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid,
+                    Permissions.READ_ONLY);
+            pages.add(page);
+            Iterator<BTreeEntry> it = page.iterator();
+            BTreeEntry e = it.next();
+            todo.add(e.getLeftChild());
+            todo.add(e.getRightChild());
+            while (it.hasNext())
+                todo.add(it.next().getRightChild());
+        }
+        return pages;
+    }
+
+    @Test public void compactInternalPages() throws Exception {
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 4000; i++)
+            keys.add(i);
+        Collections.shuffle(keys, new Random(7));
+        insert(keys);
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+
+        // separators keep only the characters that tell two leaves apart, so
+        // internal pages hold many more keys than fixed-width slots would allow
+        int maxEntries = 0;
+        for (BTreeInternalPage page : internalPages()) {
+            maxEntries = Math.max(maxEntries, page.getNumEntries());
+            Iterator<BTreeEntry> it = page.iterator();
+            while (it.hasNext())
+                assertTrue(((StringField) it.next().getKey()).getValue().length() <= key(0).length());
+        }
+        int fixedWidth = (BufferPool.getPageSize() * 8 - 9 * 8 - 1) / ((Type.STRING_TYPE.getLen() + 4) * 8 + 1);
+        assertTrue(maxEntries > fixedWidth);
+
+        Collections.sort(keys);
+        assertEquals(keys, scan(null));
+        assertEquals(Collections.singletonList(1234),
+                scan(new IndexPredicate(Op.EQUALS, new StringField(key(1234), Type.STRING_LEN))));
+        assertEquals(keys.subList(3990, 4000),
+                scan(new IndexPredicate(Op.GREATER_THAN_OR_EQ, new StringField(key(3990), Type.STRING_LEN))));
+        // a key between two separators
+        assertEquals(keys.subList(0, 101),
+                scan(new IndexPredicate(Op.LESS_THAN, new StringField(key(100) + "x", Type.STRING_LEN))));
+    }
+
+    @Test public void bulkLoadedInternalPages() throws Exception {
+        File text = File.createTempFile("strings", ".txt");
+        text.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(new FileWriter(text))) {
+            for (int i = 0; i < 20000; i++)
+                out.println(key(i) + "," + i);
+        }
+        File f = File.createTempFile("strings", ".dat");
+        f.deleteOnExit();
+        bf = new BTreeBulkLoader(bf.getTupleDesc(), 0, 1.0, BTreeBulkLoader.DEFAULT_MEMORY_BUDGET)
+                .load(text, ',', f);
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+        // internal pages are filled by the size of the truncated separators,
+        // not by the number of maximum-length keys a page could hold
+        int maxEntries = 0;
+        for (BTreeInternalPage page : internalPages())
+            maxEntries = Math.max(maxEntries, page.getNumEntries());
+        int fixedWidth = (BufferPool.getPageSize() * 8 - 9 * 8 - 1) / ((Type.STRING_TYPE.getLen() + 4) * 8 + 1);
+        assertTrue(maxEntries + " entries", maxEntries > 2 * fixedWidth);
+
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 20000; i++)
+            keys.add(i);
+        assertEquals(keys, scan(null));
+    }
+
+    @Test public void pageRoundTrip() throws Exception {
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+            keys.add(i);
+        insert(keys);
+        for (BTreeInternalPage page : internalPages()) {
+            BTreeInternalPage copy = new BTreeInternalPage(page.getId(), page.getPageData(), 0);
+            assertEquals(page.getNumEntries(), copy.getNumEntries());
+            assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+            Iterator<BTreeEntry> it1 = page.iterator();
+            Iterator<BTreeEntry> it2 = copy.iterator();
+            while (it1.hasNext()) {
+                BTreeEntry e1 = it1.next();
+                BTreeEntry e2 = it2.next();
+                assertEquals(e1.getKey(), e2.getKey());
+                assertEquals(e1.getLeftChild(), e2.getLeftChild());
+                assertEquals(e1.getRightChild(), e2.getRightChild());
+            }
+            assertFalse(it2.hasNext());
+        }
+    }
+
+    @Test public void deletes() throws Exception {
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 3000; i++)
+            keys.add(i);
+        Collections.shuffle(keys, new Random(11));
+        insert(keys);
+
+        // delete most of the tuples in random order, so that pages steal and merge
+        Collections.shuffle(keys, new Random(12));
+        int n = 0;
+        for (int i : keys.subList(0, 2700)) {
+            DbFileIterator it = bf.indexIterator(tid,
+                    new IndexPredicate(Op.EQUALS, new StringField(key(i), Type.STRING_LEN)));
+            it.open();
+            Tuple t = it.next();
+            it.close();
+            Database.getBufferPool().deleteTuple(tid, t);
+            if (++n % 100 == 0) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+                BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+            }
+        }
+
+        List<Integer> remaining = new ArrayList<>(keys.subList(2700, 3000));
+        Collections.sort(remaining);
+        assertEquals(remaining, scan(null));
+        for (int i : remaining.subList(0, 20)) {
+            assertEquals(Collections.singletonList(i),
+                    scan(new IndexPredicate(Op.EQUALS, new StringField(key(i), Type.STRING_LEN))));
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeStringKeyTest.class);
+    }
+}
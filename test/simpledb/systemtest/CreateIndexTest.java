@@ -0,0 +1,172 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.index.BTreeChecker;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Secondary indexes built online over heap tables.
+ */
+public class CreateIndexTest extends SimpleDbTestBase {
+
+    private static File tempFile() throws IOException {
+        File f = File.createTempFile("index", ".idx");
+        f.deleteOnExit();
+        return f;
+    }
+
+    /** The index holds exactly one entry per tuple of the table, with the right key. */
+    private static void checkIndex(SecondaryIndex index, HeapFile hf) throws Exception {
+        TransactionId tid = new TransactionId();
+        Map<RecordId, Field> expected = new HashMap<>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            expected.put(t.getRecordId(), t.getField(index.getKeyField()));
+        }
+        it.close();
+
+        Map<RecordId, Field> actual = new HashMap<>();
+        it = index.getFile().iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple entry = it.next();
+            assertNull("duplicate entry " + entry, actual.put(index.recordIdOf(entry), entry.getField(0)));
+        }
+        it.close();
+        assertEquals(expected, actual);
+
+        BTreeChecker.checkRep(index.getFile(), tid, new HashMap<>(), true);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static Tuple tuple(HeapFile hf, int a, int b) {
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        return t;
+    }
+
+    @Test public void indexExistingTable() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 5000, null, null, "c");
+        assertTrue(Database.getCatalog().getIndexes(hf.getId()).isEmpty());
+
+        SecondaryIndex index = SecondaryIndex.create("byc1", hf.getId(), "c1", tempFile());
+        assertTrue(index.isReady());
+        assertEquals(1, index.getKeyField());
+        assertEquals(Collections.singletonList(index), Database.getCatalog().getIndexes(hf.getId()));
+        checkIndex(index, hf);
+    }
+
+    /** Once built, the index follows committed inserts and deletes and ignores aborted ones. */
+    @Test public void maintainedAfterBuild() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null, "c");
+        SecondaryIndex index = SecondaryIndex.create("byc0", hf.getId(), "c0", tempFile());
+
+        Transaction t = new Transaction();
+        t.start();
+        List<Tuple> inserted = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Tuple tup = tuple(hf, i % 37, i);
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tup);
+            inserted.add(tup);
+        }
+        for (int i = 0; i < inserted.size(); i += 3) {
+            Database.getBufferPool().deleteTuple(t.getId(), inserted.get(i));
+        }
+        t.commit();
+        checkIndex(index, hf);
+
+        t = new Transaction();
+        t.start();
+        for (int i = 0; i < 300; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tuple(hf, -i, i));
+        }
+        t.abort();
+        checkIndex(index, hf);
+    }
+
+    /** Inserts and deletes committed while the index is being built all make it into the index. */
+    @Test public void concurrentChanges() throws Exception {
+        final HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, null, null, "c");
+        final AtomicInteger committed = new AtomicInteger();
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            Random r = new Random(1);
+            List<Tuple> mine = new ArrayList<>();
+            try {
+                // keep going for a while after the build, when changes go to the index directly
+                int afterBuild = 0;
+                while (afterBuild < 50) {
+                    if (stop.get())
+                        afterBuild++;
+                    Transaction t = new Transaction();
+                    t.start();
+                    Tuple added = tuple(hf, r.nextInt(1000), r.nextInt());
+                    Tuple removed = null;
+                    try {
+                        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), added);
+                        if (!mine.isEmpty() && r.nextBoolean()) {
+                            removed = mine.get(r.nextInt(mine.size()));
+                            Database.getBufferPool().deleteTuple(t.getId(), removed);
+                        }
+                        t.commit();
+                    } catch (TransactionAbortedException e) {
+                        t.abort();
+                        continue;
+                    }
+                    mine.add(added);
+                    if (removed != null)
+                        mine.remove(removed);
+                    committed.incrementAndGet();
+                }
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        writer.start();
+        SecondaryIndex index = SecondaryIndex.create("byc0", hf.getId(), "c0", tempFile());
+        stop.set(true);
+        writer.join();
+        assertNull(error.get());
+        assertTrue(committed.get() > 50);
+        checkIndex(index, hf);
+    }
+
+    @Test public void createIndexStatement() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null, "c");
+        Database.getCatalog().addTable(hf, "emp");
+        new Parser().processNextStatement("CREATE INDEX byc1 ON emp (c1);");
+
+        List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(hf.getId());
+        assertEquals(1, indexes.size());
+        assertEquals("byc1", indexes.get(0).getName());
+        indexes.get(0).getFile().getFile().deleteOnExit();
+        checkIndex(indexes.get(0), hf);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CreateIndexTest.class);
+    }
+}
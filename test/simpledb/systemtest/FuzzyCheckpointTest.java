@@ -0,0 +1,123 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Fuzzy checkpoints and NO-FORCE commits: committed pages that are only in
+ * the log are recovered by redo, starting at the oldest recLSN.
+ */
+public class FuzzyCheckpointTest extends SimpleDbTestBase {
+
+    private static HeapFile commitRowNoForce(BufferPool bp) throws IOException, DbException,
+            TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        bp.setForce(false);
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.commit();
+        return f;
+    }
+
+    /** A checkpoint leaves committed pages in the dirty page table, and
+        recovery redoes them from before the checkpoint. */
+    @Test public void testCheckpointDoesNotFlush()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = commitRowNoForce(Database.getBufferPool());
+        File file = f.getFile();
+        assertFalse(Database.getBufferPool().getDirtyPageTable().isEmpty());
+
+        Database.getLogFile().logCheckpoint();
+        assertFalse(Database.getBufferPool().getDirtyPageTable().isEmpty());
+
+        // crash with the committed page still in memory only
+        Database.reset();
+        f = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** Aborting a transaction must not lose the committed version of a page
+        that was never written. */
+    @Test public void testAbortKeepsCommittedPage()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = commitRowNoForce(Database.getBufferPool());
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.abort();
+
+        t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** The background writer empties the dirty page table. */
+    @Test public void testBackgroundWriter() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapFile f = commitRowNoForce(bp);
+        File file = f.getFile();
+
+        bp.startBackgroundWriter(10, 4);
+        try {
+            for (int i = 0; i < 500 && !bp.getDirtyPageTable().isEmpty(); i++)
+                Thread.sleep(10);
+            assertTrue(bp.getDirtyPageTable().isEmpty());
+        } finally {
+            bp.stopBackgroundWriter();
+        }
+
+        // the row is on disk now, without any recovery
+        Database.reset();
+        f = Utility.openHeapFile(2, file);
+        Transaction t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** A page that is only in the dirty page table was logged at commit,
+        but the record may still be buffered: writing the page out forces
+        the log first. */
+    @Test public void testWriteDirtyPagesForcesLog() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        bp.setForce(false);
+
+        // the buffer pool part of a commit, before the COMMIT record forces the log
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        bp.transactionComplete(t.getId(), true);
+        assertEquals(1, bp.getDirtyPageTable().size());
+
+        int forces = Database.getLogFile().getForceCount();
+        assertEquals(1, bp.writeDirtyPages(10));
+        assertTrue(Database.getLogFile().getForceCount() > forces);
+        assertTrue(bp.getDirtyPageTable().isEmpty());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(FuzzyCheckpointTest.class);
+    }
+}
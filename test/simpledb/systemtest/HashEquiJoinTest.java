@@ -0,0 +1,117 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+/**
+ * HashEquiJoin with memory budgets that make it partition its inputs and
+ * spill them to disk.
+ */
+public class HashEquiJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+    /** The memory one tuple of the test tables takes, as HashEquiJoin counts it. */
+    private static final int TUPLE_SIZE = Utility.getTupleDesc(COLUMNS).getHeapSize();
+
+    private HeapFile table1, table2;
+    private List<List<Integer>> expected;
+    private TransactionId tid;
+
+    @Before public void setUp() {
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void createTables(int rows1, int rows2, int maxValue, Map<Integer, Integer> columnSpecification)
+            throws Exception {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows1, maxValue, columnSpecification, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows2, maxValue, columnSpecification, t2Tuples);
+
+        Map<Integer, List<List<Integer>>> byKey = new HashMap<>();
+        for (List<Integer> t1 : t1Tuples)
+            byKey.computeIfAbsent(t1.get(0), k -> new ArrayList<>()).add(t1);
+        expected = new ArrayList<>();
+        for (List<Integer> t2 : t2Tuples) {
+            for (List<Integer> t1 : byKey.getOrDefault(t2.get(0), Collections.emptyList())) {
+                List<Integer> out = new ArrayList<>(t1);
+                out.addAll(t2);
+                expected.add(out);
+            }
+        }
+    }
+
+    private HashEquiJoin join(long memoryBudget) {
+        return new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""), memoryBudget);
+    }
+
+    private void validate(long memoryBudget) throws Exception {
+        HashEquiJoin op = join(memoryBudget);
+        SystemTestUtil.matchTuples(op, expected);
+        op.close();
+    }
+
+    @Test public void inMemory() throws Exception {
+        createTables(3000, 3000, 2000, null);
+        validate(HashEquiJoin.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /** The build side overflows; one partition stays in memory. */
+    @Test public void partitioned() throws Exception {
+        createTables(3000, 3000, 2000, null);
+        validate(500 * TUPLE_SIZE);
+    }
+
+    /** Even a single partition does not fit, so every partition is joined in several passes. */
+    @Test public void residentPartitionSpilled() throws Exception {
+        createTables(3000, 3000, 2000, null);
+        validate(40 * TUPLE_SIZE);
+    }
+
+    /** All tuples share one key, so the whole build side lands in one partition. */
+    @Test public void skewedKey() throws Exception {
+        Map<Integer, Integer> columnSpecification = new HashMap<>();
+        columnSpecification.put(0, 7);
+        createTables(60, 80, 2000, columnSpecification);
+        validate(25 * TUPLE_SIZE);
+    }
+
+    @Test public void rewind() throws Exception {
+        createTables(2000, 2000, 1000, null);
+        HashEquiJoin op = join(100 * TUPLE_SIZE);
+        op.open();
+        for (int pass = 0; pass < 2; pass++) {
+            List<List<Integer>> copy = new ArrayList<>(expected);
+            while (op.hasNext())
+                assertTrue(copy.remove(SystemTestUtil.tupleToList(op.next())));
+            assertTrue(copy.isEmpty());
+            op.rewind();
+        }
+        op.close();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
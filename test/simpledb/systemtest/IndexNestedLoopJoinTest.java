@@ -0,0 +1,170 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.index.BTreeBulkLoader;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+    private static BTreeFile btree(List<List<Integer>> tuples, int rows, int maxValue) throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, maxValue, null, tuples, "i");
+        File f = File.createTempFile("inner", ".dat");
+        f.deleteOnExit();
+        return new BTreeBulkLoader(hf.getTupleDesc(), 0, BTreeBulkLoader.DEFAULT_FILL_FACTOR,
+                BTreeBulkLoader.DEFAULT_MEMORY_BUDGET).load(hf, f);
+    }
+
+    private static List<List<Integer>> expectedJoin(List<List<Integer>> outer, int f1, Predicate.Op op,
+            List<List<Integer>> inner, int f2) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> o : outer) {
+            for (List<Integer> i : inner) {
+                int a = o.get(f1);
+                int b = i.get(f2);
+                boolean match;
+                switch (op) {
+                case EQUALS: match = a == b; break;
+                case LESS_THAN: match = a < b; break;
+                case LESS_THAN_OR_EQ: match = a <= b; break;
+                case GREATER_THAN: match = a > b; break;
+                default: match = a >= b; break;
+                }
+                if (match) {
+                    List<Integer> t = new ArrayList<>(o);
+                    t.addAll(i);
+                    result.add(t);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Test public void joinOperators() throws Exception {
+        List<List<Integer>> outerTuples = new ArrayList<>();
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 200, 300, null, outerTuples, "o");
+        List<List<Integer>> innerTuples = new ArrayList<>();
+        BTreeFile inner = btree(innerTuples, 2000, 300);
+        TransactionId tid = new TransactionId();
+
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ }) {
+            IndexNestedLoopJoin j = new IndexNestedLoopJoin(new JoinPredicate(1, op, 0),
+                    new SeqScan(tid, outer.getId(), "o"), new BTreeScan(tid, inner.getId(), "i", null));
+            assertEquals(4, j.getTupleDesc().numFields());
+            SystemTestUtil.matchTuples(j, expectedJoin(outerTuples, 1, op, innerTuples, 0));
+        }
+
+        // rewind starts over from the first outer tuple
+        IndexNestedLoopJoin j = new IndexNestedLoopJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, outer.getId(), "o"), new BTreeScan(tid, inner.getId(), "i", null));
+        j.open();
+        int n = 0;
+        while (j.hasNext()) {
+            j.next();
+            n++;
+        }
+        j.rewind();
+        while (j.hasNext()) {
+            j.next();
+            n--;
+        }
+        j.close();
+        assertEquals(0, n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notEqualsCannotProbe() {
+        IndexNestedLoopJoin.probeOp(Predicate.Op.NOT_EQUALS);
+    }
+
+    private static Operator findJoin(OpIterator plan) {
+        while (plan instanceof Operator) {
+            if (plan instanceof IndexNestedLoopJoin || plan instanceof Join || plan instanceof HashEquiJoin)
+                return (Operator) plan;
+            plan = ((Operator) plan).getChildren()[0];
+        }
+        return null;
+    }
+
+    /** The optimizer probes the B+ tree instead of hashing it, with filters on it applied to the result. */
+    @Test public void optimizerPicksIndexJoin() throws Exception {
+        List<List<Integer>> outerTuples = new ArrayList<>();
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 100, 1000, null, outerTuples, "o");
+        Database.getCatalog().addTable(outer, "ot");
+        List<List<Integer>> innerTuples = new ArrayList<>();
+        BTreeFile inner = btree(innerTuples, 20000, 1000);
+        Database.getCatalog().addTable(inner, "it");
+
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("ot", new TableStats(outer.getId(), 1000));
+        stats.put("it", new TableStats(inner.getId(), 1000));
+        TransactionId tid = new TransactionId();
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(outer.getId(), "ot");
+        lp.addScan(inner.getId(), "it");
+        lp.addJoin("ot.o1", "it.i0", Predicate.Op.EQUALS);
+        lp.addFilter("it.i1", Predicate.Op.LESS_THAN, "500");
+        lp.addProjectField("*", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(findJoin(plan) instanceof IndexNestedLoopJoin);
+
+        List<List<Integer>> filteredInner = new ArrayList<>();
+        for (List<Integer> t : innerTuples) {
+            if (t.get(1) < 500)
+                filteredInner.add(t);
+        }
+        SystemTestUtil.matchTuples(plan, expectedJoin(outerTuples, 1, Predicate.Op.EQUALS, filteredInner, 0));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * When the B+ tree does not fit into the buffer pool, every lookup goes to disk, and hashing the
+     * tree once costs less than probing it for each outer tuple.
+     */
+    @Test public void optimizerPicksHashJoin() throws Exception {
+        List<List<Integer>> outerTuples = new ArrayList<>();
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 100, 1000, null, outerTuples, "o");
+        Database.getCatalog().addTable(outer, "ot");
+        List<List<Integer>> innerTuples = new ArrayList<>();
+        BTreeFile inner = btree(innerTuples, 20000, 1000);
+        Database.getCatalog().addTable(inner, "it");
+        Database.resetBufferPool(inner.numPages() - 1);
+
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("ot", new TableStats(outer.getId(), 1000));
+        stats.put("it", new TableStats(inner.getId(), 1000));
+        TransactionId tid = new TransactionId();
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(outer.getId(), "ot");
+        lp.addScan(inner.getId(), "it");
+        lp.addJoin("ot.o1", "it.i0", Predicate.Op.EQUALS);
+        lp.addProjectField("*", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(findJoin(plan) instanceof HashEquiJoin);
+        SystemTestUtil.matchTuples(plan, expectedJoin(outerTuples, 1, Predicate.Op.EQUALS, innerTuples, 0));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
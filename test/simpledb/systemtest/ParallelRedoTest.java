@@ -0,0 +1,115 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Insert;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+/**
+ * Recovery redoes the log with several threads, each owning a set of pages.
+ */
+public class ParallelRedoTest extends SimpleDbTestBase {
+
+    /** Committed inserts spread over several pages, which were never
+        written before the crash, all come back. */
+    @Test public void testRedoManyPages() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, null, tuples);
+        File file = f.getFile();
+        Database.getBufferPool().setForce(false);
+
+        List<Tuple> rows = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Tuple t = new Tuple(Utility.getTupleDesc(2));
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(-i));
+            rows.add(t);
+            List<Integer> row = new ArrayList<>();
+            row.add(i);
+            row.add(-i);
+            tuples.add(row);
+        }
+        Transaction t = new Transaction();
+        t.start();
+        Insert insert = new Insert(t.getId(), new TupleIterator(Utility.getTupleDesc(2), rows), f.getId());
+        insert.open();
+        assertEquals(2000, ((IntField) insert.next().getField(0)).getValue());
+        insert.close();
+        t.commit();
+        assertTrue(Database.getBufferPool().getDirtyPageTable().size() > 2);
+
+        // crash, then redo with more threads than there are dirty pages
+        Database.reset();
+        f = Utility.openHeapFile(2, file);
+        Database.getLogFile().setRedoThreads(8);
+        Database.getLogFile().recover();
+
+        SystemTestUtil.matchTuples(f, tuples);
+        assertTrue(Database.getLogFile().getRedoWorkers() > 1);
+    }
+
+    /** Every page gets one record per transaction, so the records of a
+        page are interleaved with those of the other pages, which other
+        workers redo.  Each record rewrites the same header byte of its
+        page: redoing them out of order would bring deleted tuples back. */
+    @Test public void testRedoInLogOrderPerPage() throws Exception {
+        final int pages = 6;
+        final int transactions = 8; // slots 0 to 7 share the first header byte
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, tuples);
+        File file = f.getFile();
+        assertEquals(pages, f.numPages());
+        Database.getBufferPool().setForce(false);
+
+        Map<Integer, Tuple[]> slots = new HashMap<>();
+        Transaction scan = new Transaction();
+        scan.start();
+        DbFileIterator it = f.iterator(scan.getId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            RecordId rid = t.getRecordId();
+            if (rid.getTupleNumber() < transactions)
+                slots.computeIfAbsent(rid.getPageId().getPageNumber(), k -> new Tuple[transactions])
+                        [rid.getTupleNumber()] = t;
+        }
+        it.close();
+        scan.commit();
+
+        for (int k = 0; k < transactions; k++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int p = 0; p < pages; p++) {
+                Tuple victim = slots.get(p)[k];
+                Database.getBufferPool().deleteTuple(t.getId(), victim);
+                assertTrue(tuples.remove(SystemTestUtil.tupleToList(victim)));
+            }
+            t.commit();
+        }
+        assertEquals(pages, Database.getBufferPool().getDirtyPageTable().size());
+
+        Database.reset();
+        f = Utility.openHeapFile(2, file);
+        Database.getLogFile().setRedoThreads(4);
+        Database.getLogFile().recover();
+
+        assertTrue(Database.getLogFile().getRedoWorkers() > 1);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelRedoTest.class);
+    }
+}
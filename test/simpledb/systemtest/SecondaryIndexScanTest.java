@@ -0,0 +1,119 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+public class SecondaryIndexScanTest extends SimpleDbTestBase {
+
+    private static SecondaryIndex createIndex(HeapFile hf, String field) throws Exception {
+        File f = File.createTempFile("index", ".idx");
+        f.deleteOnExit();
+        return SecondaryIndex.create("by" + field, hf.getId(), field, f);
+    }
+
+    private static List<List<Integer>> scan(SecondaryIndexScan scan) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        scan.open();
+        while (scan.hasNext())
+            result.add(SystemTestUtil.tupleToList(scan.next()));
+        scan.close();
+        return result;
+    }
+
+    private static void validateScan(HeapFile hf, SecondaryIndex index, List<List<Integer>> tuples,
+            IndexPredicate ipred) throws Exception {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (ipred == null || new IntField(t.get(index.getKeyField())).compare(ipred.getOp(), ipred.getField()))
+                expected.add(t);
+        }
+        TransactionId tid = new TransactionId();
+        SecondaryIndexScan scan = new SecondaryIndexScan(tid, index, "t", ipred);
+        assertEquals("t.c1", scan.getTupleDesc().getFieldName(1));
+        SystemTestUtil.matchTuples(scan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void predicates() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 10000, 500, null, tuples, "c");
+        SecondaryIndex index = createIndex(hf, "c1");
+
+        validateScan(hf, index, tuples, null);
+        for (Op op : new Op[] { Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN,
+                Op.GREATER_THAN_OR_EQ }) {
+            validateScan(hf, index, tuples, new IndexPredicate(op, new IntField(250)));
+        }
+        validateScan(hf, index, tuples, new IndexPredicate(Op.EQUALS, new IntField(-1)));
+    }
+
+    /** Within one batch of RecordIds the heap is read in page order. */
+    @Test public void pageOrder() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, SecondaryIndexScan.RID_BATCH, 100, null, tuples, "c");
+        SecondaryIndex index = createIndex(hf, "c0");
+
+        TransactionId tid = new TransactionId();
+        SecondaryIndexScan scan = new SecondaryIndexScan(tid, index, null);
+        scan.open();
+        int lastPage = -1;
+        int lastSlot = -1;
+        int n = 0;
+        while (scan.hasNext()) {
+            RecordId rid = scan.next().getRecordId();
+            int pgNo = rid.getPageId().getPageNumber();
+            assertTrue(pgNo > lastPage || (pgNo == lastPage && rid.getTupleNumber() > lastSlot));
+            lastPage = pgNo;
+            lastSlot = rid.getTupleNumber();
+            n++;
+        }
+        assertEquals(tuples.size(), n);
+
+        // rewind starts over
+        scan.rewind();
+        assertTrue(scan.hasNext());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Tuples inserted and deleted after the index was built are seen by the scan. */
+    @Test public void seesChanges() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null, tuples, "c");
+        SecondaryIndex index = createIndex(hf, "c1");
+
+        Transaction t = new Transaction();
+        t.start();
+        Tuple tup = new Tuple(hf.getTupleDesc());
+        tup.setField(0, new IntField(1));
+        tup.setField(1, new IntField(12345));
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tup);
+        IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(12345));
+        assertEquals(Collections.singletonList(Arrays.asList(1, 12345)),
+                scan(new SecondaryIndexScan(t.getId(), index, ipred)));
+
+        Database.getBufferPool().deleteTuple(t.getId(), tup);
+        assertTrue(scan(new SecondaryIndexScan(t.getId(), index, ipred)).isEmpty());
+        t.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexScanTest.class);
+    }
+}
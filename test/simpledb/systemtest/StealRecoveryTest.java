@@ -0,0 +1,68 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Aborts and crash recovery when dirty pages may be evicted (STEAL).
+ */
+public class StealRecoveryTest extends SimpleDbTestBase {
+
+    /** A dirty page stolen by a scan is restored from the log on abort. */
+    @Test public void testAbortAfterSteal()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(1).setSteal(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        // with a single buffer page, the scan has to evict the dirty page
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** A stolen page of a transaction running at the crash is undone by recovery. */
+    @Test public void testCrashAfterSteal()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        File file = f.getFile();
+        Database.resetBufferPool(1).setSteal(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+
+        // crash without committing
+        Database.reset();
+        f = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+
+        t = new Transaction();
+        t.start();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(StealRecoveryTest.class);
+    }
+}